@@ -39,6 +39,7 @@ public class ChatSessionController {
             VBox chatContainer,
             TextArea messageInput,
             Button sendButton,
+            Button stopButton,
             Label statusLabel,
             Label modelLabel,
             Button manageKnowledgebaseButton,
@@ -65,6 +66,7 @@ public class ChatSessionController {
         this.messageHandler = new MessageHandler(
                 chatContainer,
                 messageInput,
+                stopButton,
                 statusLabel,
                 sessionStateHandler,
                 this::toggleControlsDuringProcessing);
@@ -152,6 +154,13 @@ public class ChatSessionController {
         messageHandler.handleSendMessage();
     }
 
+    /**
+     * Handle stopping the response being generated.
+     */
+    public void handleStopMessage() {
+        messageHandler.handleStopMessage();
+    }
+
     /**
      * Handle clearing the session history.
      */
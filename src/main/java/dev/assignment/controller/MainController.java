@@ -42,6 +42,9 @@ public class MainController {
     @FXML
     private Button sendButton;
 
+    @FXML
+    private Button stopButton;
+
     @FXML
     private Label statusLabel;
 
@@ -128,6 +131,7 @@ public class MainController {
                 chatContainer,
                 messageInput,
                 sendButton,
+                stopButton,
                 statusLabel,
                 modelLabel,
                 manageKnowledgebaseButton,
@@ -185,6 +189,11 @@ public class MainController {
         chatSessionController.handleSendMessage();
     }
 
+    @FXML
+    private void handleStopMessage() {
+        chatSessionController.handleStopMessage();
+    }
+
     @FXML
     private void handleToggleTheme() {
         var scene = toggleThemeButton.getScene();
@@ -1,20 +1,27 @@
 package dev.assignment.handler;
 
+import java.util.List;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import dev.assignment.model.ChatMessage;
+import dev.assignment.model.QueryResponse;
 import dev.assignment.model.Session;
 import dev.assignment.service.DatabaseService;
 import dev.assignment.service.RAGService;
+import dev.assignment.util.CancellationToken;
 import dev.assignment.util.Constants;
 import dev.assignment.view.AlertHelper;
 import dev.assignment.view.ChatAreaMessage;
 import dev.assignment.view.ChatMessageEntry;
+import javafx.animation.PauseTransition;
 import javafx.application.Platform;
+import javafx.scene.control.Button;
 import javafx.scene.control.Label;
 import javafx.scene.control.TextArea;
 import javafx.scene.layout.VBox;
+import javafx.util.Duration;
 
 /**
  * Handles message sending and response streaming.
@@ -23,23 +30,62 @@ public class MessageHandler {
 
     private static final Logger logger = LogManager.getLogger(MessageHandler.class);
 
+    /**
+     * Typing pause after which retrieval for the draft is started
+     */
+    private static final Duration SPECULATION_DELAY = Duration.millis(400);
+
+    /**
+     * Shortest draft worth retrieving context for
+     */
+    private static final int MIN_SPECULATION_LENGTH = 8;
+
     private final VBox chatContainer;
     private final TextArea messageInput;
+    private final Button stopButton;
     private final Label statusLabel;
     private final SessionStateHandler sessionStateHandler;
     private final Runnable toggleAllControlsCallback;
 
+    /**
+     * Cancellation token of the query in flight, null when idle
+     */
+    private CancellationToken activeQuery;
+
+    private final PauseTransition speculationDelay = new PauseTransition(SPECULATION_DELAY);
+
     public MessageHandler(
             VBox chatContainer,
             TextArea messageInput,
+            Button stopButton,
             Label statusLabel,
             SessionStateHandler sessionStateHandler,
             Runnable toggleAllControlsCallback) {
         this.chatContainer = chatContainer;
         this.messageInput = messageInput;
+        this.stopButton = stopButton;
         this.statusLabel = statusLabel;
         this.sessionStateHandler = sessionStateHandler;
         this.toggleAllControlsCallback = toggleAllControlsCallback;
+
+        speculationDelay.setOnFinished(event -> startSpeculativeRetrieval());
+        messageInput.textProperty().addListener(
+                (observable, oldValue, newValue) -> speculationDelay.playFromStart());
+    }
+
+    /**
+     * Retrieve context for the draft in the background once the user pauses
+     * typing, so sending it does not wait for the embedding and search
+     */
+    private void startSpeculativeRetrieval() {
+        String draftMessage = messageInput.getText().trim();
+        RAGService ragService = sessionStateHandler.getRagService();
+        if (activeQuery != null || ragService == null || draftMessage.length() < MIN_SPECULATION_LENGTH
+                || draftMessage.length() > Constants.MAX_QUERY_LENGTH) {
+            return;
+        }
+
+        ragService.prefetchRetrieval(draftMessage);
     }
 
     /**
@@ -77,6 +123,7 @@ public class MessageHandler {
         logger.debug("Message content: {}", userMessage);
 
         messageInput.clear();
+        speculationDelay.stop();
 
         chatContainer.getChildren().removeIf(node -> node instanceof ChatAreaMessage);
 
@@ -84,61 +131,217 @@ public class MessageHandler {
         ChatMessageEntry userMessageBox = new ChatMessageEntry(userChatMessage);
         chatContainer.getChildren().add(userMessageBox);
 
-        DatabaseService databaseService = DatabaseService.getInstance();
-        if (databaseService != null) {
-            databaseService.saveChatMessage(currentSession.getId(), userChatMessage);
-        }
-
         ChatMessage aiChatMessage = new ChatMessage("...", false);
         ChatMessageEntry aiMessageBox = new ChatMessageEntry(aiChatMessage);
         chatContainer.getChildren().add(aiMessageBox);
 
         toggleAllControlsCallback.run();
         statusLabel.setText("Generating response...");
+        CancellationToken cancellationToken = new CancellationToken();
+        setActiveQuery(cancellationToken);
         String finalUserMessage = userMessage;
+        StreamingTextBuffer textBuffer = new StreamingTextBuffer(aiMessageBox);
         new Thread(() -> {
             try {
                 logger.info("Querying RAG service...");
-                dev.assignment.model.QueryResponse queryResponse = ragService.query(finalUserMessage);
-                String responseText = queryResponse.response();
-                java.util.List<String> sources = queryResponse.sources();
-
-                Platform.runLater(() -> {
-                    aiMessageBox.updateText(responseText);
+                ragService.queryStreaming(finalUserMessage, cancellationToken, new RAGService.StreamingCallback() {
+                    @Override
+                    public void onSources(List<String> sources) {
+                        if (sources != null && !sources.isEmpty()) {
+                            String sourcesText = String.join(", ", sources);
+                            Platform.runLater(() -> aiMessageBox.setSources(sourcesText));
+                        }
+                    }
 
-                    String sourcesText = null;
-                    if (sources != null && !sources.isEmpty()) {
-                        sourcesText = String.join(", ", sources);
-                        aiMessageBox.setSources(sourcesText);
+                    @Override
+                    public void onToken(String token) {
+                        textBuffer.append(token);
                     }
 
-                    ChatMessage finalAiMessage = new ChatMessage(responseText, false, sourcesText);
-                    DatabaseService db = DatabaseService.getInstance();
-                    if (db != null) {
-                        db.saveChatMessage(currentSession.getId(), finalAiMessage);
+                    @Override
+                    public void onComplete(QueryResponse queryResponse) {
+                        Platform.runLater(() -> handleResponseComplete(currentSession, aiMessageBox, queryResponse));
                     }
 
-                    toggleAllControlsCallback.run();
-                    statusLabel.setText("Ready");
-                    messageInput.requestFocus();
+                    @Override
+                    public void onCancelled(QueryResponse partialResponse) {
+                        textBuffer.close();
+                        Platform.runLater(
+                                () -> handleResponseCancelled(currentSession, aiMessageBox, partialResponse));
+                    }
 
-                    logger.info("Response complete and displayed");
+                    @Override
+                    public void onError(Throwable error) {
+                        handleResponseError(currentSession, aiMessageBox, error);
+                    }
                 });
             } catch (Exception e) {
-                logger.error("========== Error Getting Response ==========");
-                logger.error("Session: {}", currentSession.getName());
-                logger.error("Error type: {}", e.getClass().getSimpleName());
-                logger.error("Error message: {}", e.getMessage(), e);
-                Platform.runLater(() -> {
-                    chatContainer.getChildren().remove(aiMessageBox);
-
-                    AlertHelper.showError("Error", "Failed to get response", e.getMessage());
-
-                    toggleAllControlsCallback.run();
-                    statusLabel.setText("Error occurred");
-                    messageInput.requestFocus();
-                });
+                handleResponseError(currentSession, aiMessageBox, e);
             }
         }).start();
     }
+
+    /**
+     * Handle stopping the response being generated. The text streamed so far is
+     * kept.
+     */
+    public void handleStopMessage() {
+        if (activeQuery == null || activeQuery.isCancelled()) {
+            return;
+        }
+        logger.info("Stopping response generation");
+        stopButton.setDisable(true);
+        statusLabel.setText("Stopping...");
+        activeQuery.cancel();
+    }
+
+    /**
+     * Set the query in flight, showing the stop button while there is one
+     */
+    private void setActiveQuery(CancellationToken cancellationToken) {
+        activeQuery = cancellationToken;
+        boolean active = cancellationToken != null;
+        stopButton.setDisable(!active);
+        stopButton.setVisible(active);
+        stopButton.setManaged(active);
+    }
+
+    /**
+     * Show and persist a completed response. Runs on the JavaFX thread.
+     */
+    private void handleResponseComplete(Session currentSession, ChatMessageEntry aiMessageBox,
+            QueryResponse queryResponse) {
+        String responseText = queryResponse.response();
+        aiMessageBox.updateText(responseText);
+
+        String sourcesText = null;
+        if (queryResponse.hasSources()) {
+            sourcesText = String.join(", ", queryResponse.sources());
+            aiMessageBox.setSources(sourcesText);
+        }
+
+        ChatMessage finalAiMessage = new ChatMessage(responseText, false, sourcesText);
+        DatabaseService db = DatabaseService.getInstance();
+        if (db != null) {
+            db.saveChatMessage(currentSession.getId(), finalAiMessage);
+        }
+
+        setActiveQuery(null);
+        toggleAllControlsCallback.run();
+        statusLabel.setText("Ready");
+        messageInput.requestFocus();
+
+        logger.info("Response complete and displayed");
+    }
+
+    /**
+     * Keep and persist the part of a stopped response that was already
+     * streamed, or drop the response if nothing was. Runs on the JavaFX thread.
+     */
+    private void handleResponseCancelled(Session currentSession, ChatMessageEntry aiMessageBox,
+            QueryResponse partialResponse) {
+        String partialText = partialResponse.response();
+
+        if (partialText.isEmpty()) {
+            chatContainer.getChildren().remove(aiMessageBox);
+        } else {
+            String responseText = partialText + Constants.RESPONSE_STOPPED_MARKER;
+            aiMessageBox.updateText(responseText);
+
+            String sourcesText = null;
+            if (partialResponse.hasSources()) {
+                sourcesText = String.join(", ", partialResponse.sources());
+                aiMessageBox.setSources(sourcesText);
+            }
+
+            DatabaseService db = DatabaseService.getInstance();
+            if (db != null) {
+                db.saveChatMessage(currentSession.getId(), new ChatMessage(responseText, false, sourcesText));
+            }
+        }
+
+        setActiveQuery(null);
+        toggleAllControlsCallback.run();
+        statusLabel.setText("Stopped");
+        messageInput.requestFocus();
+
+        logger.info("Response stopped after {} characters", partialText.length());
+    }
+
+    /**
+     * Remove the pending response and report an error. May be called from any
+     * thread.
+     */
+    private void handleResponseError(Session currentSession, ChatMessageEntry aiMessageBox, Throwable e) {
+        logger.error("========== Error Getting Response ==========");
+        logger.error("Session: {}", currentSession.getName());
+        logger.error("Error type: {}", e.getClass().getSimpleName());
+        logger.error("Error message: {}", e.getMessage(), e);
+        Platform.runLater(() -> {
+            chatContainer.getChildren().remove(aiMessageBox);
+            setActiveQuery(null);
+
+            AlertHelper.showError("Error", "Failed to get response", e.getMessage());
+
+            toggleAllControlsCallback.run();
+            statusLabel.setText("Error occurred");
+            messageInput.requestFocus();
+        });
+    }
+
+    /**
+     * Collects streamed tokens and hands them to the message entry in batches,
+     * with at most one Platform.runLater pending at a time, so a fast stream
+     * costs roughly one UI update per frame instead of one per token
+     */
+    private static class StreamingTextBuffer {
+        private final ChatMessageEntry messageEntry;
+        private final StringBuilder pending = new StringBuilder();
+        private boolean flushScheduled = false;
+        private boolean started = false;
+        private boolean closed = false;
+
+        StreamingTextBuffer(ChatMessageEntry messageEntry) {
+            this.messageEntry = messageEntry;
+        }
+
+        synchronized void append(String token) {
+            if (closed) {
+                return;
+            }
+            pending.append(token);
+            if (!flushScheduled) {
+                flushScheduled = true;
+                Platform.runLater(this::flush);
+            }
+        }
+
+        /**
+         * Stop accepting tokens, e.g. once the final text is set directly
+         */
+        synchronized void close() {
+            closed = true;
+            pending.setLength(0);
+        }
+
+        private void flush() {
+            String text;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                text = pending.toString();
+                pending.setLength(0);
+                flushScheduled = false;
+            }
+
+            if (!started) {
+                // Replace the "..." placeholder with the first tokens
+                started = true;
+                messageEntry.updateText(text);
+            } else {
+                messageEntry.appendText(text);
+            }
+        }
+    }
 }
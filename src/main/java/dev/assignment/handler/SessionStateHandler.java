@@ -6,6 +6,7 @@ import org.apache.logging.log4j.Logger;
 import dev.assignment.model.Session;
 import dev.assignment.service.APIKeyService;
 import dev.assignment.service.DatabaseService;
+import dev.assignment.service.EmbeddingCacheService;
 import dev.assignment.service.RAGService;
 import dev.assignment.service.ResourceService;
 import javafx.scene.control.Button;
@@ -73,6 +74,7 @@ public class SessionStateHandler {
 
             if (APIKeyService.getInstance().hasApiKey()) {
                 this.ragService = new RAGService(session.getId(), session.getModel());
+                ragService.setAnswerReuse(session.isAnswerReuse());
                 logger.info("Initialized RAGService with model={}",
                         session.getModel());
             } else {
@@ -108,6 +110,7 @@ public class SessionStateHandler {
                     currentSession.getId(), newModel);
 
             this.ragService = new RAGService(currentSession.getId(), newModel);
+            ragService.setAnswerReuse(currentSession.isAnswerReuse());
 
             logger.info("RAGService successfully updated");
         } else {
@@ -173,6 +176,9 @@ public class SessionStateHandler {
                 logger.info("Model changed, reinitializing RAGService");
                 updateRagService(newModel);
             }
+        } else if (ragService != null) {
+            ragService.setPrefixDimensions(EmbeddingCacheService.loadPrefixDimensions(currentSession.getId()));
+            ragService.setAnswerReuse(currentSession.isAnswerReuse());
         }
 
         logger.info("========== Session Update Complete ==========");
@@ -0,0 +1,10 @@
+package dev.assignment.model;
+
+import java.util.List;
+
+/**
+ * Represents a stored answer together with the embedding of the query it
+ * answered
+ */
+public record CachedAnswer(float[] queryVector, String response, List<String> sources) {
+}
@@ -0,0 +1,13 @@
+package dev.assignment.model;
+
+/**
+ * Represents a larger section of a document that the small indexed segments
+ * inside it expand to at prompt time
+ */
+public record ParentSection(
+        String fileName,
+        int ordinal,
+        int startOffset,
+        int endOffset,
+        String text) {
+}
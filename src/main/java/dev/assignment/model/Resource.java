@@ -3,6 +3,7 @@ package dev.assignment.model;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import dev.assignment.service.ExtractedTextCacheService;
 import dev.assignment.service.ResourceService;
 
 /**
@@ -20,6 +21,15 @@ public class Resource {
         this.file = file;
     }
 
+    /**
+     * Create a resource from its catalog entry, reusing the recorded character
+     * count if the file has been extracted before
+     */
+    public Resource(ResourceEntry entry, File file) {
+        this(entry.fileName(), file);
+        this.characterCount = entry.characterCount();
+    }
+
     public String getFileName() {
         return fileName;
     }
@@ -39,14 +49,18 @@ public class Resource {
     }
 
     /**
-     * Get the character count, calculating it if necessary
+     * Get the character count, calculating it if necessary. Uses the count
+     * recorded in the extracted-text cache rather than loading the content.
      */
     public int getCharacterCount() throws IOException {
         if (characterCount == null) {
-            if (content == null) {
-                loadContent();
+            if (content != null) {
+                characterCount = content.length();
+            } else if (file != null && file.exists()) {
+                characterCount = ExtractedTextCacheService.getCharacterCount(file);
+            } else {
+                throw new IOException("File not found: " + fileName);
             }
-            characterCount = content.length();
         }
         return characterCount;
     }
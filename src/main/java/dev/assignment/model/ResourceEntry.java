@@ -0,0 +1,45 @@
+package dev.assignment.model;
+
+/**
+ * Represents the catalog record of a resource file in a session's
+ * knowledgebase
+ */
+public record ResourceEntry(
+        String fileName,
+        long size,
+        long lastModified,
+        String contentHash, // Null until the file has been hashed
+        Integer characterCount, // Null until the file has been extracted
+        Integer segmentCount, // Null until the file has been indexed
+        IndexState indexState) {
+
+    /**
+     * Indexing state of a resource
+     */
+    public enum IndexState {
+        PENDING,
+        INDEXED,
+        FAILED
+    }
+
+    /**
+     * Create an entry for a file that has not been indexed yet
+     */
+    public static ResourceEntry pending(String fileName, long size, long lastModified, String contentHash) {
+        return new ResourceEntry(fileName, size, lastModified, contentHash, null, null, IndexState.PENDING);
+    }
+
+    /**
+     * Check if the entry still describes a file with the given size and
+     * modification time
+     */
+    public boolean matches(long size, long lastModified) {
+        return this.size == size && this.lastModified == lastModified;
+    }
+
+    public ResourceEntry withIndexResult(IndexState indexState, String contentHash, Integer characterCount,
+            Integer segmentCount) {
+        return new ResourceEntry(fileName, size, lastModified, contentHash, characterCount, segmentCount,
+                indexState);
+    }
+}
@@ -13,6 +13,7 @@ public class Session {
     private final String id;
     private String name;
     private String model;
+    private boolean answerReuse;
     private final LocalDateTime createdAt;
 
     /**
@@ -22,16 +23,18 @@ public class Session {
         this.id = UUID.randomUUID().toString();
         this.name = name;
         this.model = Constants.DEFAULT_MODEL;
+        this.answerReuse = true;
         this.createdAt = LocalDateTime.now();
     }
 
     /**
      * Load existing session from database
      */
-    public Session(String id, String name, String model, LocalDateTime createdAt) {
+    public Session(String id, String name, String model, boolean answerReuse, LocalDateTime createdAt) {
         this.id = id;
         this.name = name;
         this.model = model;
+        this.answerReuse = answerReuse;
         this.createdAt = createdAt;
     }
 
@@ -55,6 +58,18 @@ public class Session {
         this.model = model;
     }
 
+    /**
+     * Whether answers are reused for near-duplicate questions over the same
+     * retrieved context
+     */
+    public boolean isAnswerReuse() {
+        return answerReuse;
+    }
+
+    public void setAnswerReuse(boolean answerReuse) {
+        this.answerReuse = answerReuse;
+    }
+
     public LocalDateTime getCreatedAt() {
         return createdAt;
     }
@@ -1,6 +1,8 @@
 package dev.assignment.service;
 
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
@@ -9,12 +11,20 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import dev.assignment.model.CachedAnswer;
 import dev.assignment.model.ChatMessage;
+import dev.assignment.model.ParentSection;
+import dev.assignment.model.ResourceEntry;
 import dev.assignment.model.Session;
 
 /**
@@ -23,9 +33,22 @@ import dev.assignment.model.Session;
 public class DatabaseService {
     private static final Logger logger = LogManager.getLogger(DatabaseService.class);
     private static final String DB_PATH = "rag_sessions.db";
+
+    /**
+     * Number of answers kept in a session's answer cache; the oldest are
+     * deleted past it
+     */
+    static final int MAX_CACHED_ANSWERS_PER_SESSION = 500;
+    private static String dbPath = DB_PATH;
     private static DatabaseService instance;
     private Connection connection;
 
+    /**
+     * In-memory copy of the resource catalog of each session loaded so far,
+     * kept in sync with the resources table by every catalog write
+     */
+    private final Map<String, Map<String, ResourceEntry>> catalogs = new ConcurrentHashMap<>();
+
     private DatabaseService() throws SQLException {
         initializeDatabase();
     }
@@ -42,11 +65,23 @@ public class DatabaseService {
         return instance;
     }
 
+    /**
+     * Point the service at another database file, closing the current one.
+     * Null restores the default. Used by tests.
+     */
+    static synchronized void setDatabasePath(String path) {
+        if (instance != null) {
+            instance.close();
+            instance = null;
+        }
+        dbPath = path != null ? path : DB_PATH;
+    }
+
     /**
      * Initialize database connection and create tables if they don't exist
      */
     private void initializeDatabase() throws SQLException {
-        connection = DriverManager.getConnection("jdbc:sqlite:" + DB_PATH);
+        connection = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
         createTables();
     }
 
@@ -58,7 +93,9 @@ public class DatabaseService {
                 "id TEXT PRIMARY KEY, " +
                 "name TEXT NOT NULL, " +
                 "model TEXT NOT NULL DEFAULT 'gpt-4o-mini', " +
-                "created_at TEXT NOT NULL" +
+                "created_at TEXT NOT NULL, " +
+                "summary TEXT, " +
+                "answer_reuse INTEGER NOT NULL DEFAULT 1" +
                 ")";
 
         String createMessagesTable = "CREATE TABLE IF NOT EXISTS messages (" +
@@ -71,13 +108,77 @@ public class DatabaseService {
                 "FOREIGN KEY (session_id) REFERENCES sessions(id) ON DELETE CASCADE" +
                 ")";
 
+        String createResourcesTable = "CREATE TABLE IF NOT EXISTS resources (" +
+                "session_id TEXT NOT NULL, " +
+                "file_name TEXT NOT NULL, " +
+                "size INTEGER NOT NULL, " +
+                "last_modified INTEGER NOT NULL, " +
+                "content_hash TEXT, " +
+                "character_count INTEGER, " +
+                "segment_count INTEGER, " +
+                "index_state TEXT NOT NULL DEFAULT 'PENDING', " +
+                "PRIMARY KEY (session_id, file_name), " +
+                "FOREIGN KEY (session_id) REFERENCES sessions(id) ON DELETE CASCADE" +
+                ")";
+
+        String createAnswerCacheTable = "CREATE TABLE IF NOT EXISTS answer_cache (" +
+                "session_id TEXT NOT NULL, " +
+                "model TEXT NOT NULL, " +
+                "segment_keys TEXT NOT NULL, " +
+                "query_vector BLOB NOT NULL, " +
+                "response TEXT NOT NULL, " +
+                "sources TEXT, " +
+                "created_at TEXT NOT NULL, " +
+                "FOREIGN KEY (session_id) REFERENCES sessions(id) ON DELETE CASCADE" +
+                ")";
+
+        String createParentSectionsTable = "CREATE TABLE IF NOT EXISTS parent_sections (" +
+                "session_id TEXT NOT NULL, " +
+                "file_name TEXT NOT NULL, " +
+                "ordinal INTEGER NOT NULL, " +
+                "start_offset INTEGER NOT NULL, " +
+                "end_offset INTEGER NOT NULL, " +
+                "text TEXT NOT NULL, " +
+                "PRIMARY KEY (session_id, file_name, ordinal), " +
+                "FOREIGN KEY (session_id) REFERENCES sessions(id) ON DELETE CASCADE" +
+                ")";
+
+        String createAnswerCacheIndex = "CREATE INDEX IF NOT EXISTS idx_answer_cache_lookup " +
+                "ON answer_cache (session_id, model, segment_keys)";
+
+        String createMessagesIndex = "CREATE INDEX IF NOT EXISTS idx_messages_session " +
+                "ON messages (session_id, timestamp)";
+
         try (Statement stmt = connection.createStatement()) {
             stmt.execute(createSessionsTable);
             stmt.execute(createMessagesTable);
+            stmt.execute(createResourcesTable);
+            stmt.execute(createAnswerCacheTable);
+            stmt.execute(createParentSectionsTable);
+            stmt.execute(createAnswerCacheIndex);
+            stmt.execute(createMessagesIndex);
+            addColumnIfMissing(stmt, "sessions", "summary", "TEXT");
+            addColumnIfMissing(stmt, "sessions", "answer_reuse", "INTEGER NOT NULL DEFAULT 1");
             logger.info("Database tables created successfully");
         }
     }
 
+    /**
+     * Add a column to a table created before the column existed
+     */
+    private void addColumnIfMissing(Statement stmt, String table, String column, String definition)
+            throws SQLException {
+        try (ResultSet rs = stmt.executeQuery("PRAGMA table_info(" + table + ")")) {
+            while (rs.next()) {
+                if (column.equals(rs.getString("name"))) {
+                    return;
+                }
+            }
+        }
+        stmt.execute("ALTER TABLE " + table + " ADD COLUMN " + column + " " + definition);
+        logger.info("Added column {} to table {}", column, table);
+    }
+
     /**
      * Create a new session and its knowledgebase folder
      */
@@ -111,7 +212,7 @@ public class DatabaseService {
      */
     public List<Session> getAllSessions() throws SQLException {
         List<Session> sessions = new ArrayList<>();
-        String sql = "SELECT id, name, model, created_at FROM sessions ORDER BY created_at DESC";
+        String sql = "SELECT id, name, model, answer_reuse, created_at FROM sessions ORDER BY created_at DESC";
 
         try (Statement stmt = connection.createStatement();
                 ResultSet rs = stmt.executeQuery(sql)) {
@@ -120,8 +221,9 @@ public class DatabaseService {
                 String id = rs.getString("id");
                 String name = rs.getString("name");
                 String model = rs.getString("model");
+                boolean answerReuse = rs.getBoolean("answer_reuse");
                 LocalDateTime createdAt = LocalDateTime.parse(rs.getString("created_at"));
-                sessions.add(new Session(id, name, model, createdAt));
+                sessions.add(new Session(id, name, model, answerReuse, createdAt));
             }
         }
 
@@ -132,7 +234,7 @@ public class DatabaseService {
      * Get a session by ID
      */
     public Session getSession(String id) {
-        String sql = "SELECT id, name, model, created_at FROM sessions WHERE id = ?";
+        String sql = "SELECT id, name, model, answer_reuse, created_at FROM sessions WHERE id = ?";
 
         try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
             pstmt.setString(1, id);
@@ -141,12 +243,13 @@ public class DatabaseService {
             if (rs.next()) {
                 String name = rs.getString("name");
                 String model = rs.getString("model");
+                boolean answerReuse = rs.getBoolean("answer_reuse");
                 LocalDateTime createdAt = LocalDateTime.parse(rs.getString("created_at"));
 
                 logger.debug("Retrieved session: id={}, name='{}', model={}",
                         id, name, model);
 
-                return new Session(id, name, model, createdAt);
+                return new Session(id, name, model, answerReuse, createdAt);
             } else {
                 logger.debug("No session found with id: {}", id);
             }
@@ -183,6 +286,23 @@ public class DatabaseService {
         }
     }
 
+    /**
+     * Set whether a session reuses answers to near-duplicate questions
+     */
+    public void updateSessionAnswerReuse(String id, boolean answerReuse) {
+        String sql = "UPDATE sessions SET answer_reuse = ? WHERE id = ?";
+
+        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+            pstmt.setBoolean(1, answerReuse);
+            pstmt.setString(2, id);
+            pstmt.executeUpdate();
+            logger.info("Answer reuse {} for session {}", answerReuse ? "enabled" : "disabled", id);
+        } catch (SQLException e) {
+            logger.error("Failed to update answer reuse: id={}", id, e);
+            throw new RuntimeException("Failed to update session", e);
+        }
+    }
+
     /**
      * Delete a session and its knowledgebase folder
      */
@@ -203,7 +323,22 @@ public class DatabaseService {
                 logger.info("Session folder deleted: {}", sessionFolder.getPath());
             }
 
+            try (PreparedStatement catalogStmt = connection.prepareStatement(
+                    "DELETE FROM resources WHERE session_id = ?")) {
+                catalogStmt.setString(1, id);
+                catalogStmt.executeUpdate();
+            }
+            catalogs.remove(id);
+            clearAnswerCache(id);
+
+            try (PreparedStatement parentsStmt = connection.prepareStatement(
+                    "DELETE FROM parent_sections WHERE session_id = ?")) {
+                parentsStmt.setString(1, id);
+                parentsStmt.executeUpdate();
+            }
+
             EmbeddingCacheService.deleteCache(id);
+            ExtractedTextCacheService.sweep();
             logger.info("Session deletion complete: id={}", id);
         } catch (SQLException e) {
             logger.error("Failed to delete session: id={}", id, e);
@@ -259,6 +394,76 @@ public class DatabaseService {
         return messages;
     }
 
+    /**
+     * Get the most recent chat messages for a session ordered by timestamp
+     *
+     * @param limit Maximum number of messages
+     */
+    public List<ChatMessage> getRecentChatHistory(String sessionId, int limit) {
+        List<ChatMessage> messages = new ArrayList<>();
+        String sql = "SELECT id, content, is_user, timestamp, sources FROM messages WHERE session_id = ? " +
+                "ORDER BY timestamp DESC LIMIT ?";
+
+        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+            pstmt.setString(1, sessionId);
+            pstmt.setInt(2, limit);
+            ResultSet rs = pstmt.executeQuery();
+
+            while (rs.next()) {
+                String id = rs.getString("id");
+                String content = rs.getString("content");
+                boolean isUser = rs.getInt("is_user") == 1;
+                LocalDateTime timestamp = LocalDateTime.parse(rs.getString("timestamp"));
+                String sources = rs.getString("sources");
+                messages.add(new ChatMessage(id, content, isUser, timestamp, sources));
+            }
+            Collections.reverse(messages);
+            logger.debug("Loaded {} recent messages for session {}", messages.size(), sessionId);
+        } catch (SQLException e) {
+            logger.error("Failed to get recent chat history", e);
+        }
+
+        return messages;
+    }
+
+    /**
+     * Get the running summary of a session's older messages
+     *
+     * @return The summary, or null if nothing has been summarized
+     */
+    public String getSessionSummary(String sessionId) {
+        String sql = "SELECT summary FROM sessions WHERE id = ?";
+
+        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+            pstmt.setString(1, sessionId);
+            ResultSet rs = pstmt.executeQuery();
+            if (rs.next()) {
+                return rs.getString("summary");
+            }
+        } catch (SQLException e) {
+            logger.error("Failed to get session summary: id={}", sessionId, e);
+        }
+        return null;
+    }
+
+    /**
+     * Replace the running summary of a session's older messages
+     *
+     * @param summary The summary, or null to clear it
+     */
+    public void updateSessionSummary(String sessionId, String summary) {
+        String sql = "UPDATE sessions SET summary = ? WHERE id = ?";
+
+        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+            pstmt.setString(1, summary);
+            pstmt.setString(2, sessionId);
+            pstmt.executeUpdate();
+            logger.debug("Updated summary of session {}", sessionId);
+        } catch (SQLException e) {
+            logger.error("Failed to update session summary: id={}", sessionId, e);
+        }
+    }
+
     /**
      * Delete all chat messages for a session
      */
@@ -275,6 +480,285 @@ public class DatabaseService {
         }
     }
 
+    /**
+     * Get the resource catalog of a session, keyed by file name. The catalog is
+     * read from the database once and served from memory afterwards; a failed
+     * read is not cached, so the next call tries again.
+     */
+    public Map<String, ResourceEntry> getResourceCatalog(String sessionId) {
+        return catalogs.computeIfAbsent(sessionId, this::loadResourceCatalog);
+    }
+
+    private Map<String, ResourceEntry> loadResourceCatalog(String sessionId) {
+        Map<String, ResourceEntry> catalog = new ConcurrentHashMap<>();
+        String sql = "SELECT file_name, size, last_modified, content_hash, character_count, segment_count, " +
+                "index_state FROM resources WHERE session_id = ?";
+
+        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+            pstmt.setString(1, sessionId);
+            ResultSet rs = pstmt.executeQuery();
+
+            while (rs.next()) {
+                String fileName = rs.getString("file_name");
+                catalog.put(fileName, new ResourceEntry(
+                        fileName,
+                        rs.getLong("size"),
+                        rs.getLong("last_modified"),
+                        rs.getString("content_hash"),
+                        (Integer) rs.getObject("character_count"),
+                        (Integer) rs.getObject("segment_count"),
+                        ResourceEntry.IndexState.valueOf(rs.getString("index_state"))));
+            }
+            logger.debug("Loaded {} catalog entries for session {}", catalog.size(), sessionId);
+        } catch (SQLException e) {
+            logger.error("Failed to load resource catalog", e);
+            throw new RuntimeException("Failed to load resource catalog", e);
+        }
+
+        return catalog;
+    }
+
+    /**
+     * Insert or replace the catalog entry of a resource
+     */
+    public void saveResourceEntry(String sessionId, ResourceEntry entry) {
+        String sql = "INSERT OR REPLACE INTO resources (session_id, file_name, size, last_modified, content_hash, " +
+                "character_count, segment_count, index_state) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+
+        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+            pstmt.setString(1, sessionId);
+            pstmt.setString(2, entry.fileName());
+            pstmt.setLong(3, entry.size());
+            pstmt.setLong(4, entry.lastModified());
+            pstmt.setString(5, entry.contentHash());
+            pstmt.setObject(6, entry.characterCount());
+            pstmt.setObject(7, entry.segmentCount());
+            pstmt.setString(8, entry.indexState().name());
+            pstmt.executeUpdate();
+            getResourceCatalog(sessionId).put(entry.fileName(), entry);
+        } catch (SQLException e) {
+            logger.error("Failed to save catalog entry for {}", entry.fileName(), e);
+            throw new RuntimeException("Failed to save catalog entry", e);
+        }
+    }
+
+    /**
+     * Record the outcome of indexing a resource in its catalog entry
+     */
+    public void updateResourceIndexState(String sessionId, String fileName, ResourceEntry.IndexState indexState,
+            String contentHash, Integer characterCount, Integer segmentCount) {
+        ResourceEntry entry = getResourceCatalog(sessionId).get(fileName);
+        if (entry != null) {
+            saveResourceEntry(sessionId, entry.withIndexResult(indexState, contentHash, characterCount, segmentCount));
+        }
+    }
+
+    /**
+     * Remove the catalog entry of a resource
+     */
+    public void deleteResourceEntry(String sessionId, String fileName) {
+        String sql = "DELETE FROM resources WHERE session_id = ? AND file_name = ?";
+
+        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+            pstmt.setString(1, sessionId);
+            pstmt.setString(2, fileName);
+            pstmt.executeUpdate();
+            getResourceCatalog(sessionId).remove(fileName);
+        } catch (SQLException e) {
+            logger.error("Failed to delete catalog entry for {}", fileName, e);
+            throw new RuntimeException("Failed to delete catalog entry", e);
+        }
+    }
+
+    /**
+     * Check if a resource of any session has the given content hash
+     */
+    public boolean isContentHashReferenced(String contentHash) {
+        String sql = "SELECT 1 FROM resources WHERE content_hash = ? LIMIT 1";
+
+        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+            pstmt.setString(1, contentHash);
+            return pstmt.executeQuery().next();
+        } catch (SQLException e) {
+            logger.error("Failed to look up content hash {}", contentHash, e);
+            // Keep the cache entry when in doubt
+            return true;
+        }
+    }
+
+    /**
+     * Get the content hashes of the resources of all sessions
+     */
+    public Set<String> getReferencedContentHashes() {
+        Set<String> hashes = new HashSet<>();
+        String sql = "SELECT DISTINCT content_hash FROM resources WHERE content_hash IS NOT NULL";
+
+        try (Statement stmt = connection.createStatement()) {
+            ResultSet rs = stmt.executeQuery(sql);
+            while (rs.next()) {
+                hashes.add(rs.getString("content_hash"));
+            }
+        } catch (SQLException e) {
+            logger.error("Failed to load content hashes", e);
+            throw new RuntimeException("Failed to load content hashes", e);
+        }
+        return hashes;
+    }
+
+    /**
+     * Insert or replace parent sections of a session's documents
+     */
+    public void saveParentSections(String sessionId, List<ParentSection> sections) {
+        if (sections.isEmpty()) {
+            return;
+        }
+        String sql = "INSERT OR REPLACE INTO parent_sections (session_id, file_name, ordinal, start_offset, " +
+                "end_offset, text) VALUES (?, ?, ?, ?, ?, ?)";
+
+        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+            for (ParentSection section : sections) {
+                pstmt.setString(1, sessionId);
+                pstmt.setString(2, section.fileName());
+                pstmt.setInt(3, section.ordinal());
+                pstmt.setInt(4, section.startOffset());
+                pstmt.setInt(5, section.endOffset());
+                pstmt.setString(6, section.text());
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+        } catch (SQLException e) {
+            logger.error("Failed to save parent sections", e);
+            throw new RuntimeException("Failed to save parent sections", e);
+        }
+    }
+
+    /**
+     * Get a parent section of a document
+     *
+     * @return The section, or null if it does not exist
+     */
+    public ParentSection getParentSection(String sessionId, String fileName, int ordinal) {
+        String sql = "SELECT start_offset, end_offset, text FROM parent_sections " +
+                "WHERE session_id = ? AND file_name = ? AND ordinal = ?";
+
+        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+            pstmt.setString(1, sessionId);
+            pstmt.setString(2, fileName);
+            pstmt.setInt(3, ordinal);
+            ResultSet rs = pstmt.executeQuery();
+
+            if (rs.next()) {
+                return new ParentSection(fileName, ordinal, rs.getInt("start_offset"), rs.getInt("end_offset"),
+                        rs.getString("text"));
+            }
+        } catch (SQLException e) {
+            logger.error("Failed to read parent section", e);
+        }
+
+        return null;
+    }
+
+    /**
+     * Delete the parent sections of a document
+     */
+    public void deleteParentSections(String sessionId, String fileName) {
+        String sql = "DELETE FROM parent_sections WHERE session_id = ? AND file_name = ?";
+
+        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+            pstmt.setString(1, sessionId);
+            pstmt.setString(2, fileName);
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            logger.error("Failed to delete parent sections for {}", fileName, e);
+        }
+    }
+
+    /**
+     * Store an answer under the model and the keys of the segments it was
+     * generated from. Only the latest MAX_CACHED_ANSWERS_PER_SESSION answers
+     * of a session are kept.
+     */
+    public void saveCachedAnswer(String sessionId, String model, String segmentKeys, CachedAnswer answer) {
+        String sql = "INSERT INTO answer_cache (session_id, model, segment_keys, query_vector, response, sources, " +
+                "created_at) VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+        ByteBuffer vectorBytes = ByteBuffer.allocate(answer.queryVector().length * Float.BYTES);
+        vectorBytes.asFloatBuffer().put(answer.queryVector());
+
+        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+            pstmt.setString(1, sessionId);
+            pstmt.setString(2, model);
+            pstmt.setString(3, segmentKeys);
+            pstmt.setBytes(4, vectorBytes.array());
+            pstmt.setString(5, answer.response());
+            pstmt.setString(6, String.join("\n", answer.sources()));
+            pstmt.setString(7, LocalDateTime.now().toString());
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            logger.error("Failed to save cached answer", e);
+            return;
+        }
+
+        String trimSql = "DELETE FROM answer_cache WHERE session_id = ? AND rowid NOT IN (" +
+                "SELECT rowid FROM answer_cache WHERE session_id = ? ORDER BY rowid DESC LIMIT ?)";
+
+        try (PreparedStatement pstmt = connection.prepareStatement(trimSql)) {
+            pstmt.setString(1, sessionId);
+            pstmt.setString(2, sessionId);
+            pstmt.setInt(3, MAX_CACHED_ANSWERS_PER_SESSION);
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            logger.error("Failed to trim answer cache", e);
+        }
+    }
+
+    /**
+     * Get the answers stored for a model and set of segment keys
+     */
+    public List<CachedAnswer> getCachedAnswers(String sessionId, String model, String segmentKeys) {
+        List<CachedAnswer> answers = new ArrayList<>();
+        String sql = "SELECT query_vector, response, sources FROM answer_cache " +
+                "WHERE session_id = ? AND model = ? AND segment_keys = ?";
+
+        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+            pstmt.setString(1, sessionId);
+            pstmt.setString(2, model);
+            pstmt.setString(3, segmentKeys);
+            ResultSet rs = pstmt.executeQuery();
+
+            while (rs.next()) {
+                FloatBuffer vectorBuffer = ByteBuffer.wrap(rs.getBytes("query_vector")).asFloatBuffer();
+                float[] queryVector = new float[vectorBuffer.remaining()];
+                vectorBuffer.get(queryVector);
+
+                String sources = rs.getString("sources");
+                answers.add(new CachedAnswer(queryVector, rs.getString("response"),
+                        sources == null || sources.isEmpty() ? List.of() : List.of(sources.split("\n"))));
+            }
+        } catch (SQLException e) {
+            logger.error("Failed to read cached answers", e);
+        }
+
+        return answers;
+    }
+
+    /**
+     * Delete all cached answers of a session
+     */
+    public void clearAnswerCache(String sessionId) {
+        String sql = "DELETE FROM answer_cache WHERE session_id = ?";
+
+        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+            pstmt.setString(1, sessionId);
+            int deleted = pstmt.executeUpdate();
+            if (deleted > 0) {
+                logger.debug("Cleared {} cached answers for session {}", deleted, sessionId);
+            }
+        } catch (SQLException e) {
+            logger.error("Failed to clear answer cache", e);
+        }
+    }
+
     /**
      * Recursively delete a directory
      */
@@ -0,0 +1,249 @@
+package dev.assignment.service;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.text.PDFTextStripper;
+
+import dev.assignment.util.TextNormalizer;
+
+/**
+ * Service for extracting plain text from knowledgebase files as a stream of
+ * bounded blocks, so that large documents never have to be held in memory as
+ * a single string
+ */
+public class DocumentExtractionService {
+
+    private static final Logger logger = LogManager.getLogger(DocumentExtractionService.class);
+
+    /**
+     * Number of PDF pages extracted per block
+     */
+    private static final int PAGES_PER_RANGE = 8;
+
+    /**
+     * Number of extracted ranges each lane may buffer ahead of the consumer
+     */
+    private static final int LANE_BUFFER_RANGES = 2;
+
+    /**
+     * Maximum number of parallel extraction lanes for a single PDF
+     */
+    private static final int MAX_LANES = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * Size of the read buffer for plain text files, in characters
+     */
+    private static final int TEXT_BUFFER_CHARS = 64 * 1024;
+
+    private static final ExecutorService laneExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "pdf-extraction-lane");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Callback receiving extracted text blocks in document order
+     */
+    public interface TextBlockCallback {
+        void onBlock(String block) throws IOException;
+    }
+
+    private DocumentExtractionService() {
+        // Prevent instantiation
+    }
+
+    /**
+     * Extract the text of a file block by block. PDFs are handed to the
+     * extraction worker pool, and extracted in process only if no worker JVM
+     * can be started. A worker dying on a document fails the document.
+     */
+    public static void extract(File file, TextBlockCallback callback) throws IOException {
+        ExtractionWorkerPool workerPool = ExtractionWorkerPool.getInstance();
+        if (isPdf(file) && workerPool.isAvailable()) {
+            try {
+                workerPool.extract(file, callback);
+                return;
+            } catch (ExtractionWorkerPool.WorkerUnavailableException e) {
+                logger.warn("{}, extracting in process: {}", e.getMessage(),
+                        e.getCause() != null ? e.getCause().getMessage() : "");
+            }
+        }
+        extractLocally(file, callback);
+    }
+
+    /**
+     * Extract the text of a file block by block in this process, handling PDF
+     * format files specifically
+     */
+    static void extractLocally(File file, TextBlockCallback callback) throws IOException {
+        if (isPdf(file)) {
+            extractPdf(file, callback);
+        } else {
+            extractText(file, callback);
+        }
+    }
+
+    private static boolean isPdf(File file) {
+        return ResourceService.getFileExtension(file.getName()).toLowerCase().equals(".pdf");
+    }
+
+    /**
+     * Read a plain text or markdown file through a bounded buffer
+     */
+    private static void extractText(File file, TextBlockCallback callback) throws IOException {
+        char[] buffer = new char[TEXT_BUFFER_CHARS];
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            int read;
+            while ((read = reader.read(buffer, 0, buffer.length)) != -1) {
+                if (read > 0) {
+                    callback.onBlock(new String(buffer, 0, read));
+                }
+            }
+        }
+    }
+
+    /**
+     * Extract a PDF page range by page range. Documents with more than one range
+     * are split across parallel lanes, each with its own temp-file backed
+     * PDDocument since PDFBox documents are not thread-safe. Blocks are still
+     * delivered in page order and each lane may only run a few ranges ahead, so
+     * peak memory is bounded by the lane count rather than the document size.
+     */
+    private static void extractPdf(File file, TextBlockCallback callback) throws IOException {
+        int pageCount;
+        try (PDDocument document = loadPdf(file)) {
+            pageCount = document.getNumberOfPages();
+
+            if (pageCount <= PAGES_PER_RANGE) {
+                if (pageCount > 0) {
+                    callback.onBlock(extractRange(document, 1, pageCount));
+                }
+                return;
+            }
+        }
+
+        int rangeCount = (pageCount + PAGES_PER_RANGE - 1) / PAGES_PER_RANGE;
+        int laneCount = Math.min(MAX_LANES, rangeCount);
+        logger.debug("Extracting {} pages of {} in {} ranges across {} lanes",
+                pageCount, file.getName(), rangeCount, laneCount);
+
+        List<BlockingQueue<RangeResult>> lanes = new ArrayList<>();
+        List<Future<?>> laneFutures = new ArrayList<>();
+        for (int lane = 0; lane < laneCount; lane++) {
+            BlockingQueue<RangeResult> queue = new ArrayBlockingQueue<>(LANE_BUFFER_RANGES);
+            lanes.add(queue);
+            laneFutures.add(laneExecutor.submit(new PdfLane(file, pageCount, lane, laneCount, queue)));
+        }
+
+        try {
+            for (int range = 0; range < rangeCount; range++) {
+                RangeResult result = lanes.get(range % laneCount).take();
+                if (result.error != null) {
+                    throw result.error;
+                }
+                callback.onBlock(result.text);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("PDF extraction interrupted: " + file.getName(), e);
+        } finally {
+            for (Future<?> future : laneFutures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Load a PDF using temp files instead of main memory for its buffers
+     */
+    static PDDocument loadPdf(File file) throws IOException {
+        return PDDocument.load(file, MemoryUsageSetting.setupTempFileOnly());
+    }
+
+    /**
+     * Extract the text of an inclusive, 1-based page range. Every page is
+     * terminated by a page break so that later stages can tell pages apart.
+     */
+    static String extractRange(PDDocument document, int startPage, int endPage) throws IOException {
+        PDFTextStripper stripper = new PDFTextStripper();
+        stripper.setStartPage(startPage);
+        stripper.setEndPage(endPage);
+        stripper.setPageEnd(String.valueOf(TextNormalizer.PAGE_BREAK));
+        StringWriter writer = new StringWriter();
+        stripper.writeText(document, writer);
+        return writer.toString();
+    }
+
+    /**
+     * Extracts every laneCount-th page range of a PDF into a bounded queue
+     */
+    private static class PdfLane implements Runnable {
+        private final File file;
+        private final int pageCount;
+        private final int lane;
+        private final int laneCount;
+        private final BlockingQueue<RangeResult> queue;
+
+        PdfLane(File file, int pageCount, int lane, int laneCount, BlockingQueue<RangeResult> queue) {
+            this.file = file;
+            this.pageCount = pageCount;
+            this.lane = lane;
+            this.laneCount = laneCount;
+            this.queue = queue;
+        }
+
+        @Override
+        public void run() {
+            try (PDDocument document = loadPdf(file)) {
+                for (int startPage = lane * PAGES_PER_RANGE + 1; startPage <= pageCount; startPage += laneCount
+                        * PAGES_PER_RANGE) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        return;
+                    }
+                    int endPage = Math.min(pageCount, startPage + PAGES_PER_RANGE - 1);
+                    queue.put(new RangeResult(extractRange(document, startPage, endPage), null));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Throwable e) {
+                logger.error("Failed to extract {} in lane {}: {}", file.getName(), lane, e.getMessage());
+                IOException error = e instanceof IOException ? (IOException) e
+                        : new IOException("Failed to extract " + file.getName(), e);
+                try {
+                    queue.put(new RangeResult(null, error));
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Extracted text of one page range, or the error that stopped its lane
+     */
+    private static class RangeResult {
+        final String text;
+        final IOException error;
+
+        RangeResult(String text, IOException error) {
+            this.text = text;
+            this.error = error;
+        }
+    }
+}
@@ -11,11 +11,22 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import dev.assignment.model.ParentSection;
+import dev.assignment.model.ResourceEntry;
+import dev.assignment.util.Bm25Index;
+import dev.assignment.util.Constants;
+import dev.assignment.util.FileCentroidIndex;
+import dev.assignment.util.PrefixIndex;
+import dev.assignment.util.SegmentMerger;
+import dev.assignment.util.TextNormalizer;
+import dev.assignment.util.TokenCounter;
 import dev.langchain4j.data.document.Document;
+import dev.langchain4j.data.document.DocumentSplitter;
 import dev.langchain4j.data.document.Metadata;
 import dev.langchain4j.data.embedding.Embedding;
 import dev.langchain4j.data.segment.TextSegment;
@@ -35,17 +46,68 @@ public class DocumentIndexingService {
     private final EmbeddingModel embeddingModel;
     private final EmbeddingStore<TextSegment> embeddingStore;
     private final Map<String, Long> indexedFiles;
+    private final Bm25Index lexicalIndex;
+    private final PrefixIndex prefixIndex;
+    private final FileCentroidIndex fileCentroids;
+
+    /**
+     * Bumped on every change to the embedding store, so results derived from
+     * the index can tell when they are stale
+     */
+    private final AtomicLong indexVersion = new AtomicLong();
+
+    /**
+     * Size of the extracted text window handed to the splitter at a time
+     */
+    private static final int SPLIT_WINDOW_CHARS = 32 * 1024;
+
+    /**
+     * Minimum number of letters and digits a segment needs to be embedded
+     */
+    private static final int MIN_SEGMENT_ALPHANUMERIC = 20;
+
+    /**
+     * Maximum segment size and overlap, in embedding model tokens
+     */
+    private static final int MAX_SEGMENT_TOKENS = 120;
+    private static final int SEGMENT_OVERLAP_TOKENS = 12;
+
+    /**
+     * Maximum size of the parent sections segments expand to, in tokens
+     */
+    private static final int MAX_PARENT_TOKENS = 800;
+
+    /**
+     * Metadata key of the ordinal of a segment's parent section
+     */
+    public static final String PARENT_ORDINAL_KEY = "parentOrdinal";
+
+    /**
+     * Maximum number of tokens sent in a single embedding request
+     */
+    private static final int MAX_EMBEDDING_BATCH_TOKENS = 100_000;
 
     public interface ProgressCallback {
         void onProgress(String message, int current, int total);
     }
 
     public DocumentIndexingService(String sessionId, EmbeddingModel embeddingModel,
-            EmbeddingStore<TextSegment> embeddingStore, Map<String, Long> indexedFiles) {
+            EmbeddingStore<TextSegment> embeddingStore, Map<String, Long> indexedFiles, Bm25Index lexicalIndex,
+            PrefixIndex prefixIndex, FileCentroidIndex fileCentroids) {
         this.sessionId = sessionId;
         this.embeddingModel = embeddingModel;
         this.embeddingStore = embeddingStore;
         this.indexedFiles = indexedFiles;
+        this.lexicalIndex = lexicalIndex;
+        this.prefixIndex = prefixIndex;
+        this.fileCentroids = fileCentroids;
+    }
+
+    /**
+     * Get the current version of the index
+     */
+    public long getIndexVersion() {
+        return indexVersion.get();
     }
 
     /**
@@ -55,32 +117,25 @@ public class DocumentIndexingService {
     public void indexKnowledgebase(ResourceService resourceService, ProgressCallback progressCallback)
             throws IOException {
         Path storagePath = resourceService.getStoragePath();
-        File storageDir = storagePath.toFile();
-
-        if (!storageDir.exists() || !storageDir.isDirectory()) {
-            return;
-        }
-
-        File[] files = storageDir.listFiles();
-        if (files == null) {
-            return;
-        }
+        List<ResourceEntry> entries = resourceService.getCatalogEntries();
 
         logger.debug("Starting incremental indexing");
-        logger.debug("Found {} files in directory", files.length);
+        logger.debug("Found {} files in catalog", entries.size());
 
         Set<String> currentFiles = new HashSet<>();
-        List<File> filesToIndex = new ArrayList<>();
-
-        for (File file : files) {
-            if (file.isFile()) {
-                String fileName = file.getName();
-                currentFiles.add(fileName);
-                long lastModified = file.lastModified();
-
-                if (!indexedFiles.containsKey(fileName) || indexedFiles.get(fileName) != lastModified) {
-                    filesToIndex.add(file);
-                }
+        List<ResourceEntry> filesToIndex = new ArrayList<>();
+
+        for (ResourceEntry entry : entries) {
+            String fileName = entry.fileName();
+            currentFiles.add(fileName);
+
+            if (!indexedFiles.containsKey(fileName) || indexedFiles.get(fileName) != entry.lastModified()) {
+                filesToIndex.add(entry);
+            } else if (entry.indexState() != ResourceEntry.IndexState.INDEXED) {
+                // Indexed before the catalog existed
+                DatabaseService.getInstance().updateResourceIndexState(sessionId, fileName,
+                        ResourceEntry.IndexState.INDEXED, entry.contentHash(), entry.characterCount(),
+                        entry.segmentCount());
             }
         }
 
@@ -94,9 +149,10 @@ public class DocumentIndexingService {
         int newIndexed = 0;
         int updated = 0;
 
-        for (File file : filesToIndex) {
-            String fileName = file.getName();
-            long lastModified = file.lastModified();
+        for (ResourceEntry entry : filesToIndex) {
+            String fileName = entry.fileName();
+            File file = storagePath.resolve(fileName).toFile();
+            long lastModified = entry.lastModified();
 
             logger.debug("Indexing {} file: {}",
                     indexedFiles.containsKey(fileName) ? "modified" : "new", fileName);
@@ -133,6 +189,8 @@ public class DocumentIndexingService {
                 progressCallback.onProgress("Saving cache...", totalSteps, totalSteps);
             }
             EmbeddingCacheService.saveCache(sessionId, embeddingStore, indexedFiles);
+            EmbeddingCacheService.saveLexicalIndex(sessionId, lexicalIndex);
+            invalidateCachedAnswers();
         }
 
         if (progressCallback != null) {
@@ -168,6 +226,8 @@ public class DocumentIndexingService {
         indexedFiles.put(fileName, lastModified);
 
         EmbeddingCacheService.saveCache(sessionId, embeddingStore, indexedFiles);
+        EmbeddingCacheService.saveLexicalIndex(sessionId, lexicalIndex);
+        invalidateCachedAnswers();
     }
 
     /**
@@ -180,15 +240,33 @@ public class DocumentIndexingService {
         indexedFiles.remove(fileName);
 
         EmbeddingCacheService.saveCache(sessionId, embeddingStore, indexedFiles);
+        EmbeddingCacheService.saveLexicalIndex(sessionId, lexicalIndex);
+        invalidateCachedAnswers();
     }
 
     /**
-     * Remove all segments of a specific file from the index
+     * Drop the answers cached for this session, which may quote content that
+     * is no longer indexed
+     */
+    private void invalidateCachedAnswers() {
+        DatabaseService databaseService = DatabaseService.getInstance();
+        if (databaseService != null) {
+            databaseService.clearAnswerCache(sessionId);
+        }
+    }
+
+    /**
+     * Remove all segments and parent sections of a specific file from the index
      */
     private void removeFileFromIndex(String fileName) {
+        DatabaseService.getInstance().deleteParentSections(sessionId, fileName);
+        lexicalIndex.removeFile(fileName);
+        prefixIndex.removeFile(fileName);
+        fileCentroids.removeFile(fileName);
+
         List<EmbeddingMatch<TextSegment>> allEmbeddings = embeddingStore.search(
                 EmbeddingSearchRequest.builder()
-                        .queryEmbedding(new Embedding(new float[1536])) // dummy embedding
+                        .queryEmbedding(new Embedding(new float[Constants.EMBEDDING_DIMENSIONS])) // dummy embedding
                         .maxResults(Integer.MAX_VALUE)
                         .minScore(0.0)
                         .build())
@@ -205,29 +283,188 @@ public class DocumentIndexingService {
                 }
             }
         }
+        indexVersion.incrementAndGet();
     }
 
     /**
-     * Index a single document
+     * Index a single document and record the outcome in the resource catalog.
+     * Extracted text is fed to the splitter in windows so that a large document
+     * is never split or embedded as a whole.
      */
     private void indexDocument(File file) throws IOException {
-        String content = ResourceService.readFileContent(file);
-        //String content = Files.readString(file.toPath());
+        StringBuilder pending = new StringBuilder();
+        SplitPosition position = new SplitPosition();
+        TextNormalizer normalizer = new TextNormalizer(
+                ResourceService.getFileExtension(file.getName()).equalsIgnoreCase(".pdf"));
+        int[] segmentCount = { 0 };
+        int[] characterCount = { 0 };
+
+        DatabaseService databaseService = DatabaseService.getInstance();
+        String contentHash = ExtractedTextCacheService.getContentHash(file);
+        databaseService.deleteParentSections(sessionId, file.getName());
+
+        try {
+            ExtractedTextCacheService.extract(file, block -> {
+                characterCount[0] += block.length();
+                normalizer.feed(block, pending::append);
+                if (pending.length() >= SPLIT_WINDOW_CHARS) {
+                    segmentCount[0] += embedSegments(file.getName(), splitPending(file.getName(), pending, position, false));
+                }
+            });
+            normalizer.finish(pending::append);
+            segmentCount[0] += embedSegments(file.getName(), splitPending(file.getName(), pending, position, true));
+        } catch (IOException | RuntimeException e) {
+            // The windows embedded before the failure would otherwise be
+            // indexed a second time by a retry
+            removeFileFromIndex(file.getName());
+            databaseService.updateResourceIndexState(sessionId, file.getName(), ResourceEntry.IndexState.FAILED,
+                    contentHash, null, null);
+            throw e;
+        }
+
+        databaseService.updateResourceIndexState(sessionId, file.getName(), ResourceEntry.IndexState.INDEXED,
+                contentHash, characterCount[0], segmentCount[0]);
+        logger.debug("Successfully indexed {} segments from {}", segmentCount[0], file.getName());
+    }
+
+    /**
+     * Split the pending text window into parent sections, store them, and split
+     * each parent into the small segments that are embedded. Unless this is the
+     * final window, the last parent is held back and its text kept as the start
+     * of the next window, so sections never end at an arbitrary block boundary.
+     *
+     * Each segment gets its ordinal in the document, its character offsets in
+     * the normalized text and the ordinal of its parent.
+     */
+    private List<TextSegment> splitPending(String fileName, StringBuilder pending, SplitPosition position,
+            boolean isFinal) {
+        if (pending.length() == 0 || pending.toString().isBlank()) {
+            position.windowOffset += pending.length();
+            pending.setLength(0);
+            return List.of();
+        }
+
+        List<TextSegment> parents = recursive(MAX_PARENT_TOKENS, 0,
+                TokenCounter.forModel(Constants.EMBEDDING_MODEL)).split(Document.from(pending.toString()));
+
+        int keep = parents.size();
+        int carryStart = -1;
+        if (!isFinal) {
+            if (parents.size() < 2) {
+                return List.of();
+            }
+            carryStart = pending.lastIndexOf(parents.get(parents.size() - 1).text());
+            if (carryStart >= 0) {
+                keep--;
+            }
+        }
+
+        DocumentSplitter childSplitter = recursive(MAX_SEGMENT_TOKENS, SEGMENT_OVERLAP_TOKENS,
+                TokenCounter.forModel(Constants.EMBEDDING_MODEL));
+        List<ParentSection> sections = new ArrayList<>();
+        List<TextSegment> children = new ArrayList<>();
+        int parentSearchFrom = 0;
+
+        for (int i = 0; i < keep; i++) {
+            String parentText = parents.get(i).text();
+            int parentStart = pending.indexOf(parentText, parentSearchFrom);
+            if (parentStart >= 0) {
+                parentSearchFrom = parentStart + 1;
+            }
+
+            int parentOrdinal = position.nextParentOrdinal++;
+            if (parentStart >= 0) {
+                sections.add(new ParentSection(fileName, parentOrdinal, position.windowOffset + parentStart,
+                        position.windowOffset + parentStart + parentText.length(), parentText));
+            }
+
+            int childSearchFrom = 0;
+            for (TextSegment child : childSplitter.split(Document.from(parentText))) {
+                Metadata metadata = new Metadata();
+                metadata.put(SegmentMerger.ORDINAL_KEY, position.nextOrdinal++);
+
+                // Children whose position is unknown are indexed without a parent
+                int childStart = parentText.indexOf(child.text(), childSearchFrom);
+                if (parentStart >= 0 && childStart >= 0) {
+                    int start = position.windowOffset + parentStart + childStart;
+                    metadata.put(SegmentMerger.START_OFFSET_KEY, start);
+                    metadata.put(SegmentMerger.END_OFFSET_KEY, start + child.text().length());
+                    metadata.put(PARENT_ORDINAL_KEY, parentOrdinal);
+                    childSearchFrom = childStart + 1;
+                }
+                children.add(TextSegment.from(child.text(), metadata));
+            }
+        }
+
+        DatabaseService.getInstance().saveParentSections(sessionId, sections);
 
-        Metadata metadata = new Metadata();
-        metadata.put("fileName", file.getName());
-        Document document = Document.from(content, metadata);
+        if (carryStart >= 0) {
+            pending.delete(0, carryStart);
+            position.windowOffset += carryStart;
+        } else {
+            position.windowOffset += pending.length();
+            pending.setLength(0);
+        }
+        return children;
+    }
 
-        List<TextSegment> segments = recursive(500, 50).split(document);
+    /**
+     * Position of the splitter in a document's normalized text
+     */
+    private static class SplitPosition {
+        int windowOffset = 0;
+        int nextOrdinal = 0;
+        int nextParentOrdinal = 0;
+    }
+
+    /**
+     * Embed a batch of segments of a file and add them to the store, skipping
+     * segments with too little text to be useful as context. Each segment's
+     * token count is stored in its metadata, and requests are packed up to
+     * MAX_EMBEDDING_BATCH_TOKENS using those counts.
+     */
+    private int embedSegments(String fileName, List<TextSegment> segments) {
+        List<TextSegment> batch = new ArrayList<>();
+        int batchTokens = 0;
+        int embedded = 0;
 
         for (TextSegment segment : segments) {
-            Metadata segmentMetadata = new Metadata();
-            segmentMetadata.put("fileName", file.getName());
-            TextSegment segmentWithMetadata = TextSegment.from(segment.text(), segmentMetadata);
+            if (TextNormalizer.isNearEmpty(segment.text(), MIN_SEGMENT_ALPHANUMERIC)) {
+                continue;
+            }
+            int tokenCount = TokenCounter.count(segment.text(), Constants.EMBEDDING_MODEL);
+
+            if (!batch.isEmpty() && batchTokens + tokenCount > MAX_EMBEDDING_BATCH_TOKENS) {
+                embedBatch(batch, batchTokens);
+                embedded += batch.size();
+                batch = new ArrayList<>();
+                batchTokens = 0;
+            }
+
+            Metadata segmentMetadata = segment.metadata().copy();
+            segmentMetadata.put("fileName", fileName);
+            TokenCounter.storeCount(segmentMetadata, tokenCount, Constants.EMBEDDING_MODEL);
+            batch.add(TextSegment.from(segment.text(), segmentMetadata));
+            batchTokens += tokenCount;
+        }
+
+        if (!batch.isEmpty()) {
+            embedBatch(batch, batchTokens);
+            embedded += batch.size();
+        }
+        return embedded;
+    }
 
-            Embedding embedding = embeddingModel.embed(segmentWithMetadata).content();
-            embeddingStore.add(embedding, segmentWithMetadata);
+    private void embedBatch(List<TextSegment> batch, int batchTokens) {
+        List<Embedding> embeddings = embeddingModel.embedAll(batch).content();
+        List<String> ids = embeddingStore.addAll(embeddings, batch);
+        for (int i = 0; i < batch.size(); i++) {
+            EmbeddingMatch<TextSegment> entry = new EmbeddingMatch<>(0.0, ids.get(i), embeddings.get(i), batch.get(i));
+            lexicalIndex.add(entry);
+            prefixIndex.add(entry);
+            fileCentroids.add(entry);
         }
-        logger.debug("Successfully indexed {} segments from {}", segments.size(), file.getName());
+        indexVersion.incrementAndGet();
+        logger.debug("Embedded {} segments ({} tokens)", batch.size(), batchTokens);
     }
 }
@@ -1,5 +1,9 @@
 package dev.assignment.service;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -12,6 +16,11 @@ import java.util.Map;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import dev.assignment.util.Bm25Index;
+import dev.assignment.util.Constants;
+import dev.assignment.util.DiskGraphIndex;
+import dev.assignment.util.FileCentroidIndex;
+import dev.assignment.util.PrefixIndex;
 import dev.langchain4j.data.document.Metadata;
 import dev.langchain4j.data.embedding.Embedding;
 import dev.langchain4j.data.segment.TextSegment;
@@ -62,12 +71,12 @@ public class EmbeddingCacheService {
             for (int i = 0; i < count; i++) {
                 float[] embeddingVector = (float[]) ois.readObject();
                 String segmentText = (String) ois.readObject();
-                Map<String, String> metadataMap = (Map<String, String>) ois.readObject();
+                Map<String, Object> metadataMap = (Map<String, Object>) ois.readObject();
 
                 // Reconstruct embedding and segment
                 Embedding embedding = new Embedding(embeddingVector);
                 Metadata metadata = new Metadata();
-                metadataMap.forEach(metadata::put);
+                metadataMap.forEach((key, value) -> putMetadata(metadata, key, value));
                 TextSegment segment = TextSegment.from(segmentText, metadata);
 
                 embeddingStore.add(embedding, segment);
@@ -92,13 +101,7 @@ public class EmbeddingCacheService {
             oos.writeObject(indexedFiles);
 
             // Get all embeddings from store
-            List<EmbeddingMatch<TextSegment>> allEmbeddings = embeddingStore.search(
-                    EmbeddingSearchRequest.builder()
-                            .queryEmbedding(new Embedding(new float[1536])) // dummy embedding
-                            .maxResults(Integer.MAX_VALUE)
-                            .minScore(0.0)
-                            .build())
-                    .matches();
+            List<EmbeddingMatch<TextSegment>> allEmbeddings = getAllEmbeddings(embeddingStore);
 
             // Write count
             oos.writeInt(allEmbeddings.size());
@@ -108,10 +111,11 @@ public class EmbeddingCacheService {
                 oos.writeObject(match.embedding().vector());
                 oos.writeObject(match.embedded().text());
 
-                // Convert metadata to serializable map
-                Map<String, String> metadataMap = new HashMap<>();
+                // Convert metadata to serializable map, keeping numeric values
+                // such as token counts as numbers
+                Map<String, Object> metadataMap = new HashMap<>();
                 if (match.embedded().metadata() != null) {
-                    match.embedded().metadata().toMap().forEach((k, v) -> metadataMap.put(k, v.toString()));
+                    metadataMap.putAll(match.embedded().metadata().toMap());
                 }
                 oos.writeObject(metadataMap);
             }
@@ -122,10 +126,219 @@ public class EmbeddingCacheService {
         }
     }
 
+    /**
+     * Load the lexical index of a session, rebuilding it from the embedding
+     * store if it is missing or does not match the store
+     */
+    public static void loadLexicalIndex(String sessionId, EmbeddingStore<TextSegment> embeddingStore,
+            Bm25Index lexicalIndex) {
+        List<EmbeddingMatch<TextSegment>> allEmbeddings = getAllEmbeddings(embeddingStore);
+        File indexFile = getLexicalIndexFile(sessionId);
+
+        if (indexFile.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+                if (lexicalIndex.readFrom(in, allEmbeddings)) {
+                    logger.info("Loaded lexical index of {} segments", lexicalIndex.size());
+                    return;
+                }
+                logger.info("Lexical index is out of date, rebuilding");
+            } catch (Exception e) {
+                logger.warn("Failed to load lexical index: {}", e.getMessage());
+            }
+        }
+
+        lexicalIndex.rebuild(allEmbeddings);
+        if (lexicalIndex.size() > 0) {
+            saveLexicalIndex(sessionId, lexicalIndex);
+        }
+    }
+
+    /**
+     * Save the lexical index of a session to disk
+     */
+    public static void saveLexicalIndex(String sessionId, Bm25Index lexicalIndex) {
+        File indexFile = getLexicalIndexFile(sessionId);
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)))) {
+            lexicalIndex.writeTo(out);
+            logger.debug("Saved lexical index of {} segments", lexicalIndex.size());
+        } catch (Exception e) {
+            logger.error("Failed to save lexical index: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Build the per-file centroids of a session from the embedding store
+     */
+    public static void loadFileCentroids(EmbeddingStore<TextSegment> embeddingStore, FileCentroidIndex fileCentroids) {
+        fileCentroids.rebuild(getAllEmbeddings(embeddingStore));
+        logger.debug("Built centroids of {} files", fileCentroids.getFileCount());
+    }
+
+    /**
+     * Load the prefix search setting of a session and build its prefix index
+     * from the embedding store
+     */
+    public static void loadPrefixIndex(String sessionId, EmbeddingStore<TextSegment> embeddingStore,
+            PrefixIndex prefixIndex) {
+        int dimensions = loadPrefixDimensions(sessionId);
+        prefixIndex.setDimensions(dimensions, dimensions > 0 ? getAllEmbeddings(embeddingStore) : List.of());
+        if (dimensions > 0) {
+            logger.info("Built {}-dimension prefix index of {} segments", dimensions, prefixIndex.size());
+        }
+    }
+
+    /**
+     * Change the prefix search setting of a session, rebuilding its prefix
+     * index from the embedding store
+     */
+    public static void updatePrefixIndex(String sessionId, EmbeddingStore<TextSegment> embeddingStore,
+            PrefixIndex prefixIndex, int dimensions) {
+        savePrefixDimensions(sessionId, dimensions);
+        prefixIndex.setDimensions(dimensions, dimensions > 0 ? getAllEmbeddings(embeddingStore) : List.of());
+    }
+
+    /**
+     * Get the prefix length used by a session's two-stage vector search
+     *
+     * @return The number of dimensions, or 0 for exact search
+     */
+    public static int loadPrefixDimensions(String sessionId) {
+        File settingsFile = getSearchSettingsFile(sessionId);
+        if (!settingsFile.exists()) {
+            return 0;
+        }
+
+        try (DataInputStream in = new DataInputStream(new FileInputStream(settingsFile))) {
+            int dimensions = in.readInt();
+            return Constants.PREFIX_SEARCH_DIMENSIONS.contains(dimensions) ? dimensions : 0;
+        } catch (Exception e) {
+            logger.warn("Failed to load search settings: {}", e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Save the prefix length used by a session's two-stage vector search
+     */
+    public static void savePrefixDimensions(String sessionId, int dimensions) {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(getSearchSettingsFile(sessionId)))) {
+            out.writeInt(dimensions);
+        } catch (Exception e) {
+            logger.error("Failed to save search settings: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Build a prefix index of the given length from the embedding store,
+     * without changing the session's saved search setting
+     */
+    public static void buildPrefixIndex(EmbeddingStore<TextSegment> embeddingStore, PrefixIndex prefixIndex,
+            int dimensions) {
+        prefixIndex.setDimensions(dimensions, dimensions > 0 ? getAllEmbeddings(embeddingStore) : List.of());
+    }
+
+    /**
+     * Open the disk-resident graph index of a session, building it from the
+     * embedding store if it is missing or does not match the store. Opening
+     * resolves the segments through the lexical index, which holds every store
+     * entry by key; only a build lists the store.
+     *
+     * @return The index, or null if it could not be built
+     */
+    public static DiskGraphIndex loadGraphIndex(String sessionId, EmbeddingStore<TextSegment> embeddingStore,
+            Bm25Index lexicalIndex) {
+        File indexFile = getGraphIndexFile(sessionId);
+        if (lexicalIndex.size() == 0) {
+            return null;
+        }
+
+        try {
+            if (indexFile.exists()) {
+                DiskGraphIndex graphIndex = DiskGraphIndex.open(indexFile, lexicalIndex.size(),
+                        lexicalIndex::getEntry);
+                if (graphIndex != null) {
+                    logger.info("Opened graph index of {} segments", graphIndex.size());
+                    return graphIndex;
+                }
+                logger.info("Graph index is out of date, rebuilding");
+            }
+
+            List<EmbeddingMatch<TextSegment>> allEmbeddings = getAllEmbeddings(embeddingStore);
+            if (allEmbeddings.isEmpty()) {
+                return null;
+            }
+            long start = System.currentTimeMillis();
+            DiskGraphIndex.build(indexFile, allEmbeddings);
+            logger.info("Built graph index of {} segments in {} ms", allEmbeddings.size(),
+                    System.currentTimeMillis() - start);
+            return DiskGraphIndex.open(indexFile, lexicalIndex.size(), lexicalIndex::getEntry);
+        } catch (Exception e) {
+            logger.error("Failed to load graph index: {}", e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Delete the graph index of a session that no longer needs one
+     */
+    public static void deleteGraphIndex(String sessionId) {
+        File indexFile = getGraphIndexFile(sessionId);
+        if (indexFile.exists() && indexFile.delete()) {
+            logger.info("Deleted graph index of session {}", sessionId);
+        }
+    }
+
+    private static File getGraphIndexFile(String sessionId) {
+        return new File(getCacheFile(sessionId).getParentFile(), sessionId + "_graph.index");
+    }
+
+    private static File getSearchSettingsFile(String sessionId) {
+        return new File(getCacheFile(sessionId).getParentFile(), sessionId + "_search.cache");
+    }
+
+    private static File getLexicalIndexFile(String sessionId) {
+        return new File(getCacheFile(sessionId).getParentFile(), sessionId + "_bm25.cache");
+    }
+
+    /**
+     * Get every entry of an embedding store
+     */
+    private static List<EmbeddingMatch<TextSegment>> getAllEmbeddings(EmbeddingStore<TextSegment> embeddingStore) {
+        return embeddingStore.search(
+                EmbeddingSearchRequest.builder()
+                        .queryEmbedding(new Embedding(new float[Constants.EMBEDDING_DIMENSIONS])) // dummy embedding
+                        .maxResults(Integer.MAX_VALUE)
+                        .minScore(0.0)
+                        .build())
+                .matches();
+    }
+
+    /**
+     * Put a cached metadata value back with its original type
+     */
+    private static void putMetadata(Metadata metadata, String key, Object value) {
+        if (value instanceof Integer) {
+            metadata.put(key, (Integer) value);
+        } else if (value instanceof Long) {
+            metadata.put(key, (Long) value);
+        } else if (value instanceof Float) {
+            metadata.put(key, (Float) value);
+        } else if (value instanceof Double) {
+            metadata.put(key, (Double) value);
+        } else {
+            metadata.put(key, value.toString());
+        }
+    }
+
     /**
      * Delete the embedding cache for a session
      */
     public static void deleteCache(String sessionId) {
+        getLexicalIndexFile(sessionId).delete();
+        getSearchSettingsFile(sessionId).delete();
+        getGraphIndexFile(sessionId).delete();
+
         File cacheFile = getCacheFile(sessionId);
         if (cacheFile.exists()) {
             if (cacheFile.delete()) {
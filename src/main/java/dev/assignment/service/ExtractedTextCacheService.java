@@ -0,0 +1,304 @@
+package dev.assignment.service;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Service for the persistent extracted-text cache. The plain text of every
+ * resource is stored once as a gzip sidecar keyed by the SHA-256 of the file
+ * content, next to a small meta file holding its character count, so PDFs are
+ * parsed only the first time they are seen.
+ */
+public class ExtractedTextCacheService {
+
+    private static final Logger logger = LogManager.getLogger(ExtractedTextCacheService.class);
+    private static final String EXTRACTED_TEXT_DIR = "extracted_text_cache";
+    private static final int READ_BUFFER_CHARS = 64 * 1024;
+
+    /**
+     * Version of the extracted text format, bumped whenever the extractor output
+     * changes so that older sidecars are no longer used
+     */
+    private static final int SIDECAR_VERSION = 2;
+
+    /**
+     * Age below which unreferenced entries are kept by a sweep, since a file
+     * being indexed has its sidecar written before its catalog entry records
+     * the content hash
+     */
+    private static final long SWEEP_GRACE_MILLIS = 60 * 60 * 1000;
+
+    private static File cacheDir = new File(EXTRACTED_TEXT_DIR);
+
+    /**
+     * Content hashes of files already hashed in this process, keyed by path,
+     * size and modification time
+     */
+    private static final Map<String, String> hashMemo = new ConcurrentHashMap<>();
+
+    private ExtractedTextCacheService() {
+        // Prevent instantiation
+    }
+
+    /**
+     * Get the cache directory, creating it if necessary
+     */
+    private static File getCacheDir() {
+        if (!cacheDir.exists()) {
+            cacheDir.mkdirs();
+        }
+        return cacheDir;
+    }
+
+    /**
+     * Point the cache at another directory, for tests
+     */
+    static void setCacheDir(File dir) {
+        cacheDir = dir;
+    }
+
+    private static File getTextFile(String contentHash) {
+        return new File(getCacheDir(), contentHash + ".v" + SIDECAR_VERSION + ".txt.gz");
+    }
+
+    private static File getMetaFile(String contentHash) {
+        return new File(getCacheDir(), contentHash + ".v" + SIDECAR_VERSION + ".meta");
+    }
+
+    /**
+     * Get the SHA-256 of a file's content as a hex string
+     */
+    public static String getContentHash(File file) throws IOException {
+        String memoKey = file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified();
+        String cached = hashMemo.get(memoKey);
+        if (cached != null) {
+            return cached;
+        }
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+
+        String hash = HexFormat.of().formatHex(digest.digest());
+        hashMemo.put(memoKey, hash);
+        return hash;
+    }
+
+    /**
+     * Extract the text of a file block by block, from the sidecar if one exists
+     * or from the file itself otherwise, writing the sidecar on the way
+     */
+    public static void extract(File file, DocumentExtractionService.TextBlockCallback callback)
+            throws IOException {
+        String contentHash = getContentHash(file);
+        File textFile = getTextFile(contentHash);
+
+        if (textFile.exists()) {
+            boolean[] delivered = { false };
+            try {
+                readSidecar(textFile, block -> {
+                    delivered[0] = true;
+                    callback.onBlock(block);
+                });
+                return;
+            } catch (IOException e) {
+                logger.warn("Discarding unreadable extracted text for {}: {}", file.getName(), e.getMessage());
+                textFile.delete();
+                if (delivered[0]) {
+                    throw e;
+                }
+            }
+        }
+
+        extractAndStore(file, contentHash, callback);
+    }
+
+    /**
+     * Read the full extracted text of a file
+     */
+    public static String readText(File file) throws IOException {
+        StringBuilder content = new StringBuilder();
+        extract(file, content::append);
+        return content.toString();
+    }
+
+    /**
+     * Get the character count of a file's extracted text without loading it
+     */
+    public static int getCharacterCount(File file) throws IOException {
+        String contentHash = getContentHash(file);
+        File metaFile = getMetaFile(contentHash);
+
+        if (metaFile.exists()) {
+            try {
+                return Integer.parseInt(Files.readString(metaFile.toPath()).trim());
+            } catch (NumberFormatException e) {
+                logger.warn("Ignoring corrupt extracted text meta for {}", file.getName());
+            }
+        }
+
+        int[] count = { 0 };
+        extract(file, block -> count[0] += block.length());
+        writeMeta(contentHash, count[0]);
+        return count[0];
+    }
+
+    /**
+     * Extract a file while streaming its text into a new sidecar, which only
+     * replaces the cache entry once extraction has succeeded
+     */
+    private static void extractAndStore(File file, String contentHash,
+            DocumentExtractionService.TextBlockCallback callback) throws IOException {
+        Path tempFile = Files.createTempFile(getCacheDir().toPath(), contentHash, ".tmp");
+        int[] count = { 0 };
+
+        try {
+            try (Writer writer = new OutputStreamWriter(
+                    new GZIPOutputStream(Files.newOutputStream(tempFile)), StandardCharsets.UTF_8)) {
+                DocumentExtractionService.extract(file, block -> {
+                    writer.write(block);
+                    count[0] += block.length();
+                    callback.onBlock(block);
+                });
+            }
+
+            writeMeta(contentHash, count[0]);
+            Files.move(tempFile, getTextFile(contentHash).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.debug("Cached extracted text of {} ({} chars)", file.getName(), count[0]);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    private static void readSidecar(File textFile, DocumentExtractionService.TextBlockCallback callback)
+            throws IOException {
+        char[] buffer = new char[READ_BUFFER_CHARS];
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(textFile)), StandardCharsets.UTF_8))) {
+            int read;
+            while ((read = reader.read(buffer, 0, buffer.length)) != -1) {
+                if (read > 0) {
+                    callback.onBlock(new String(buffer, 0, read));
+                }
+            }
+        }
+    }
+
+    private static void writeMeta(String contentHash, int characterCount) {
+        try {
+            Files.writeString(getMetaFile(contentHash).toPath(), Integer.toString(characterCount));
+        } catch (IOException e) {
+            logger.warn("Failed to write extracted text meta: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Delete the cache entry of a content hash unless a resource of any
+     * session still has that content
+     */
+    public static void evict(String contentHash) {
+        if (contentHash == null || DatabaseService.getInstance().isContentHashReferenced(contentHash)) {
+            return;
+        }
+        int deleted = deleteEntries(contentHash);
+        if (deleted > 0) {
+            logger.debug("Evicted extracted text {}", contentHash);
+        }
+    }
+
+    /**
+     * Delete every cache entry that no resource refers to any more, including
+     * sidecars of older format versions and leftover temp files
+     */
+    public static void sweep() {
+        Set<String> liveHashes;
+        try {
+            liveHashes = DatabaseService.getInstance().getReferencedContentHashes();
+        } catch (RuntimeException e) {
+            logger.warn("Skipping extracted text cache sweep: {}", e.getMessage());
+            return;
+        }
+        int deleted = sweep(liveHashes, System.currentTimeMillis() - SWEEP_GRACE_MILLIS);
+        if (deleted > 0) {
+            logger.info("Removed {} unused extracted text cache files", deleted);
+        }
+    }
+
+    /**
+     * Delete the cache files of content hashes outside the live set, and of
+     * older format versions, last modified before the cutoff
+     *
+     * @return The number of files deleted
+     */
+    static int sweep(Set<String> liveHashes, long cutoffMillis) {
+        File[] files = getCacheDir().listFiles();
+        if (files == null) {
+            return 0;
+        }
+
+        String currentVersion = ".v" + SIDECAR_VERSION + ".";
+        int deleted = 0;
+        for (File file : files) {
+            if (file.lastModified() >= cutoffMillis) {
+                continue;
+            }
+            String name = file.getName();
+            int dot = name.indexOf('.');
+            String contentHash = dot > 0 ? name.substring(0, dot) : name;
+            boolean live = liveHashes.contains(contentHash) && name.startsWith(currentVersion, dot);
+            if (!live && file.delete()) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Delete the sidecars, meta files and temp files of a content hash
+     */
+    private static int deleteEntries(String contentHash) {
+        File[] files = getCacheDir().listFiles((dir, name) -> name.startsWith(contentHash + "."));
+        int deleted = 0;
+        if (files != null) {
+            for (File file : files) {
+                if (file.delete()) {
+                    deleted++;
+                }
+            }
+        }
+        return deleted;
+    }
+}
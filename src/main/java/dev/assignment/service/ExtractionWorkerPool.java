@@ -0,0 +1,331 @@
+package dev.assignment.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Singleton pool of extraction worker JVMs. PDF parsing runs in the workers
+ * with their own heap limit, so a malformed or enormous document can only take
+ * down its worker, never the UI process. A document whose worker dies fails;
+ * it is never retried in process.
+ */
+public class ExtractionWorkerPool {
+
+    private static final Logger logger = LogManager.getLogger(ExtractionWorkerPool.class);
+    private static ExtractionWorkerPool instance;
+
+    /**
+     * Maximum heap of a single worker JVM
+     */
+    private static final String WORKER_MAX_HEAP = "-Xmx512m";
+
+    /**
+     * Maximum number of worker JVMs
+     */
+    private static final int MAX_WORKERS = Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors() - 1));
+
+    /**
+     * Time a worker may take to send its next frame before it is killed. Only
+     * the wait for the worker is measured, not the time the consumer spends on
+     * the blocks it has already sent.
+     */
+    private static final long FRAME_TIMEOUT_SECONDS = 300;
+
+    /**
+     * Delay before a new worker is started after a worker failure, doubling
+     * with each further failure in a row up to the maximum
+     */
+    private static final long RESTART_BACKOFF_MILLIS = 1_000;
+    private static final long MAX_RESTART_BACKOFF_MILLIS = 60_000;
+
+    private final BlockingQueue<Worker> idleWorkers = new LinkedBlockingQueue<>();
+    private final List<Worker> allWorkers = new ArrayList<>();
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "extraction-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long lastFailureMillis;
+    private volatile boolean available = true;
+
+    /**
+     * Private constructor to prevent instantiation
+     */
+    private ExtractionWorkerPool() {
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown));
+    }
+
+    /**
+     * Get the singleton instance
+     *
+     * @return the singleton instance
+     */
+    public static synchronized ExtractionWorkerPool getInstance() {
+        if (instance == null) {
+            instance = new ExtractionWorkerPool();
+        }
+        return instance;
+    }
+
+    /**
+     * Check if workers can be used. Becomes false once a worker JVM cannot be
+     * started at all, in which case callers extract in process.
+     */
+    public boolean isAvailable() {
+        return available;
+    }
+
+    /**
+     * Extract a file in a worker, forwarding blocks as they arrive
+     *
+     * @throws WorkerUnavailableException If no worker JVM could be started
+     * @throws WorkerFailedException      If the worker died or timed out on the
+     *                                    document; other IOExceptions come from
+     *                                    the document or the callback
+     */
+    public void extract(File file, DocumentExtractionService.TextBlockCallback callback) throws IOException {
+        Worker worker = acquire();
+        boolean healthy = false;
+        try {
+            try {
+                worker.out.writeUTF(file.getAbsolutePath());
+                worker.out.flush();
+            } catch (IOException e) {
+                throw workerFailed(file, e);
+            }
+
+            while (true) {
+                Frame frame = readFrame(worker, file);
+                if (frame.type() == PdfExtractionWorker.FRAME_BLOCK) {
+                    callback.onBlock(frame.text());
+                } else if (frame.type() == PdfExtractionWorker.FRAME_END) {
+                    healthy = true;
+                    consecutiveFailures.set(0);
+                    return;
+                } else {
+                    healthy = true;
+                    consecutiveFailures.set(0);
+                    throw new IOException("Failed to extract " + file.getName() + ": " + frame.text());
+                }
+            }
+        } finally {
+            release(worker, healthy);
+        }
+    }
+
+    /**
+     * Wait for the next frame of a worker, killing the worker if it takes
+     * longer than FRAME_TIMEOUT_SECONDS
+     */
+    private Frame readFrame(Worker worker, File file) throws WorkerFailedException {
+        ScheduledFuture<?> timeout = watchdog.schedule(() -> {
+            logger.warn("Extraction of {} timed out, killing worker", file.getName());
+            worker.process.destroyForcibly();
+        }, FRAME_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        try {
+            byte type = worker.in.readByte();
+            if (type == PdfExtractionWorker.FRAME_BLOCK) {
+                byte[] bytes = new byte[worker.in.readInt()];
+                worker.in.readFully(bytes);
+                return new Frame(type, new String(bytes, StandardCharsets.UTF_8));
+            } else if (type == PdfExtractionWorker.FRAME_END) {
+                return new Frame(type, null);
+            } else if (type == PdfExtractionWorker.FRAME_ERROR) {
+                return new Frame(type, worker.in.readUTF());
+            }
+            throw new IOException("Unexpected frame from extraction worker: " + type);
+        } catch (IOException e) {
+            throw workerFailed(file, e);
+        } finally {
+            timeout.cancel(false);
+        }
+    }
+
+    /**
+     * Record a worker failure, which delays the start of the next worker
+     */
+    private WorkerFailedException workerFailed(File file, IOException cause) {
+        consecutiveFailures.incrementAndGet();
+        lastFailureMillis = System.currentTimeMillis();
+        String message = cause instanceof EOFException ? "Extraction worker crashed while reading "
+                : "Extraction worker failed while reading ";
+        return new WorkerFailedException(message + file.getName(), cause);
+    }
+
+    /**
+     * Wait out the restart backoff of recent worker failures
+     */
+    private void awaitRestartBackoff() throws IOException {
+        int failures = consecutiveFailures.get();
+        if (failures == 0) {
+            return;
+        }
+        long backoff = Math.min(MAX_RESTART_BACKOFF_MILLIS, RESTART_BACKOFF_MILLIS << Math.min(failures - 1, 16));
+        long wait = lastFailureMillis + backoff - System.currentTimeMillis();
+        if (wait <= 0) {
+            return;
+        }
+        logger.info("Extraction workers failed {} times in a row, starting the next one in {} ms", failures, wait);
+        try {
+            Thread.sleep(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting to start an extraction worker", e);
+        }
+    }
+
+    /**
+     * Take an idle worker, starting a new one while below the pool limit
+     */
+    private Worker acquire() throws IOException {
+        Worker worker = idleWorkers.poll();
+        if (worker != null) {
+            return worker;
+        }
+
+        synchronized (allWorkers) {
+            if (allWorkers.size() < MAX_WORKERS) {
+                awaitRestartBackoff();
+                try {
+                    worker = startWorker();
+                } catch (IOException e) {
+                    available = false;
+                    throw new WorkerUnavailableException("Failed to start an extraction worker", e);
+                }
+                allWorkers.add(worker);
+                return worker;
+            }
+        }
+
+        try {
+            return idleWorkers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for an extraction worker", e);
+        }
+    }
+
+    /**
+     * Return a worker to the pool, or discard it if its stream is no longer in a
+     * known state
+     */
+    private void release(Worker worker, boolean healthy) {
+        if (healthy && worker.process.isAlive()) {
+            idleWorkers.offer(worker);
+            return;
+        }
+
+        logger.warn("Discarding extraction worker (pid {})", worker.process.pid());
+        worker.process.destroyForcibly();
+        synchronized (allWorkers) {
+            allWorkers.remove(worker);
+        }
+    }
+
+    /**
+     * Start a worker JVM on the same module or class path as this process
+     */
+    private Worker startWorker() throws IOException {
+        String javaCommand = ProcessHandle.current().info().command()
+                .orElse(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+
+        List<String> command = new ArrayList<>();
+        command.add(javaCommand);
+        command.add(WORKER_MAX_HEAP);
+        command.add("-XX:+ExitOnOutOfMemoryError");
+
+        String modulePath = System.getProperty("jdk.module.path");
+        if (modulePath != null && !modulePath.isEmpty()) {
+            command.add("--module-path");
+            command.add(modulePath);
+            command.add("--module");
+            command.add("dev.assignment/" + PdfExtractionWorker.class.getName());
+        } else {
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(PdfExtractionWorker.class.getName());
+        }
+
+        Process process = new ProcessBuilder(command)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+
+        logger.info("Started extraction worker (pid {})", process.pid());
+        return new Worker(process);
+    }
+
+    /**
+     * Stop all worker JVMs
+     */
+    public void shutdown() {
+        synchronized (allWorkers) {
+            for (Worker worker : allWorkers) {
+                worker.process.destroy();
+            }
+            allWorkers.clear();
+        }
+        idleWorkers.clear();
+        watchdog.shutdownNow();
+    }
+
+    /**
+     * Death or timeout of the worker extracting a document. The document is
+     * the likely cause, so it fails rather than being extracted in process.
+     */
+    public static class WorkerFailedException extends IOException {
+
+        WorkerFailedException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * No worker JVM could be started, so documents must be extracted in
+     * process
+     */
+    public static class WorkerUnavailableException extends IOException {
+
+        WorkerUnavailableException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    private record Frame(byte type, String text) {
+    }
+
+    /**
+     * A running worker JVM and its pipes
+     */
+    private static class Worker {
+        final Process process;
+        final DataOutputStream out;
+        final DataInputStream in;
+
+        Worker(Process process) {
+            this.process = process;
+            this.out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+            this.in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+        }
+    }
+}
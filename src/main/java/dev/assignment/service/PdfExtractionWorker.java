@@ -0,0 +1,68 @@
+package dev.assignment.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Entry point of an out-of-process extraction worker started by
+ * {@link ExtractionWorkerPool}. Reads file paths from stdin and streams the
+ * extracted text back over stdout, one frame per block.
+ *
+ * Protocol (all frames written with DataOutputStream):
+ * request: UTF path
+ * response: any number of BLOCK frames (byte, int length, UTF-8 bytes),
+ * followed by END (byte) or ERROR (byte, UTF message)
+ */
+public class PdfExtractionWorker {
+
+    static final byte FRAME_BLOCK = 1;
+    static final byte FRAME_END = 2;
+    static final byte FRAME_ERROR = 3;
+
+    public static void main(String[] args) {
+        // stdout carries the protocol, so anything else printed (including
+        // console logging) is sent to stderr before any logger is created
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+        System.setOut(new PrintStream(new FileOutputStream(FileDescriptor.err), true));
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(System.in))) {
+            while (true) {
+                String path;
+                try {
+                    path = in.readUTF();
+                } catch (EOFException e) {
+                    // Parent closed the pipe
+                    return;
+                }
+
+                try {
+                    DocumentExtractionService.extractLocally(new File(path), block -> {
+                        byte[] bytes = block.getBytes(StandardCharsets.UTF_8);
+                        out.writeByte(FRAME_BLOCK);
+                        out.writeInt(bytes.length);
+                        out.write(bytes);
+                        out.flush();
+                    });
+                    out.writeByte(FRAME_END);
+                } catch (IOException | RuntimeException e) {
+                    out.writeByte(FRAME_ERROR);
+                    out.writeUTF(String.valueOf(e.getMessage()));
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("Extraction worker stopped: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package dev.assignment.service;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import dev.assignment.util.Constants;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+
+/**
+ * Service for caching query work. The first tier maps contextualized query
+ * text to its embedding, shared by all sessions and persisted across restarts,
+ * so repeated questions skip the embedding API call. The second tier,
+ * RetrievalCache, keeps the reranked matches of a query vector for one index
+ * version of a session.
+ */
+public class QueryCacheService {
+
+    private static final Logger logger = LogManager.getLogger(QueryCacheService.class);
+    private static final String EMBEDDINGS_DIR = "embeddings_cache";
+
+    /**
+     * Maximum number of query embeddings kept, least recently used first out
+     */
+    private static final int MAX_QUERY_EMBEDDINGS = 1000;
+
+    private static final Map<String, float[]> queryEmbeddings = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, float[]> eldest) {
+            return size() > MAX_QUERY_EMBEDDINGS;
+        }
+    };
+
+    private static boolean loaded = false;
+    private static boolean saveScheduled = false;
+
+    private QueryCacheService() {
+        // Prevent instantiation
+    }
+
+    /**
+     * Get the cache file, named after the embedding model so that vectors of a
+     * different model are never reused
+     */
+    private static File getCacheFile() {
+        File cacheDir = new File(EMBEDDINGS_DIR);
+        if (!cacheDir.exists()) {
+            cacheDir.mkdirs();
+        }
+        return new File(cacheDir, "queries_" + Constants.EMBEDDING_MODEL + ".cache");
+    }
+
+    /**
+     * Get the cached embedding of a contextualized query
+     *
+     * @return The embedding, or null if the query has not been embedded before
+     */
+    public static synchronized Embedding getQueryEmbedding(String contextualizedQuery) {
+        loadIfNeeded();
+        float[] vector = queryEmbeddings.get(contextualizedQuery);
+        return vector != null ? new Embedding(vector) : null;
+    }
+
+    /**
+     * Cache the embedding of a contextualized query. The cache file is written
+     * in the background.
+     */
+    public static synchronized void putQueryEmbedding(String contextualizedQuery, Embedding embedding) {
+        loadIfNeeded();
+        queryEmbeddings.put(contextualizedQuery, embedding.vector());
+
+        if (!saveScheduled) {
+            saveScheduled = true;
+            Thread saveThread = new Thread(QueryCacheService::save, "query-cache-save");
+            saveThread.setDaemon(true);
+            saveThread.start();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void loadIfNeeded() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+
+        File cacheFile = getCacheFile();
+        if (!cacheFile.exists()) {
+            return;
+        }
+
+        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(cacheFile))) {
+            queryEmbeddings.putAll((Map<String, float[]>) ois.readObject());
+            logger.debug("Loaded {} cached query embeddings", queryEmbeddings.size());
+        } catch (Exception e) {
+            logger.warn("Failed to load cached query embeddings: {}", e.getMessage());
+            queryEmbeddings.clear();
+        }
+    }
+
+    private static void save() {
+        Map<String, float[]> snapshot;
+        synchronized (QueryCacheService.class) {
+            saveScheduled = false;
+            snapshot = new LinkedHashMap<>(queryEmbeddings);
+        }
+
+        File cacheFile = getCacheFile();
+        File tempFile = new File(cacheFile.getPath() + ".tmp");
+        try {
+            try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(tempFile))) {
+                oos.writeObject(snapshot);
+            }
+            Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            logger.debug("Saved {} cached query embeddings", snapshot.size());
+        } catch (Exception e) {
+            logger.warn("Failed to save cached query embeddings: {}", e.getMessage());
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Reranked matches of recent query vectors, valid for a single index
+     * version and the search configuration they were found with. Entries of
+     * older versions are dropped as soon as the version changes.
+     */
+    public static class RetrievalCache {
+
+        private static final int MAX_ENTRIES = 200;
+
+        private final Map<Integer, CachedRetrieval> entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, CachedRetrieval> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+
+        private long indexVersion = -1;
+
+        /**
+         * Get the matches cached for a query vector
+         *
+         * @param searchConfig Search strategy and settings the matches must
+         *                     have been found with
+         * @return The matches, or null if the vector was not retrieved for this
+         *         index version and search configuration
+         */
+        public synchronized List<EmbeddingMatch<TextSegment>> get(Embedding queryEmbedding, long indexVersion,
+                String searchConfig) {
+            if (indexVersion != this.indexVersion) {
+                return null;
+            }
+            CachedRetrieval cached = entries.get(Arrays.hashCode(queryEmbedding.vector()));
+            if (cached == null || !Arrays.equals(cached.vector(), queryEmbedding.vector())
+                    || !cached.searchConfig().equals(searchConfig)) {
+                return null;
+            }
+            return cached.matches();
+        }
+
+        public synchronized void put(Embedding queryEmbedding, long indexVersion, String searchConfig,
+                List<EmbeddingMatch<TextSegment>> matches) {
+            if (indexVersion < this.indexVersion) {
+                return;
+            }
+            if (indexVersion != this.indexVersion) {
+                entries.clear();
+                this.indexVersion = indexVersion;
+            }
+            entries.put(Arrays.hashCode(queryEmbedding.vector()),
+                    new CachedRetrieval(queryEmbedding.vector(), searchConfig, List.copyOf(matches)));
+        }
+
+        public synchronized void clear() {
+            entries.clear();
+        }
+
+        private record CachedRetrieval(float[] vector, String searchConfig,
+                List<EmbeddingMatch<TextSegment>> matches) {
+        }
+    }
+}
@@ -2,17 +2,44 @@ package dev.assignment.service;
 
 import java.io.File;
 import java.io.IOException;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import dev.assignment.model.CachedAnswer;
+import dev.assignment.model.ParentSection;
 import dev.assignment.model.QueryResponse;
+import dev.assignment.util.Bm25Index;
+import dev.assignment.util.CancellationToken;
+import dev.assignment.util.Constants;
+import dev.assignment.util.ContextPacker;
+import dev.assignment.util.DiskGraphIndex;
+import dev.assignment.util.FileCentroidIndex;
+import dev.assignment.util.PrefixIndex;
+import dev.assignment.util.QueryClassifier;
+import dev.assignment.util.SegmentMerger;
+import dev.assignment.util.TaskScope;
+import dev.assignment.util.TokenCounter;
+import dev.langchain4j.data.document.Metadata;
 import dev.langchain4j.data.embedding.Embedding;
 import dev.langchain4j.data.message.AiMessage;
 import dev.langchain4j.data.message.ChatMessage;
@@ -21,13 +48,20 @@ import dev.langchain4j.data.message.UserMessage;
 import dev.langchain4j.data.segment.TextSegment;
 import dev.langchain4j.model.chat.request.ChatRequest;
 import dev.langchain4j.model.chat.response.ChatResponse;
+import dev.langchain4j.model.chat.response.PartialResponse;
+import dev.langchain4j.model.chat.response.PartialResponseContext;
+import dev.langchain4j.model.chat.response.StreamingChatResponseHandler;
+import dev.langchain4j.model.chat.response.StreamingHandle;
 import dev.langchain4j.model.embedding.EmbeddingModel;
 import dev.langchain4j.model.openai.OpenAiChatModel;
 import dev.langchain4j.model.openai.OpenAiEmbeddingModel;
+import dev.langchain4j.model.openai.OpenAiStreamingChatModel;
+import dev.langchain4j.store.embedding.CosineSimilarity;
 import dev.langchain4j.store.embedding.EmbeddingMatch;
 import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
 import dev.langchain4j.store.embedding.EmbeddingSearchResult;
 import dev.langchain4j.store.embedding.EmbeddingStore;
+import dev.langchain4j.store.embedding.RelevanceScore;
 import dev.langchain4j.store.embedding.inmemory.InMemoryEmbeddingStore;
 
 /**
@@ -41,18 +75,192 @@ public class RAGService {
     private final EmbeddingModel embeddingModel;
     private final EmbeddingStore<TextSegment> embeddingStore;
     private final OpenAiChatModel chatModel;
+    private final OpenAiStreamingChatModel streamingChatModel;
+    private final OpenAiChatModel summaryModel;
     private final List<ChatMessage> sessionHistory;
+
+    /**
+     * Guards sessionHistory, which the history loader, the streaming callbacks
+     * and cancellation all write to
+     */
+    private final Object historyLock = new Object();
     private final Map<String, Long> indexedFiles;
     private final DocumentIndexingService indexingService;
     private final RerankingService rerankingService;
+    private final ContextPacker contextPacker;
+    private final Bm25Index lexicalIndex = new Bm25Index();
+    private final PrefixIndex prefixIndex = new PrefixIndex(0);
+    private final FileCentroidIndex fileCentroids = new FileCentroidIndex();
+    private final QueryCacheService.RetrievalCache retrievalCache = new QueryCacheService.RetrievalCache();
+
+    /**
+     * Retrieval started for the draft being typed, guarded by speculationLock
+     */
+    private SpeculativeRetrieval speculativeRetrieval;
+    private final Object speculationLock = new Object();
+
+    /**
+     * Number of messages added to the history so far, so that derived state
+     * can tell when the history has moved on even if the window size stays
+     */
+    private volatile int historyRevision;
+
+    /**
+     * Context of the last retrieved turn, reused by follow-ups on its answer
+     */
+    private volatile PreviousContext previousContext;
+
+    /**
+     * Number of queries answered by each intent of the query classifier
+     */
+    private final AtomicLongArray intentCounts = new AtomicLongArray(QueryClassifier.Intent.values().length);
+
+    private final SearchPlanner searchPlanner = new SearchPlanner();
+
+    /**
+     * Disk-resident graph index of a large session and the index version it
+     * was built for, null for sessions small enough to search in memory
+     */
+    private volatile GraphIndexSnapshot graphIndex;
+    private final Object searchStructuresLock = new Object();
+
+    /**
+     * Whether a rebuild of the stale graph index is waiting for indexing to
+     * settle, guarded by searchStructuresLock
+     */
+    private boolean graphRebuildScheduled = false;
+
+    /**
+     * Whether the graph index was opened since the session was loaded,
+     * guarded by searchStructuresLock
+     */
+    private boolean graphIndexOpened = false;
+
+    /**
+     * Whether the prefix index was chosen for the session rather than left to
+     * the search planner
+     */
+    private volatile boolean prefixForced;
+
+    /**
+     * Whether answers are reused for near-duplicate questions over the same
+     * retrieved context
+     */
+    private volatile boolean answerReuse = true;
+
+    /**
+     * Running summary of the turns that have left the history window, null if
+     * none have been summarized
+     */
+    private volatile String conversationSummary;
+
+    /**
+     * Messages dropped from the window that wait to be folded into the summary
+     */
+    private final List<ChatMessage> pendingSummary = new ArrayList<>();
+    private boolean summaryScheduled = false;
+
+    /**
+     * Incremented when the history is cleared, so that a summary started
+     * before is discarded
+     */
+    private int summaryGeneration = 0;
+
+    private final Future<?> historyLoad;
 
     public interface ProgressCallback {
         void onProgress(String message, int current, int total);
     }
 
+    /**
+     * Callback for streamed query responses
+     */
+    public interface StreamingCallback {
+        void onSources(List<String> sources);
+
+        void onToken(String token);
+
+        void onComplete(QueryResponse response);
+
+        /**
+         * Called instead of onComplete when the query is cancelled, with the text
+         * streamed so far (empty if generation had not started)
+         */
+        void onCancelled(QueryResponse partialResponse);
+
+        void onError(Throwable error);
+    }
+
+    /**
+     * Maximum number of messages, besides the system message, kept in the
+     * session history and sent with each request
+     */
+    private static final int HISTORY_WINDOW_MESSAGES = 20;
+
+    /**
+     * Maximum number of dropped messages waiting to be summarized; older ones
+     * are given up if the summary model keeps failing
+     */
+    private static final int MAX_PENDING_SUMMARY_MESSAGES = 2 * HISTORY_WINDOW_MESSAGES;
+    private static final int SUMMARY_MAX_TOKENS = 400;
+
     private static final int MAX_RESULTS = 5;
     private static final double MIN_SCORE = 0.5;
-    private static final int MAX_RESULTS_BEFORE_RERANK = 15;
+    private static final int MAX_RESULTS_BEFORE_RERANK = 30;
+
+    /**
+     * Number of first-pass candidates of prefix search re-scored with the full
+     * vectors
+     */
+    private static final int PREFIX_SHORTLIST_SIZE = MAX_RESULTS_BEFORE_RERANK * 4;
+
+    /**
+     * Candidate list size of graph index searches
+     */
+    private static final int GRAPH_SEARCH_LIST_SIZE = MAX_RESULTS_BEFORE_RERANK * 4;
+
+    /**
+     * Time without index changes before a stale graph index is rebuilt, so
+     * that a batch of imports costs one rebuild rather than one per file
+     */
+    private static final long GRAPH_REBUILD_QUIET_MILLIS = 30_000;
+
+    /**
+     * Balance of relevance against redundancy when selecting the final results
+     */
+    private static final double MMR_LAMBDA = 0.7;
+
+    /**
+     * Rank offset of reciprocal rank fusion, damping the weight of top ranks
+     */
+    private static final int RRF_K = 60;
+
+    /**
+     * Minimum word overlap between a draft and the sent message for the draft's
+     * speculative retrieval to be reused
+     */
+    private static final double SPECULATIVE_MIN_SIMILARITY = 0.9;
+
+    /**
+     * Minimum cosine similarity between query embeddings for a cached answer
+     * to be reused
+     */
+    private static final double ANSWER_CACHE_MIN_SIMILARITY = 0.97;
+
+    /**
+     * Deadlines of the query stages. The model calls are additionally bounded
+     * by the HTTP timeouts of the models.
+     */
+    private static final Duration HISTORY_DEADLINE = Duration.ofSeconds(10);
+    private static final Duration SAVE_DEADLINE = Duration.ofSeconds(10);
+    private static final Duration RETRIEVAL_DEADLINE = Duration.ofSeconds(30);
+    private static final Duration CHAT_DEADLINE = Duration.ofSeconds(120);
+    private static final Duration SUMMARY_DEADLINE = Duration.ofSeconds(60);
+
+    /**
+     * Runs blocking model calls so that they can be interrupted on cancellation
+     */
+    private static final ExecutorService requestExecutor = Executors.newVirtualThreadPerTaskExecutor();
 
     private final String sessionId;
 
@@ -65,43 +273,367 @@ public class RAGService {
 
         this.embeddingModel = OpenAiEmbeddingModel.builder()
                 .apiKey(apiKey)
-                .modelName("text-embedding-3-small")
+                .modelName(Constants.EMBEDDING_MODEL)
+                .timeout(RETRIEVAL_DEADLINE)
                 .build();
         this.embeddingStore = new InMemoryEmbeddingStore<>();
         this.chatModel = OpenAiChatModel.builder()
                 .apiKey(apiKey)
                 .modelName(modelName)
                 .temperature(1.0)
+                .timeout(CHAT_DEADLINE)
+                .build();
+        this.streamingChatModel = OpenAiStreamingChatModel.builder()
+                .apiKey(apiKey)
+                .modelName(modelName)
+                .temperature(1.0)
+                .timeout(CHAT_DEADLINE)
+                .build();
+        this.summaryModel = OpenAiChatModel.builder()
+                .apiKey(apiKey)
+                .modelName(Constants.SUMMARY_MODEL)
+                .maxTokens(SUMMARY_MAX_TOKENS)
+                .timeout(SUMMARY_DEADLINE)
                 .build();
 
-        this.indexingService = new DocumentIndexingService(sessionId, embeddingModel, embeddingStore, indexedFiles);
-        this.rerankingService = new RerankingService();
+        this.indexingService = new DocumentIndexingService(sessionId, embeddingModel, embeddingStore, indexedFiles,
+                lexicalIndex, prefixIndex, fileCentroids);
+        this.rerankingService = new RerankingService(lexicalIndex);
+        this.contextPacker = new ContextPacker(modelName);
 
-        sessionHistory.add(SystemMessage.from(
-                "You are a helpful AI assistant. Use the provided context to answer questions accurately. " +
-                        "If the context doesn't contain relevant information, say so politely. " +
-                        "In your response, do not use any markdown formatting. Simple plain text is preferred."));
+        synchronized (historyLock) {
+            sessionHistory.add(SystemMessage.from(
+                    "You are a helpful AI assistant. Use the provided context to answer questions accurately. " +
+                            "If the context doesn't contain relevant information, say so politely. " +
+                            "In your response, do not use any markdown formatting. Simple plain text is preferred."));
+        }
 
-        loadSessionHistory();
+        // The history is only needed by the first query, so it loads while the
+        // embedding cache is read
+        this.historyLoad = requestExecutor.submit(this::loadSessionHistory);
 
         EmbeddingCacheService.loadCache(sessionId, embeddingStore, indexedFiles);
+        EmbeddingCacheService.loadLexicalIndex(sessionId, embeddingStore, lexicalIndex);
+        EmbeddingCacheService.loadPrefixIndex(sessionId, embeddingStore, prefixIndex);
+        EmbeddingCacheService.loadFileCentroids(embeddingStore, fileCentroids);
+        this.prefixForced = prefixIndex.isEnabled();
+        maintainSearchStructures();
+    }
+
+    /**
+     * Get the statistics the search planner works from
+     */
+    private SearchPlanner.IndexStats getIndexStats() {
+        return new SearchPlanner.IndexStats(fileCentroids.getSegmentCount(), fileCentroids.getFileCount(),
+                Constants.EMBEDDING_DIMENSIONS);
+    }
+
+    /**
+     * Build or drop the graph and prefix indexes in the background as the
+     * search planner asks for them. Until the graph index covers the current
+     * index version, searches use the other strategies.
+     */
+    private void maintainSearchStructures() {
+        requestExecutor.submit(() -> {
+            synchronized (searchStructuresLock) {
+                long indexVersion = indexingService.getIndexVersion();
+                SearchPlanner.IndexStats stats = getIndexStats();
+
+                if (searchPlanner.wantsGraph(stats)) {
+                    GraphIndexSnapshot current = graphIndex;
+                    if (!graphIndexOpened) {
+                        // Opens the file saved by the last session, if it still matches
+                        graphIndexOpened = true;
+                        loadGraphIndex(indexVersion);
+                    } else if (current == null || current.indexVersion() != indexVersion) {
+                        scheduleGraphRebuild();
+                    }
+                } else {
+                    graphIndex = null;
+                    EmbeddingCacheService.deleteGraphIndex(sessionId);
+                }
+
+                boolean wantsPrefix = searchPlanner.wantsPrefix(stats);
+                if (!prefixForced && wantsPrefix != prefixIndex.isEnabled()) {
+                    EmbeddingCacheService.buildPrefixIndex(embeddingStore, prefixIndex,
+                            wantsPrefix ? Constants.AUTO_PREFIX_DIMENSIONS : 0);
+                    logger.info("{} prefix index of {} segments", wantsPrefix ? "Built" : "Dropped",
+                            stats.segmentCount());
+                }
+            }
+        });
+    }
+
+    /**
+     * Rebuild the stale graph index once the index version has not changed
+     * for GRAPH_REBUILD_QUIET_MILLIS. Must hold searchStructuresLock.
+     */
+    private void scheduleGraphRebuild() {
+        if (graphRebuildScheduled) {
+            return;
+        }
+        graphRebuildScheduled = true;
+        requestExecutor.submit(() -> {
+            long indexVersion = indexingService.getIndexVersion();
+            try {
+                while (true) {
+                    Thread.sleep(GRAPH_REBUILD_QUIET_MILLIS);
+                    long latest = indexingService.getIndexVersion();
+                    if (latest == indexVersion) {
+                        break;
+                    }
+                    indexVersion = latest;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                synchronized (searchStructuresLock) {
+                    graphRebuildScheduled = false;
+                }
+                return;
+            }
+
+            synchronized (searchStructuresLock) {
+                graphRebuildScheduled = false;
+                indexVersion = indexingService.getIndexVersion();
+                GraphIndexSnapshot current = graphIndex;
+                if (searchPlanner.wantsGraph(getIndexStats())
+                        && (current == null || current.indexVersion() != indexVersion)) {
+                    loadGraphIndex(indexVersion);
+                }
+            }
+        });
+    }
+
+    /**
+     * Open or build the graph index for the given index version. Must hold
+     * searchStructuresLock.
+     */
+    private void loadGraphIndex(long indexVersion) {
+        DiskGraphIndex index = EmbeddingCacheService.loadGraphIndex(sessionId, embeddingStore, lexicalIndex);
+        graphIndex = index != null ? new GraphIndexSnapshot(index, indexVersion) : null;
+    }
+
+    /**
+     * Get the prefix length of two-stage vector search, 0 if the search
+     * planner chooses the strategy
+     */
+    public int getPrefixDimensions() {
+        return prefixForced ? prefixIndex.getDimensions() : 0;
+    }
+
+    /**
+     * Force two-stage search over embedding prefixes of the given length, or
+     * with 0 leave the choice to the search planner, and save the choice for
+     * the session
+     */
+    public void setPrefixDimensions(int dimensions) {
+        if (dimensions == getPrefixDimensions()) {
+            return;
+        }
+        prefixForced = dimensions > 0;
+        EmbeddingCacheService.updatePrefixIndex(sessionId, embeddingStore, prefixIndex, dimensions);
+        retrievalCache.clear();
+        logger.info("Vector search set to {}", dimensions > 0 ? dimensions + "-dimension prefix" : "automatic");
+        maintainSearchStructures();
+    }
+
+    /**
+     * Set whether answers are reused for near-duplicate questions over the
+     * same retrieved context
+     */
+    public void setAnswerReuse(boolean answerReuse) {
+        this.answerReuse = answerReuse;
+    }
+
+    /**
+     * Wait until the session history has been loaded from the database
+     */
+    private void awaitSessionHistory() {
+        try {
+            historyLoad.get(HISTORY_DEADLINE.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Request interrupted");
+        } catch (TimeoutException e) {
+            throw new RuntimeException("Session history did not load within " + HISTORY_DEADLINE.toSeconds() + " s");
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to load session history", e.getCause());
+        }
     }
 
     /**
      * Load session history from database and restore it to the session
      */
     private void loadSessionHistory() {
-        List<dev.assignment.model.ChatMessage> dbMessages = DatabaseService.getInstance().getChatHistory(sessionId);
+        conversationSummary = DatabaseService.getInstance().getSessionSummary(sessionId);
 
+        List<dev.assignment.model.ChatMessage> dbMessages = DatabaseService.getInstance()
+                .getRecentChatHistory(sessionId, HISTORY_WINDOW_MESSAGES);
+
+        // Messages trimmed here were dropped, and summarized, when they were
+        // first added
         for (dev.assignment.model.ChatMessage dbMessage : dbMessages) {
             if (dbMessage.isUser()) {
-                sessionHistory.add(UserMessage.from(dbMessage.content()));
+                appendHistory(UserMessage.from(dbMessage.content()), false);
             } else {
-                sessionHistory.add(AiMessage.from(dbMessage.content()));
+                appendHistory(AiMessage.from(dbMessage.content()), false);
+            }
+        }
+
+        // The latest messages may start mid-turn, with an answer
+        synchronized (historyLock) {
+            while (sessionHistory.size() > 1 && sessionHistory.get(1) instanceof AiMessage) {
+                sessionHistory.remove(1);
             }
         }
 
-        logger.debug("Loaded {} messages from database into session history", dbMessages.size());
+        logger.debug("Loaded {} of the latest messages from database into session history", dbMessages.size());
+    }
+
+    /**
+     * Add a message to the session history, then drop the oldest turns until
+     * the history is within its window: at most HISTORY_WINDOW_MESSAGES
+     * messages and the prompt's history budget. The system message is always
+     * kept.
+     */
+    private void appendHistory(ChatMessage message) {
+        appendHistory(message, true);
+    }
+
+    /**
+     * Add a message to the session history within its window
+     *
+     * @param summarizeDropped Whether messages dropped from the window are
+     *                         folded into the running summary
+     */
+    private void appendHistory(ChatMessage message, boolean summarizeDropped) {
+        List<ChatMessage> dropped = new ArrayList<>();
+        synchronized (historyLock) {
+            sessionHistory.add(message);
+            historyRevision++;
+
+            int historyTokens = 0;
+            for (int i = 1; i < sessionHistory.size(); i++) {
+                historyTokens += TokenCounter.count(sessionHistory.get(i), modelName);
+            }
+
+            while (sessionHistory.size() > 2 && (sessionHistory.size() - 1 > HISTORY_WINDOW_MESSAGES
+                    || historyTokens > contextPacker.getHistoryBudget())) {
+                // Drop a whole turn, so the window never starts with an answer
+                do {
+                    ChatMessage droppedMessage = sessionHistory.remove(1);
+                    historyTokens -= TokenCounter.count(droppedMessage, modelName);
+                    dropped.add(droppedMessage);
+                } while (sessionHistory.size() > 2 && sessionHistory.get(1) instanceof AiMessage);
+            }
+        }
+        if (!dropped.isEmpty()) {
+            logger.debug("Dropped {} messages from the history window", dropped.size());
+            if (summarizeDropped) {
+                scheduleSummary(dropped);
+            }
+        }
+    }
+
+    /**
+     * Queue messages dropped from the history window to be folded into the
+     * running summary, starting a background summarization unless one is
+     * already running
+     */
+    private void scheduleSummary(List<ChatMessage> messages) {
+        synchronized (pendingSummary) {
+            pendingSummary.addAll(messages);
+            if (pendingSummary.size() > MAX_PENDING_SUMMARY_MESSAGES) {
+                pendingSummary.subList(0, pendingSummary.size() - MAX_PENDING_SUMMARY_MESSAGES).clear();
+            }
+            if (summaryScheduled) {
+                return;
+            }
+            summaryScheduled = true;
+        }
+        requestExecutor.submit(this::summarizePending);
+    }
+
+    /**
+     * Fold the queued messages into the running summary and save it, until
+     * the queue is empty. Runs off the request path, so a slow or failing
+     * summary model never delays an answer.
+     */
+    private void summarizePending() {
+        while (true) {
+            List<ChatMessage> messages;
+            int generation;
+            synchronized (pendingSummary) {
+                if (pendingSummary.isEmpty()) {
+                    summaryScheduled = false;
+                    return;
+                }
+                messages = new ArrayList<>(pendingSummary);
+                pendingSummary.clear();
+                generation = summaryGeneration;
+            }
+
+            String summary;
+            try {
+                summary = summaryModel.chat(buildSummaryPrompt(conversationSummary, messages)).trim();
+            } catch (Exception e) {
+                logger.warn("Failed to summarize {} older messages, retrying with the next ones",
+                        messages.size(), e);
+                synchronized (pendingSummary) {
+                    if (generation == summaryGeneration) {
+                        pendingSummary.addAll(0, messages);
+                    }
+                    summaryScheduled = false;
+                }
+                return;
+            }
+
+            synchronized (pendingSummary) {
+                if (generation != summaryGeneration || summary.isEmpty()) {
+                    continue;
+                }
+                // Saved under the lock, so that a cleared history is not overwritten
+                conversationSummary = summary;
+                DatabaseService.getInstance().updateSessionSummary(sessionId, summary);
+            }
+            logger.debug("Folded {} older messages into the conversation summary", messages.size());
+        }
+    }
+
+    private static String buildSummaryPrompt(String summary, List<ChatMessage> messages) {
+        StringBuilder prompt = new StringBuilder(
+                "Update the summary of a conversation between a user and an assistant with the new messages " +
+                        "below. Keep the facts, names, decisions and open questions a later answer may need, " +
+                        "drop greetings and small talk, and write at most 150 words of plain text. " +
+                        "Reply with the summary only.\n\n");
+        prompt.append("Current summary:\n").append(summary != null ? summary : "(none)").append("\n\n");
+        prompt.append("New messages:\n");
+        for (ChatMessage message : messages) {
+            if (message instanceof UserMessage userMessage) {
+                prompt.append("User: ").append(userMessage.singleText()).append('\n');
+            } else if (message instanceof AiMessage aiMessage) {
+                prompt.append("Assistant: ").append(aiMessage.text()).append('\n');
+            }
+        }
+        return prompt.toString();
+    }
+
+    /**
+     * Get a copy of the history to send with a request, with the running
+     * summary of the older turns appended to the system message
+     */
+    private List<ChatMessage> historyWithSummary() {
+        List<ChatMessage> history;
+        synchronized (historyLock) {
+            history = new ArrayList<>(sessionHistory);
+        }
+        String summary = conversationSummary;
+        if (summary == null || history.isEmpty() || !(history.get(0) instanceof SystemMessage systemMessage)) {
+            return history;
+        }
+        history.set(0, SystemMessage.from(systemMessage.text()
+                + "\n\nSummary of the earlier conversation:\n" + summary));
+        return history;
     }
 
     /**
@@ -112,6 +644,7 @@ public class RAGService {
             throws IOException {
         indexingService.indexKnowledgebase(resourceService,
                 progressCallback != null ? (msg, curr, total) -> progressCallback.onProgress(msg, curr, total) : null);
+        maintainSearchStructures();
     }
 
     /**
@@ -119,6 +652,7 @@ public class RAGService {
      */
     public void indexSingleFile(File file) throws IOException {
         indexingService.indexSingleFile(file);
+        maintainSearchStructures();
     }
 
     /**
@@ -126,6 +660,7 @@ public class RAGService {
      */
     public void removeFileFromIndexByName(String fileName) {
         indexingService.removeFileFromIndexByName(fileName);
+        maintainSearchStructures();
     }
 
     /**
@@ -149,83 +684,729 @@ public class RAGService {
      * AI: "Melvin Chia's brother is 28 years old."
      */
     public dev.assignment.model.QueryResponse query(String userMessage) {
-        String contextualizedQuery = buildContextualizedQuery(userMessage);
+        return query(userMessage, new CancellationToken());
+    }
+
+    /**
+     * Query the RAG system with a user message, aborting the embedding and chat
+     * requests as soon as the token is cancelled
+     *
+     * @throws CancellationException if the token is cancelled
+     */
+    public QueryResponse query(String userMessage, CancellationToken cancellationToken) {
+        PreparedQuery preparedQuery = prepareQuery(userMessage, cancellationToken);
 
-        Embedding queryEmbedding = embeddingModel.embed(contextualizedQuery).content();
+        if (preparedQuery.cachedAnswer() != null) {
+            appendHistory(AiMessage.from(preparedQuery.cachedAnswer()));
+            return new QueryResponse(preparedQuery.cachedAnswer(), preparedQuery.sources());
+        }
 
-        EmbeddingSearchRequest searchRequest = EmbeddingSearchRequest.builder()
-                .queryEmbedding(queryEmbedding)
-                .maxResults(MAX_RESULTS_BEFORE_RERANK)
-                .minScore(MIN_SCORE)
-                .build();
+        ChatResponse chatResponse = callCancellable(() -> chatModel.chat(preparedQuery.chatRequest()),
+                cancellationToken);
+        logTokenUsage(chatResponse);
+        AiMessage aiMessage = chatResponse.aiMessage();
+        String responseText = aiMessage.text();
+
+        appendHistory(aiMessage);
+        saveCachedAnswer(preparedQuery, responseText);
+
+        return new QueryResponse(responseText, preparedQuery.sources());
+    }
 
-        EmbeddingSearchResult<TextSegment> searchResult = embeddingStore.search(searchRequest);
-        List<EmbeddingMatch<TextSegment>> relevantSegments = searchResult.matches();
-        logger.debug("Retrieval found {} segments", relevantSegments.size());
+    /**
+     * Query the RAG system with a user message, streaming the response.
+     * The user message is saved while context is retrieved, and the sources are
+     * reported as soon as both finish; the answer is then delivered token by
+     * token from the streaming model's thread.
+     *
+     * Cancelling the token aborts the embedding request or the stream. The text
+     * streamed so far is kept in the session history, marked as stopped, and
+     * reported through onCancelled.
+     */
+    public void queryStreaming(String userMessage, CancellationToken cancellationToken,
+            StreamingCallback callback) {
+        PreparedQuery preparedQuery;
+        try {
+            preparedQuery = prepareQuery(userMessage, cancellationToken);
+        } catch (CancellationException e) {
+            logger.info("Query cancelled before generation started");
+            callback.onCancelled(new QueryResponse("", List.of()));
+            return;
+        }
+        callback.onSources(preparedQuery.sources());
+
+        if (preparedQuery.cachedAnswer() != null) {
+            appendHistory(AiMessage.from(preparedQuery.cachedAnswer()));
+            callback.onToken(preparedQuery.cachedAnswer());
+            callback.onComplete(new QueryResponse(preparedQuery.cachedAnswer(), preparedQuery.sources()));
+            return;
+        }
+
+        StringBuilder streamedText = new StringBuilder();
+        AtomicBoolean finished = new AtomicBoolean(false);
+        AtomicReference<StreamingHandle> streamingHandle = new AtomicReference<>();
+
+        cancellationToken.onCancel(() -> {
+            StreamingHandle handle = streamingHandle.get();
+            if (handle != null) {
+                handle.cancel();
+            }
+            if (finished.compareAndSet(false, true)) {
+                String partialText;
+                synchronized (streamedText) {
+                    partialText = streamedText.toString();
+                }
+                if (!partialText.isEmpty()) {
+                    appendHistory(AiMessage.from(partialText + Constants.RESPONSE_STOPPED_MARKER));
+                }
+                logger.info("Query cancelled after {} streamed characters", partialText.length());
+                callback.onCancelled(new QueryResponse(partialText, preparedQuery.sources()));
+            }
+        });
+
+        if (finished.get()) {
+            return;
+        }
+
+        streamingChatModel.chat(preparedQuery.chatRequest(), new StreamingChatResponseHandler() {
+            @Override
+            public void onPartialResponse(PartialResponse partialResponse, PartialResponseContext context) {
+                streamingHandle.set(context.streamingHandle());
+                if (cancellationToken.isCancelled()) {
+                    context.streamingHandle().cancel();
+                    return;
+                }
+                synchronized (streamedText) {
+                    streamedText.append(partialResponse.text());
+                }
+                callback.onToken(partialResponse.text());
+            }
+
+            @Override
+            public void onCompleteResponse(ChatResponse completeResponse) {
+                if (finished.compareAndSet(false, true)) {
+                    logTokenUsage(completeResponse);
+                    AiMessage aiMessage = completeResponse.aiMessage();
+                    appendHistory(aiMessage);
+                    saveCachedAnswer(preparedQuery, aiMessage.text());
+                    callback.onComplete(new QueryResponse(aiMessage.text(), preparedQuery.sources()));
+                }
+            }
 
-        List<EmbeddingMatch<TextSegment>> rerankedSegments = rerankingService.rerank(contextualizedQuery,
-                relevantSegments);
+            @Override
+            public void onError(Throwable error) {
+                if (finished.compareAndSet(false, true)) {
+                    callback.onError(error);
+                }
+            }
+        });
+    }
 
-        if (rerankedSegments.size() > MAX_RESULTS) {
-            rerankedSegments = rerankedSegments.subList(0, MAX_RESULTS);
+    /**
+     * Log the token usage reported by the chat model for a response
+     */
+    private void logTokenUsage(ChatResponse chatResponse) {
+        if (chatResponse.tokenUsage() != null) {
+            logger.info("Token usage for {}: {} input, {} output", modelName,
+                    chatResponse.tokenUsage().inputTokenCount(), chatResponse.tokenUsage().outputTokenCount());
         }
+    }
+
+    /**
+     * Run a blocking model call on a request thread, interrupting it when the
+     * token is cancelled
+     *
+     * @throws CancellationException if the token is cancelled
+     */
+    private <T> T callCancellable(Callable<T> task, CancellationToken cancellationToken) {
+        cancellationToken.throwIfCancelled();
+        Future<T> future = requestExecutor.submit(task);
+        Runnable unregister = cancellationToken.onCancel(() -> future.cancel(true));
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            throw new CancellationException("Request interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            unregister.run();
+        }
+    }
+
+    /**
+     * Retrieve context for a user message and build the chat request for it.
+     * The user message is added to the session history, also when the query
+     * stops before it is prepared but after the message was saved.
+     */
+    private PreparedQuery prepareQuery(String userMessage, CancellationToken cancellationToken) {
+        long indexVersion = indexingService.getIndexVersion();
+        QueryPlan plan = classifyQuery(userMessage, indexVersion);
+        QueryClassifier.Intent intent = plan.intent();
+
+        Retrieval retrieval = null;
+        Future<Void> userMessageSaved = null;
+        try (TaskScope scope = new TaskScope(requestExecutor, cancellationToken)) {
+            // Saved after the history has loaded, which would otherwise pick the
+            // message up a second time. The save is not cancelled with the
+            // query, so the history can follow the database either way.
+            userMessageSaved = scope.forkToCompletion(() -> {
+                awaitSessionHistory();
+                saveUserMessage(userMessage);
+                return null;
+            });
+            if (intent == QueryClassifier.Intent.RETRIEVE) {
+                Future<Retrieval> retrievalTask = scope.fork(() -> {
+                    awaitSessionHistory();
+                    Retrieval speculative = takeSpeculativeRetrieval(userMessage, cancellationToken);
+                    if (speculative != null) {
+                        return speculative;
+                    }
+                    return retrieve(buildContextualizedQuery(userMessage), cancellationToken);
+                });
+                retrieval = scope.join(retrievalTask, RETRIEVAL_DEADLINE, "Retrieval");
+            } else {
+                awaitSessionHistory();
+            }
+            scope.join(userMessageSaved, SAVE_DEADLINE, "Saving the message");
+            cancellationToken.throwIfCancelled();
+        } catch (RuntimeException e) {
+            if (userMessageSaved != null) {
+                appendUserMessageIfSaved(userMessage, userMessageSaved);
+            }
+            throw e;
+        }
+
+        List<TextSegment> contextSegments;
+        if (intent == QueryClassifier.Intent.RETRIEVE) {
+            List<TextSegment> rerankedSegments = new ArrayList<>();
+            for (EmbeddingMatch<TextSegment> match : retrieval.matches()) {
+                rerankedSegments.add(match.embedded());
+            }
+            contextSegments = SegmentMerger.merge(expandToParents(rerankedSegments));
+            previousContext = new PreviousContext(contextSegments, indexVersion);
+        } else if (intent == QueryClassifier.Intent.FOLLOW_UP) {
+            contextSegments = plan.previous().segments();
+        } else {
+            contextSegments = List.of();
+        }
+        Embedding queryEmbedding = retrieval != null ? retrieval.queryEmbedding() : null;
+
+        ContextPacker.PackedPrompt packedPrompt = contextPacker.pack(historyWithSummary(), userMessage,
+                contextSegments);
+        appendHistory(UserMessage.from(userMessage));
 
         Set<String> sourceFiles = new HashSet<>();
-        for (EmbeddingMatch<TextSegment> match : rerankedSegments) {
-            TextSegment segment = match.embedded();
+        for (TextSegment segment : packedPrompt.segments()) {
             if (segment.metadata() != null && segment.metadata().containsKey("fileName")) {
                 String fileName = segment.metadata().getString("fileName");
                 sourceFiles.add(fileName);
             }
         }
-        logger.debug("Query matched {} segments from documents: {}", rerankedSegments.size(), sourceFiles);
+        logger.debug("Query matched {} segments from documents: {}", packedPrompt.segments().size(), sourceFiles);
+
+        ContextPacker.TokenUsage usage = packedPrompt.usage();
+        logger.info("Prompt for {}: ~{} of {} tokens (system {}, history {}, context {}, question {})", modelName,
+                usage.totalTokens(), usage.budget(), usage.systemTokens(), usage.historyTokens(),
+                usage.contextTokens(), usage.questionTokens());
+
+        ChatRequest chatRequest = ChatRequest.builder()
+                .messages(packedPrompt.messages())
+                .build();
+
+        List<String> sources = new ArrayList<>(sourceFiles);
+        String segmentKeys = getSegmentKeys(packedPrompt.segments());
+        String cachedAnswer = queryEmbedding != null ? findCachedAnswer(queryEmbedding, segmentKeys) : null;
+
+        return new PreparedQuery(chatRequest, sources, queryEmbedding, segmentKeys, cachedAnswer);
+    }
+
+    /**
+     * Decide how to answer a message, and count the decision. A follow-up is
+     * retrieved for like a new question when there is no previous context to
+     * reuse or the index has changed since it was retrieved.
+     *
+     * @return The intent, with the previous context a follow-up reuses
+     */
+    private QueryPlan classifyQuery(String userMessage, long indexVersion) {
+        QueryClassifier.Intent intent = QueryClassifier.classify(userMessage);
+        PreviousContext previous = previousContext;
+        if (intent == QueryClassifier.Intent.FOLLOW_UP
+                && (previous == null || previous.indexVersion() != indexVersion)) {
+            intent = QueryClassifier.Intent.RETRIEVE;
+        }
+
+        intentCounts.incrementAndGet(intent.ordinal());
+        logger.info("Answering as {} (so far {} retrieved, {} follow-up, {} conversational)", intent,
+                intentCounts.get(QueryClassifier.Intent.RETRIEVE.ordinal()),
+                intentCounts.get(QueryClassifier.Intent.FOLLOW_UP.ordinal()),
+                intentCounts.get(QueryClassifier.Intent.CONVERSATIONAL.ordinal()));
+        return new QueryPlan(intent, previous);
+    }
+
+    /**
+     * Replace matched segments by the parent sections they belong to, best
+     * first, while the parents fit in half of the prompt budget. Segments whose
+     * parent is already included are dropped; the others are kept as they are.
+     */
+    private List<TextSegment> expandToParents(List<TextSegment> segments) {
+        DatabaseService databaseService = DatabaseService.getInstance();
+        int expansionBudget = contextPacker.getBudget() / 2;
+        int expandedTokens = 0;
+        Set<String> includedParents = new HashSet<>();
+        List<TextSegment> expanded = new ArrayList<>();
+
+        for (TextSegment segment : segments) {
+            Metadata metadata = segment.metadata();
+            if (databaseService == null || metadata == null
+                    || !metadata.containsKey(DocumentIndexingService.PARENT_ORDINAL_KEY)) {
+                expanded.add(segment);
+                continue;
+            }
+
+            String fileName = metadata.getString("fileName");
+            int parentOrdinal = metadata.getInteger(DocumentIndexingService.PARENT_ORDINAL_KEY);
+            String parentKey = fileName + "#" + parentOrdinal;
+            if (includedParents.contains(parentKey)) {
+                continue;
+            }
+
+            ParentSection parent = databaseService.getParentSection(sessionId, fileName, parentOrdinal);
+            int parentTokens = parent != null ? TokenCounter.count(parent.text(), modelName) : 0;
+            if (parent == null || expandedTokens + parentTokens > expansionBudget) {
+                expanded.add(segment);
+                continue;
+            }
+
+            Metadata parentMetadata = new Metadata();
+            parentMetadata.put("fileName", fileName);
+            parentMetadata.put(SegmentMerger.ORDINAL_KEY, parentOrdinal);
+            parentMetadata.put(SegmentMerger.START_OFFSET_KEY, parent.startOffset());
+            parentMetadata.put(SegmentMerger.END_OFFSET_KEY, parent.endOffset());
+            TokenCounter.storeCount(parentMetadata, parentTokens, modelName);
+            expanded.add(TextSegment.from(parent.text(), parentMetadata));
+
+            includedParents.add(parentKey);
+            expandedTokens += parentTokens;
+        }
 
-        StringBuilder context = new StringBuilder();
-        if (!rerankedSegments.isEmpty()) {
-            context.append("Relevant context:\n\n");
-            for (EmbeddingMatch<TextSegment> match : rerankedSegments) {
-                context.append(match.embedded().text()).append("\n\n");
+        logger.debug("Expanded {} segments to {} parent sections", segments.size(), includedParents.size());
+        return expanded;
+    }
+
+    /**
+     * Build a key identifying the set of segments a query retrieved, stable
+     * across restarts
+     */
+    private static String getSegmentKeys(List<TextSegment> segments) {
+        List<String> keys = new ArrayList<>();
+        for (TextSegment segment : segments) {
+            String fileName = segment.metadata() != null ? segment.metadata().getString("fileName") : null;
+            keys.add(fileName + "#" + Integer.toHexString(segment.text().hashCode()));
+        }
+        Collections.sort(keys);
+        return String.join(",", keys);
+    }
+
+    /**
+     * Find a stored answer to a near-identical query over the same context
+     *
+     * @return The answer text, or null if there is none
+     */
+    private String findCachedAnswer(Embedding queryEmbedding, String segmentKeys) {
+        DatabaseService databaseService = DatabaseService.getInstance();
+        if (!answerReuse || databaseService == null || segmentKeys.isEmpty()) {
+            return null;
+        }
+
+        for (CachedAnswer answer : databaseService.getCachedAnswers(sessionId, modelName, segmentKeys)) {
+            if (answer.queryVector().length == queryEmbedding.dimension()
+                    && CosineSimilarity.between(queryEmbedding, new Embedding(answer.queryVector()))
+                            >= ANSWER_CACHE_MIN_SIMILARITY) {
+                logger.info("Answering from the answer cache");
+                return answer.response();
             }
         }
+        return null;
+    }
 
-        String messageWithContext;
-        if (context.length() > 0) {
-            messageWithContext = context + "\nUser question: " + userMessage;
-        } else {
-            messageWithContext = userMessage;
+    private void saveCachedAnswer(PreparedQuery preparedQuery, String responseText) {
+        DatabaseService databaseService = DatabaseService.getInstance();
+        if (!answerReuse || databaseService == null || preparedQuery.queryEmbedding() == null
+                || preparedQuery.segmentKeys().isEmpty() || responseText == null || responseText.isBlank()) {
+            return;
         }
+        databaseService.saveCachedAnswer(sessionId, modelName, preparedQuery.segmentKeys(),
+                new CachedAnswer(preparedQuery.queryEmbedding().vector(), responseText, preparedQuery.sources()));
+    }
 
-        sessionHistory.add(UserMessage.from(userMessage));
-        ;
+    /**
+     * Add the message of a query that stopped before generation to the session
+     * history, once its save finishes, if it was saved. The history then holds
+     * the same turns as the database.
+     */
+    private void appendUserMessageIfSaved(String userMessage, Future<Void> userMessageSaved) {
+        try {
+            userMessageSaved.get(SAVE_DEADLINE.toMillis(), TimeUnit.MILLISECONDS);
+            appendHistory(UserMessage.from(userMessage));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException | CancellationException e) {
+            logger.warn("User message of a stopped query was not saved", e);
+        }
+    }
 
-        logger.debug("Sending message to chat model: {} with {} messages in history", modelName,
-                sessionHistory.size());
+    private void saveUserMessage(String userMessage) {
+        DatabaseService databaseService = DatabaseService.getInstance();
+        if (databaseService != null) {
+            databaseService.saveChatMessage(sessionId, new dev.assignment.model.ChatMessage(userMessage, true));
+        }
+    }
 
-        List<ChatMessage> messagesForRequest = new ArrayList<>(sessionHistory);
-        messagesForRequest.set(messagesForRequest.size() - 1, UserMessage.from(messageWithContext));
+    /**
+     * Embed a contextualized query, search the store and rerank the matches
+     *
+     * @return The query embedding and the best matches, at most MAX_RESULTS
+     */
+    private Retrieval retrieve(String contextualizedQuery,
+            CancellationToken cancellationToken) {
+        // The lexical search needs no embedding, so it runs while the query is
+        // embedded and searched
+        Future<List<EmbeddingMatch<TextSegment>>> lexicalSearch = requestExecutor
+                .submit(() -> lexicalIndex.search(contextualizedQuery, MAX_RESULTS_BEFORE_RERANK));
 
-        ChatRequest chatRequest = ChatRequest.builder()
-                .messages(messagesForRequest)
-                .build();
+        Embedding queryEmbedding = QueryCacheService.getQueryEmbedding(contextualizedQuery);
+        if (queryEmbedding == null) {
+            queryEmbedding = callCancellable(() -> embeddingModel.embed(contextualizedQuery).content(),
+                    cancellationToken);
+            QueryCacheService.putQueryEmbedding(contextualizedQuery, queryEmbedding);
+        }
 
-        ChatResponse chatResponse = chatModel.chat(chatRequest);
-        AiMessage aiMessage = chatResponse.aiMessage();
-        String responseText = aiMessage.text();
+        long indexVersion = indexingService.getIndexVersion();
+        SearchPlan plan = planSearch(indexVersion);
+        List<EmbeddingMatch<TextSegment>> cachedMatches = retrievalCache.get(queryEmbedding, indexVersion,
+                plan.cacheKey());
+        if (cachedMatches != null) {
+            logger.debug("Reusing cached retrieval ({} segments)", cachedMatches.size());
+            lexicalSearch.cancel(true);
+            return new Retrieval(queryEmbedding, cachedMatches);
+        }
 
-        sessionHistory.add(aiMessage);
+        List<EmbeddingMatch<TextSegment>> vectorMatches = searchVectors(queryEmbedding, plan);
 
-        return new QueryResponse(responseText, new java.util.ArrayList<>(sourceFiles));
+        List<EmbeddingMatch<TextSegment>> lexicalMatches;
+        try {
+            lexicalMatches = lexicalSearch.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Request interrupted");
+        } catch (ExecutionException e) {
+            logger.warn("Lexical search failed: {}", e.getCause().getMessage());
+            lexicalMatches = List.of();
+        }
+
+        List<EmbeddingMatch<TextSegment>> relevantSegments = fuseRankings(queryEmbedding, vectorMatches,
+                lexicalMatches);
+        logger.debug("Retrieval found {} segments ({} vector, {} lexical)", relevantSegments.size(),
+                vectorMatches.size(), lexicalMatches.size());
+
+        cancellationToken.throwIfCancelled();
+
+        List<EmbeddingMatch<TextSegment>> rerankedSegments = rerankingService.rerankDiverse(contextualizedQuery,
+                relevantSegments, MAX_RESULTS, MMR_LAMBDA);
+
+        retrievalCache.put(queryEmbedding, indexVersion, plan.cacheKey(), rerankedSegments);
+        return new Retrieval(queryEmbedding, rerankedSegments);
+    }
+
+    /**
+     * Let the search planner pick the strategy of the next vector search
+     */
+    private SearchPlan planSearch(long indexVersion) {
+        SearchPlanner.IndexStats stats = getIndexStats();
+        GraphIndexSnapshot graph = graphIndex;
+        boolean graphReady = graph != null && graph.indexVersion() == indexVersion;
+        SearchPlanner.Strategy strategy = searchPlanner.choose(stats, graphReady, prefixIndex.isEnabled(),
+                prefixForced);
+        return new SearchPlan(strategy, prefixIndex.getDimensions(), stats, graph);
+    }
+
+    /**
+     * Search the vectors with the planned strategy, and record how long it
+     * took
+     */
+    private List<EmbeddingMatch<TextSegment>> searchVectors(Embedding queryEmbedding, SearchPlan plan) {
+        SearchPlanner.Strategy strategy = plan.strategy();
+        SearchPlanner.IndexStats stats = plan.stats();
+        GraphIndexSnapshot graph = plan.graph();
+
+        long start = System.currentTimeMillis();
+        List<EmbeddingMatch<TextSegment>> matches = switch (strategy) {
+            case GRAPH -> graph.index().search(queryEmbedding, MAX_RESULTS_BEFORE_RERANK, GRAPH_SEARCH_LIST_SIZE,
+                    MIN_SCORE);
+            case PREFIX -> prefixIndex.search(queryEmbedding, PREFIX_SHORTLIST_SIZE, MAX_RESULTS_BEFORE_RERANK,
+                    MIN_SCORE);
+            case ROUTED -> fileCentroids.search(queryEmbedding, Constants.ROUTED_SEARCH_FILES,
+                    MAX_RESULTS_BEFORE_RERANK, MIN_SCORE);
+            case SHARDED -> {
+                try {
+                    yield fileCentroids.searchSharded(queryEmbedding, MAX_RESULTS_BEFORE_RERANK, MIN_SCORE,
+                            requestExecutor, Runtime.getRuntime().availableProcessors());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new CancellationException("Request interrupted");
+                }
+            }
+            case EXACT -> {
+                EmbeddingSearchRequest searchRequest = EmbeddingSearchRequest.builder()
+                        .queryEmbedding(queryEmbedding)
+                        .maxResults(MAX_RESULTS_BEFORE_RERANK)
+                        .minScore(MIN_SCORE)
+                        .build();
+
+                EmbeddingSearchResult<TextSegment> searchResult = embeddingStore.search(searchRequest);
+                yield searchResult.matches();
+            }
+        };
+        long elapsed = System.currentTimeMillis() - start;
+        searchPlanner.recordLatency(strategy, elapsed);
+        logger.debug("{} vector search took {} ms", strategy, elapsed);
+
+        // A strategy over its latency target may call for a prefix index
+        if (!prefixForced && searchPlanner.wantsPrefix(stats) != prefixIndex.isEnabled()) {
+            maintainSearchStructures();
+        }
+        return matches;
+    }
+
+    /**
+     * Fuse the vector and lexical rankings with reciprocal rank fusion, keeping
+     * the best MAX_RESULTS_BEFORE_RERANK. Every fused match carries its vector
+     * relevance score, computed from the stored vector for lexical-only hits,
+     * as the reranker expects.
+     */
+    private List<EmbeddingMatch<TextSegment>> fuseRankings(Embedding queryEmbedding,
+            List<EmbeddingMatch<TextSegment>> vectorMatches, List<EmbeddingMatch<TextSegment>> lexicalMatches) {
+        Map<String, EmbeddingMatch<TextSegment>> matches = new HashMap<>();
+        Map<String, Double> fusedScores = new HashMap<>();
+
+        for (int rank = 0; rank < vectorMatches.size(); rank++) {
+            EmbeddingMatch<TextSegment> match = vectorMatches.get(rank);
+            String key = Bm25Index.docKey(match.embedded());
+            matches.putIfAbsent(key, match);
+            fusedScores.merge(key, 1.0 / (RRF_K + rank + 1), Double::sum);
+        }
+        for (int rank = 0; rank < lexicalMatches.size(); rank++) {
+            EmbeddingMatch<TextSegment> match = lexicalMatches.get(rank);
+            String key = Bm25Index.docKey(match.embedded());
+            if (!matches.containsKey(key)) {
+                double relevance = RelevanceScore.fromCosineSimilarity(
+                        CosineSimilarity.between(queryEmbedding, match.embedding()));
+                matches.put(key, new EmbeddingMatch<>(relevance, match.embeddingId(), match.embedding(),
+                        match.embedded()));
+            }
+            fusedScores.merge(key, 1.0 / (RRF_K + rank + 1), Double::sum);
+        }
+
+        List<String> keys = new ArrayList<>(fusedScores.keySet());
+        keys.sort((a, b) -> Double.compare(fusedScores.get(b), fusedScores.get(a)));
+
+        List<EmbeddingMatch<TextSegment>> fused = new ArrayList<>();
+        for (String key : keys.subList(0, Math.min(keys.size(), MAX_RESULTS_BEFORE_RERANK))) {
+            fused.add(matches.get(key));
+        }
+        return fused;
+    }
+
+    /**
+     * Start retrieving context for a draft message in the background, so that
+     * sending a message close to the draft can skip the embedding and search.
+     * Replaces any earlier speculative retrieval. Returns at once, as it is
+     * called from the UI thread while the user types.
+     */
+    public void prefetchRetrieval(String draftMessage) {
+        requestExecutor.submit(() -> {
+            try {
+                startSpeculativeRetrieval(draftMessage);
+            } catch (RuntimeException e) {
+                logger.debug("Could not start speculative retrieval: {}", e.getMessage());
+            }
+        });
+    }
+
+    private void startSpeculativeRetrieval(String draftMessage) {
+        if (QueryClassifier.classify(draftMessage) != QueryClassifier.Intent.RETRIEVE) {
+            return;
+        }
+        awaitSessionHistory();
+
+        synchronized (speculationLock) {
+            SpeculativeRetrieval previous = speculativeRetrieval;
+            if (previous != null) {
+                if (previous.draftMessage().equals(draftMessage)) {
+                    return;
+                }
+                previous.cancellationToken().cancel();
+            }
+
+            int revision = historyRevision;
+            String contextualizedQuery = buildContextualizedQuery(draftMessage);
+            CancellationToken cancellationToken = new CancellationToken();
+            Future<Retrieval> result = requestExecutor
+                    .submit(() -> retrieve(contextualizedQuery, cancellationToken));
+
+            speculativeRetrieval = new SpeculativeRetrieval(draftMessage, revision,
+                    indexingService.getIndexVersion(), cancellationToken, result);
+        }
+        logger.debug("Started speculative retrieval for a {} character draft", draftMessage.length());
+    }
+
+    /**
+     * Take the speculative retrieval if it was made for a draft close enough to
+     * the sent message and nothing it depends on has changed since, waiting for
+     * it to finish if needed
+     *
+     * @return The retrieval, or null if it must be done now
+     */
+    private Retrieval takeSpeculativeRetrieval(String userMessage, CancellationToken cancellationToken) {
+        SpeculativeRetrieval speculative;
+        synchronized (speculationLock) {
+            speculative = speculativeRetrieval;
+            speculativeRetrieval = null;
+        }
+        if (speculative == null) {
+            return null;
+        }
+
+        if (speculative.historyRevision() != historyRevision
+                || speculative.indexVersion() != indexingService.getIndexVersion()
+                || draftSimilarity(speculative.draftMessage(), userMessage) < SPECULATIVE_MIN_SIMILARITY) {
+            speculative.cancellationToken().cancel();
+            return null;
+        }
+
+        Runnable unregister = cancellationToken.onCancel(speculative.cancellationToken()::cancel);
+        try {
+            Retrieval retrieval = speculative.result().get();
+            logger.debug("Reusing speculative retrieval ({} segments)", retrieval.matches().size());
+            return retrieval;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Request interrupted");
+        } catch (ExecutionException | CancellationException e) {
+            cancellationToken.throwIfCancelled();
+            logger.debug("Speculative retrieval failed, retrieving again: {}", e.getMessage());
+            return null;
+        } finally {
+            unregister.run();
+        }
+    }
+
+    /**
+     * Jaccard similarity of the lowercase word sets of two messages
+     */
+    private static double draftSimilarity(String draftMessage, String userMessage) {
+        if (draftMessage.equals(userMessage)) {
+            return 1.0;
+        }
+
+        Set<String> draftWords = new HashSet<>(List.of(draftMessage.toLowerCase().split("\\W+")));
+        Set<String> userWords = new HashSet<>(List.of(userMessage.toLowerCase().split("\\W+")));
+        draftWords.remove("");
+        userWords.remove("");
+        if (draftWords.isEmpty() || userWords.isEmpty()) {
+            return 0.0;
+        }
+
+        Set<String> union = new HashSet<>(draftWords);
+        union.addAll(userWords);
+        draftWords.retainAll(userWords);
+        return (double) draftWords.size() / union.size();
+    }
+
+    /**
+     * Retrieval started for a draft message, valid only while the history and
+     * index are as they were when it started
+     */
+    private record SpeculativeRetrieval(String draftMessage, int historyRevision, long indexVersion,
+            CancellationToken cancellationToken, Future<Retrieval> result) {
+    }
+
+    /**
+     * Context segments of the last retrieved turn and the index version they
+     * were retrieved from
+     */
+    private record PreviousContext(List<TextSegment> segments, long indexVersion) {
+    }
+
+    /**
+     * How a query is answered, with the previous context it was classified
+     * against, so a follow-up reuses the context that was checked even if the
+     * history is cleared meanwhile
+     */
+    private record QueryPlan(QueryClassifier.Intent intent, PreviousContext previous) {
+    }
+
+    /**
+     * Vector search strategy picked for a query, with what it was picked from
+     */
+    private record SearchPlan(SearchPlanner.Strategy strategy, int prefixDimensions, SearchPlanner.IndexStats stats,
+            GraphIndexSnapshot graph) {
+
+        /**
+         * Key under which retrievals made with this plan are cached, so that
+         * a change of strategy or prefix length does not reuse them
+         */
+        String cacheKey() {
+            return strategy + "/" + prefixDimensions;
+        }
+    }
+
+    /**
+     * Graph index together with the index version it covers
+     */
+    private record GraphIndexSnapshot(DiskGraphIndex index, long indexVersion) {
+    }
+
+    /**
+     * Query embedding together with the reranked matches retrieved for it
+     */
+    private record Retrieval(Embedding queryEmbedding, List<EmbeddingMatch<TextSegment>> matches) {
+    }
+
+    /**
+     * Chat request for a user message together with the source files of its
+     * retrieved context and, if one was found, a cached answer to it
+     */
+    private record PreparedQuery(ChatRequest chatRequest, List<String> sources, Embedding queryEmbedding,
+            String segmentKeys, String cachedAnswer) {
     }
 
     /**
      * Clear session history (keeps system message)
      */
     public void clearHistory() {
-        sessionHistory.clear();
-        sessionHistory.add(SystemMessage.from(
-                "You are a helpful AI assistant. Use the provided context to answer questions accurately. " +
-                        "If the context doesn't contain relevant information, say so politely." +
-                        " In your response, do not use any markdown formatting. Simple plain text is preferred."));
+        awaitSessionHistory();
+        previousContext = null;
+        synchronized (historyLock) {
+            sessionHistory.clear();
+            historyRevision++;
+            sessionHistory.add(SystemMessage.from(
+                    "You are a helpful AI assistant. Use the provided context to answer questions accurately. " +
+                            "If the context doesn't contain relevant information, say so politely." +
+                            " In your response, do not use any markdown formatting. Simple plain text is preferred."));
+        }
+        synchronized (pendingSummary) {
+            pendingSummary.clear();
+            summaryGeneration++;
+            conversationSummary = null;
+        }
+        DatabaseService.getInstance().updateSessionSummary(sessionId, null);
     }
 
     /**
@@ -236,15 +1417,18 @@ public class RAGService {
      * @return Contextualized query string for better embedding search
      */
     private String buildContextualizedQuery(String userMessage) {
-        if (sessionHistory.size() <= 1) {
-            return userMessage;
+        List<ChatMessage> recentHistory;
+        synchronized (historyLock) {
+            if (sessionHistory.size() <= 1) {
+                return userMessage;
+            }
+            int startIdx = Math.max(1, sessionHistory.size() - 4);
+            recentHistory = new ArrayList<>(sessionHistory.subList(startIdx, sessionHistory.size()));
         }
 
         StringBuilder contextBuilder = new StringBuilder();
-        int startIdx = Math.max(1, sessionHistory.size() - 4);
 
-        for (int i = startIdx; i < sessionHistory.size(); i++) {
-            ChatMessage msg = sessionHistory.get(i);
+        for (ChatMessage msg : recentHistory) {
             if (msg instanceof UserMessage) {
                 contextBuilder.append("User asked: ").append(((UserMessage) msg).singleText()).append(" ");
             } else if (msg instanceof AiMessage) {
@@ -1,22 +1,34 @@
 package dev.assignment.service;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import dev.assignment.util.Bm25Index;
+import dev.assignment.util.Bm25Index.SegmentFeatures;
+import dev.langchain4j.data.embedding.Embedding;
 import dev.langchain4j.data.segment.TextSegment;
 import dev.langchain4j.store.embedding.EmbeddingMatch;
 
 /**
  * Service for re-ranking search results to improve relevance
  * Implements hybrid scoring combining semantic and lexical matching
+ * Lexical signals use the term ids the lexical index computed for each segment
+ * at index time, so scoring a candidate needs no tokenizing
  */
 public class RerankingService {
 
     private static final Logger logger = LogManager.getLogger(RerankingService.class);
 
+    private final Bm25Index lexicalIndex;
+
+    public RerankingService(Bm25Index lexicalIndex) {
+        this.lexicalIndex = lexicalIndex;
+    }
+
     /**
      * Re-rank results using hybrid scoring approach
      * Combines embedding similarity, term frequency, position, and exact matching
@@ -30,27 +42,127 @@ public class RerankingService {
             return results;
         }
 
-        String[] queryTokens = tokenize(query.toLowerCase());
+        List<ScoredMatch> scoredMatches = score(query, results);
+
+        // Convert back to EmbeddingMatch list
+        List<EmbeddingMatch<TextSegment>> reranked = new ArrayList<>();
+        for (ScoredMatch scored : scoredMatches) {
+            reranked.add(scored.match);
+        }
+
+        logger.debug("Re-ranked {} results", reranked.size());
+        return reranked;
+    }
+
+    /**
+     * Re-rank results and select the best ones with Maximal Marginal Relevance,
+     * so near-copies of an already selected segment give way to other material
+     *
+     * @param query      The user query
+     * @param results    The initial search results from embedding store
+     * @param maxResults Number of results to select
+     * @param lambda     Weight of relevance against redundancy, from 0 (only
+     *                   diversity) to 1 (plain re-ranking)
+     * @return Selected results in selection order
+     */
+    public List<EmbeddingMatch<TextSegment>> rerankDiverse(String query, List<EmbeddingMatch<TextSegment>> results,
+            int maxResults, double lambda) {
+        if (results.isEmpty()) {
+            return results;
+        }
+
+        List<ScoredMatch> scoredMatches = score(query, results);
+        int candidates = scoredMatches.size();
+        List<EmbeddingMatch<TextSegment>> selected = new ArrayList<>();
+
+        if (candidates <= maxResults || lambda >= 1.0) {
+            for (int i = 0; i < Math.min(candidates, maxResults); i++) {
+                selected.add(scoredMatches.get(i).match);
+            }
+            return selected;
+        }
+
+        // Highest similarity of each candidate to any selected one, updated
+        // with the dot products against each newly selected vector only, so
+        // every pair is computed at most once
+        double[] maxSimilarity = new double[candidates];
+        boolean[] taken = new boolean[candidates];
+
+        for (int round = 0; round < maxResults; round++) {
+            int best = -1;
+            double bestScore = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < candidates; i++) {
+                if (taken[i]) {
+                    continue;
+                }
+                double mmrScore = lambda * scoredMatches.get(i).score - (1 - lambda) * maxSimilarity[i];
+                if (mmrScore > bestScore) {
+                    bestScore = mmrScore;
+                    best = i;
+                }
+            }
+
+            taken[best] = true;
+            EmbeddingMatch<TextSegment> bestMatch = scoredMatches.get(best).match;
+            selected.add(bestMatch);
+
+            for (int i = 0; i < candidates; i++) {
+                if (!taken[i]) {
+                    double similarity = dot(bestMatch.embedding(), scoredMatches.get(i).match.embedding());
+                    maxSimilarity[i] = Math.max(maxSimilarity[i], similarity);
+                }
+            }
+        }
+
+        logger.debug("Selected {} of {} results by MMR (lambda {})", selected.size(), candidates, lambda);
+        return selected;
+    }
+
+    /**
+     * Score results and sort them by re-rank score (descending)
+     */
+    private List<ScoredMatch> score(String query, List<EmbeddingMatch<TextSegment>> results) {
+        QueryTerms queryTerms = QueryTerms.of(lexicalIndex.getTermIds(Bm25Index.tokenize(query)));
 
-        // Calculate re-ranking scores
         List<ScoredMatch> scoredMatches = new ArrayList<>();
         for (EmbeddingMatch<TextSegment> match : results) {
-            String text = match.embedded().text().toLowerCase();
-            double rerankScore = calculateRerankScore(queryTokens, text, match.score());
+            SegmentFeatures features = getFeatures(match.embedded());
+            double rerankScore = calculateRerankScore(queryTerms, features, match.score());
             scoredMatches.add(new ScoredMatch(match, rerankScore));
         }
 
-        // Sort by re-rank score (descending)
         scoredMatches.sort((a, b) -> Double.compare(b.score, a.score));
+        return scoredMatches;
+    }
 
-        // Convert back to EmbeddingMatch list
-        List<EmbeddingMatch<TextSegment>> reranked = new ArrayList<>();
-        for (ScoredMatch scored : scoredMatches) {
-            reranked.add(scored.match);
+    /**
+     * Get the term ids of a segment, precomputed by the lexical index, or
+     * computed here for segments it does not hold
+     */
+    private SegmentFeatures getFeatures(TextSegment segment) {
+        SegmentFeatures features = lexicalIndex.getFeatures(segment);
+        if (features != null) {
+            return features;
         }
+        return SegmentFeatures.of(lexicalIndex.getTermIds(Bm25Index.tokenize(segment.text())));
+    }
 
-        logger.debug("Re-ranked {} results", reranked.size());
-        return reranked;
+    /**
+     * Dot product of two embeddings, which equals their cosine similarity as
+     * the embedding model returns unit-length vectors
+     */
+    private static double dot(Embedding a, Embedding b) {
+        if (a == null || b == null) {
+            return 0;
+        }
+        float[] x = a.vector();
+        float[] y = b.vector();
+        int length = Math.min(x.length, y.length);
+        double sum = 0;
+        for (int i = 0; i < length; i++) {
+            sum += x[i] * y[i];
+        }
+        return sum;
     }
 
     /**
@@ -60,40 +172,36 @@ public class RerankingService {
      * - Position-based scoring (5% weight) - earlier matches score higher
      * - Exact phrase matching bonus (5% weight)
      * 
-     * @param queryTokens    Tokenized query terms
-     * @param text           The document text to score
+     * @param queryTerms     Term ids of the query
+     * @param features       Term ids of the document text
      * @param embeddingScore Original embedding similarity score
      * @return Combined re-ranking score
      */
-    private double calculateRerankScore(String[] queryTokens, String text, double embeddingScore) {
+    private double calculateRerankScore(QueryTerms queryTerms, SegmentFeatures features, double embeddingScore) {
         double score = embeddingScore * 0.6; // Base score from embedding similarity
 
-        String[] textTokens = tokenize(text);
+        int[] queryIds = queryTerms.ids();
+        int[] textIds = features.tokenIds();
 
         // Term frequency scoring
         int matchCount = 0;
-        int totalQueryTerms = queryTokens.length;
-        for (String queryToken : queryTokens) {
-            for (String textToken : textTokens) {
-                if (textToken.equals(queryToken)) {
-                    matchCount++;
-                    break;
-                }
+        for (int queryId : queryIds) {
+            if (queryId >= 0 && features.contains(queryId)) {
+                matchCount++;
             }
         }
-        double tfScore = totalQueryTerms > 0 ? (double) matchCount / totalQueryTerms : 0;
+        double tfScore = queryIds.length > 0 ? (double) matchCount / queryIds.length : 0;
         score += tfScore * 0.3;
 
         // Position-based scoring (earlier appearance = higher relevance)
-        int firstMatchPosition = findFirstMatchPosition(queryTokens, textTokens);
+        int firstMatchPosition = findFirstMatchPosition(queryTerms.distinctIds(), textIds);
         if (firstMatchPosition >= 0) {
             double positionScore = 1.0 / (1.0 + Math.log(firstMatchPosition + 1));
             score += positionScore * 0.05;
         }
 
         // Exact phrase matching bonus
-        String queryPhrase = String.join(" ", queryTokens);
-        if (text.contains(queryPhrase)) {
+        if (matchCount == queryIds.length && containsSequence(textIds, queryIds)) {
             score += 0.05;
         }
 
@@ -101,33 +209,49 @@ public class RerankingService {
     }
 
     /**
-     * Tokenize text into words (simple whitespace and punctuation split)
+     * Find the position of the first query term match in text
      * 
-     * @param text Text to tokenize
-     * @return Array of tokens
+     * @param queryIds Distinct query term ids, sorted
+     * @param textIds  Text term ids to search in
+     * @return Position of first match, or -1 if no match
      */
-    private String[] tokenize(String text) {
-        return text.replaceAll("[^a-zA-Z0-9\\s]", " ")
-                .trim()
-                .split("\\s+");
+    private static int findFirstMatchPosition(int[] queryIds, int[] textIds) {
+        for (int i = 0; i < textIds.length; i++) {
+            if (Arrays.binarySearch(queryIds, textIds[i]) >= 0) {
+                return i;
+            }
+        }
+        return -1;
     }
 
     /**
-     * Find the position of the first query token match in text
-     * 
-     * @param queryTokens Query tokens to search for
-     * @param textTokens  Text tokens to search in
-     * @return Position of first match, or -1 if no match
+     * Check whether the query term ids occur consecutively in the text
      */
-    private int findFirstMatchPosition(String[] queryTokens, String[] textTokens) {
-        for (int i = 0; i < textTokens.length; i++) {
-            for (String queryToken : queryTokens) {
-                if (textTokens[i].equals(queryToken)) {
-                    return i;
-                }
+    private static boolean containsSequence(int[] textIds, int[] queryIds) {
+        if (queryIds.length == 0) {
+            return false;
+        }
+        for (int start = 0; start + queryIds.length <= textIds.length; start++) {
+            int i = 0;
+            while (i < queryIds.length && textIds[start + i] == queryIds[i]) {
+                i++;
+            }
+            if (i == queryIds.length) {
+                return true;
             }
         }
-        return -1;
+        return false;
+    }
+
+    /**
+     * Term ids of a query in order (-1 for terms no segment contains), and its
+     * distinct known ids sorted for binary search
+     */
+    private record QueryTerms(int[] ids, int[] distinctIds) {
+
+        static QueryTerms of(int[] ids) {
+            return new QueryTerms(ids, Arrays.stream(ids).filter(id -> id >= 0).distinct().sorted().toArray());
+        }
     }
 
     /**
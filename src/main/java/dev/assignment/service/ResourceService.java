@@ -9,12 +9,19 @@ import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
-import org.apache.pdfbox.pdmodel.PDDocument;
-import org.apache.pdfbox.text.PDFTextStripper;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 import dev.assignment.model.Resource;
+import dev.assignment.model.ResourceEntry;
+import dev.assignment.util.TextNormalizer;
 import javafx.stage.FileChooser;
 
 /**
@@ -22,7 +29,9 @@ import javafx.stage.FileChooser;
  */
 public class ResourceService {
 
+    private static final Logger logger = LogManager.getLogger(ResourceService.class);
     private static final String STORAGE_DIR = "knowledgebase_storage";
+    private static String storageDir = STORAGE_DIR;
     private final String sessionId;
     private Path storagePath;
 
@@ -51,12 +60,95 @@ public class ResourceService {
         }
     }
 
+    /**
+     * Set the directory holding the knowledgebases of all sessions, null for
+     * the default. Used by tests.
+     */
+    static void setStorageDir(String dir) {
+        storageDir = dir != null ? dir : STORAGE_DIR;
+    }
+
     /**
      * Initialize the storage directory for this session
      */
     private void initialize() throws IOException {
-        storagePath = Paths.get(STORAGE_DIR, sessionId);
+        storagePath = Paths.get(storageDir, sessionId);
         Files.createDirectories(storagePath);
+
+        if (getCatalog().isEmpty()) {
+            // First use of the catalog for this session, so it has to be built
+            // before anything is listed
+            reconcileCatalog();
+        } else {
+            Thread reconcileThread = new Thread(this::reconcileCatalog, "catalog-reconcile");
+            reconcileThread.setDaemon(true);
+            reconcileThread.start();
+        }
+    }
+
+    /**
+     * Get the resource catalog of this session, keyed by file name
+     */
+    private Map<String, ResourceEntry> getCatalog() {
+        return DatabaseService.getInstance().getResourceCatalog(sessionId);
+    }
+
+    /**
+     * Get the catalog entries of all resources in the knowledgebase
+     */
+    public List<ResourceEntry> getCatalogEntries() {
+        return new ArrayList<>(getCatalog().values());
+    }
+
+    /**
+     * Get the catalog entry of a resource, or null if it is not in the catalog
+     */
+    public ResourceEntry getCatalogEntry(String fileName) {
+        return getCatalog().get(fileName);
+    }
+
+    /**
+     * Bring the catalog in line with the storage directory, picking up files
+     * that were added, changed or removed outside the application
+     */
+    public void reconcileCatalog() {
+        DatabaseService databaseService = DatabaseService.getInstance();
+        File[] files = getStoragePath().toFile().listFiles();
+        if (files == null) {
+            return;
+        }
+
+        Map<String, ResourceEntry> catalog = getCatalog();
+        Set<String> missing = new HashSet<>(catalog.keySet());
+        int changed = 0;
+
+        for (File file : files) {
+            if (!file.isFile()) {
+                continue;
+            }
+            missing.remove(file.getName());
+
+            ResourceEntry entry = catalog.get(file.getName());
+            if (entry == null || !entry.matches(file.length(), file.lastModified())) {
+                databaseService.saveResourceEntry(sessionId,
+                        ResourceEntry.pending(file.getName(), file.length(), file.lastModified(), null));
+                if (entry != null) {
+                    ExtractedTextCacheService.evict(entry.contentHash());
+                }
+                changed++;
+            }
+        }
+
+        for (String fileName : missing) {
+            String contentHash = catalog.get(fileName).contentHash();
+            databaseService.deleteResourceEntry(sessionId, fileName);
+            ExtractedTextCacheService.evict(contentHash);
+        }
+
+        if (changed > 0 || !missing.isEmpty()) {
+            logger.info("Catalog reconciled for session {}: {} added or changed, {} removed",
+                    sessionId, changed, missing.size());
+        }
     }
 
     /**
@@ -71,18 +163,10 @@ public class ResourceService {
      */
     public List<Resource> getAllResources() {
         List<Resource> resources = new ArrayList<>();
-        File storageDir = getStoragePath().toFile();
-
-        if (storageDir.exists() && storageDir.isDirectory()) {
-            File[] files = storageDir.listFiles();
-            if (files != null) {
-                for (File file : files) {
-                    if (file.isFile()) {
-                        resources.add(new Resource(file.getName(), file));
-                    }
-                }
-            }
+        for (ResourceEntry entry : getCatalog().values()) {
+            resources.add(new Resource(entry, getStoragePath().resolve(entry.fileName()).toFile()));
         }
+        resources.sort(Comparator.comparing(Resource::getFileName));
         return resources;
     }
 
@@ -90,10 +174,9 @@ public class ResourceService {
      * Get a specific resource by filename
      */
     public Resource getResource(String fileName) {
-        Path filePath = getStoragePath().resolve(fileName);
-        File file = filePath.toFile();
-        if (file.exists()) {
-            return new Resource(fileName, file);
+        ResourceEntry entry = getCatalog().get(fileName);
+        if (entry != null) {
+            return new Resource(entry, getStoragePath().resolve(fileName).toFile());
         }
         return null;
     }
@@ -102,19 +185,14 @@ public class ResourceService {
      * Check if a resource exists
      */
     public boolean resourceExists(String fileName) {
-        return getResource(fileName) != null;
+        return getCatalog().containsKey(fileName);
     }
 
     /**
      * Get the count of resources in the knowledge base
      */
     public int getResourceCount() {
-        File storageDir = getStoragePath().toFile();
-        if (storageDir.exists() && storageDir.isDirectory()) {
-            File[] files = storageDir.listFiles();
-            return files != null ? files.length : 0;
-        }
-        return 0;
+        return getCatalog().size();
     }
 
     public boolean resourceExtensionValid(String extension) {
@@ -191,14 +269,27 @@ public class ResourceService {
 
         Files.copy(sourceFile.toPath(), destinationPath, StandardCopyOption.REPLACE_EXISTING);
 
-        return new Resource(fileName, destinationPath.toFile());
+        File destinationFile = destinationPath.toFile();
+        ResourceEntry entry = ResourceEntry.pending(fileName, destinationFile.length(),
+                destinationFile.lastModified(), ExtractedTextCacheService.getContentHash(destinationFile));
+        DatabaseService.getInstance().saveResourceEntry(sessionId, entry);
+
+        return new Resource(entry, destinationFile);
     }
 
     /**
      * Delete a resource
      */
     public boolean deleteResource(Resource resource) throws IOException {
-        return resource.delete();
+        boolean deleted = resource.delete();
+        if (deleted || !resource.exists()) {
+            ResourceEntry entry = getCatalogEntry(resource.getFileName());
+            DatabaseService.getInstance().deleteResourceEntry(sessionId, resource.getFileName());
+            if (entry != null) {
+                ExtractedTextCacheService.evict(entry.contentHash());
+            }
+        }
+        return deleted;
     }
 
     /**
@@ -221,28 +312,11 @@ public class ResourceService {
     }
 
     /**
-     * Reads the file content of a file, handling PDF format files specifically
+     * Reads the file content of a file, handling PDF format files specifically.
+     * The extracted text is served from the extracted-text cache when possible.
      */
     public static String readFileContent(File file) throws IOException {
-        String fileExtension = getFileExtension(file.getName()).toLowerCase();
-        if (fileExtension.equals(".pdf")) {
-            try (PDDocument document = PDDocument.load(file)) {
-                PDFTextStripper pdfStripper = new PDFTextStripper();
-                return pdfStripper.getText(document);
-            }
-        } else {
-            return Files.readString(file.toPath());
-        }
-    }
-    
-    /**
-     * Extract text content from a PDF file
-     */
-    private static String readPdfContent(File pdfFile) throws IOException {
-        try (PDDocument document = PDDocument.load(pdfFile)) {
-            PDFTextStripper pdfStripper = new PDFTextStripper();
-            return pdfStripper.getText(document);
-        }
+        return ExtractedTextCacheService.readText(file).replace(TextNormalizer.PAGE_BREAK, '\n');
     }
 
 }
@@ -0,0 +1,223 @@
+package dev.assignment.service;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import dev.assignment.util.Constants;
+
+/**
+ * Picks the vector search strategy of a session from its index statistics and
+ * the search latencies observed so far. Size thresholds give the starting
+ * point; a strategy whose average latency exceeds the target gives way to the
+ * next cheaper one that is available. A strategy stepped down from is
+ * re-sampled now and then, so that one slow spell does not settle the session
+ * for good.
+ */
+public class SearchPlanner {
+
+    private static final Logger logger = LogManager.getLogger(SearchPlanner.class);
+
+    /**
+     * Weight of the newest latency in the moving averages
+     */
+    private static final double LATENCY_SMOOTHING = 0.2;
+
+    /**
+     * Number of searches a strategy must be timed over before it can be found
+     * too slow
+     */
+    private static final int MIN_LATENCY_SAMPLES = 3;
+
+    /**
+     * Number of searches with a cheaper strategy after which the preferred
+     * strategy is re-sampled
+     */
+    private static final int REPROBE_INTERVAL = 50;
+
+    /**
+     * Search strategies, from the most exact and costly to the cheapest
+     */
+    public enum Strategy {
+        /** Scan of the in-memory store */
+        EXACT,
+        /** Scan of the store split across threads */
+        SHARDED,
+        /** Scan of the files closest by centroid */
+        ROUTED,
+        /** Scan of embedding prefixes, re-scored with full vectors */
+        PREFIX,
+        /** Beam search of the disk-resident graph index */
+        GRAPH
+    }
+
+    /**
+     * Size of a session's vector index
+     */
+    public record IndexStats(int segmentCount, int fileCount, int dimensions) {
+
+        public long vectorBytes() {
+            return (long) segmentCount * dimensions * Float.BYTES;
+        }
+    }
+
+    private final Map<Strategy, Latency> latencies = new EnumMap<>(Strategy.class);
+    private Strategy lastStrategy;
+
+    /**
+     * Number of searches with a cheaper strategy since the preferred strategy
+     * was last re-sampled
+     */
+    private int searchesSinceProbe = 0;
+
+    /**
+     * Strategy being re-sampled and its new latencies, which replace the old
+     * ones once there are enough of them
+     */
+    private Strategy probing;
+    private Latency probeLatency;
+
+    /**
+     * Record the duration of a search
+     */
+    public synchronized void recordLatency(Strategy strategy, long millis) {
+        if (strategy == probing) {
+            probeLatency.add(millis);
+            if (probeLatency.samples >= MIN_LATENCY_SAMPLES) {
+                latencies.put(strategy, probeLatency);
+                logger.debug("Re-sampled strategy {} at {} ms", strategy, Math.round(probeLatency.average));
+                probing = null;
+                probeLatency = null;
+            }
+            return;
+        }
+        latencies.computeIfAbsent(strategy, k -> new Latency()).add(millis);
+    }
+
+    /**
+     * Get the average latency of a strategy
+     *
+     * @return The latency in milliseconds, or -1 if it has not been used
+     */
+    public synchronized double getAverageLatency(Strategy strategy) {
+        Latency latency = latencies.get(strategy);
+        return latency != null ? latency.average : -1.0;
+    }
+
+    /**
+     * Whether the session should have a graph index
+     */
+    public boolean wantsGraph(IndexStats stats) {
+        return stats.segmentCount() >= Constants.DISK_INDEX_MIN_SEGMENTS;
+    }
+
+    /**
+     * Whether the session should have a prefix index, because it is large or
+     * because the cheaper scans have proven too slow for it
+     */
+    public synchronized boolean wantsPrefix(IndexStats stats) {
+        return stats.segmentCount() >= Constants.PREFIX_SEARCH_MIN_SEGMENTS
+                || isOverTarget(Strategy.SHARDED) || isOverTarget(Strategy.ROUTED);
+    }
+
+    /**
+     * Pick the strategy for the next search
+     *
+     * @param graphReady   Whether the graph index covers the current index
+     * @param prefixReady  Whether the prefix index is built
+     * @param prefixForced Whether the prefix index was chosen for the session,
+     *                     rather than built because the scans were too slow
+     */
+    public synchronized Strategy choose(IndexStats stats, boolean graphReady, boolean prefixReady,
+            boolean prefixForced) {
+        Strategy preferred;
+        if (graphReady && wantsGraph(stats)) {
+            preferred = Strategy.GRAPH;
+        } else if (prefixReady && (prefixForced || stats.segmentCount() >= Constants.PREFIX_SEARCH_MIN_SEGMENTS)) {
+            preferred = Strategy.PREFIX;
+        } else if (canRoute(stats)) {
+            preferred = Strategy.ROUTED;
+        } else if (stats.segmentCount() >= Constants.SHARDED_SEARCH_MIN_SEGMENTS) {
+            preferred = Strategy.SHARDED;
+        } else {
+            preferred = Strategy.EXACT;
+        }
+
+        if (probing != null && probing != preferred) {
+            probing = null;
+            probeLatency = null;
+        }
+
+        // Step down to cheaper strategies while the chosen one is too slow
+        Strategy strategy = preferred;
+        if (probing == null) {
+            while (isOverTarget(strategy)) {
+                Strategy cheaper = cheaperStrategy(strategy, stats, graphReady, prefixReady);
+                if (cheaper == null) {
+                    break;
+                }
+                strategy = cheaper;
+            }
+        }
+
+        // Now and then time the preferred strategy again, keeping its old
+        // latencies until the new ones are in
+        if (strategy != preferred && ++searchesSinceProbe >= REPROBE_INTERVAL) {
+            searchesSinceProbe = 0;
+            probing = preferred;
+            probeLatency = new Latency();
+            strategy = preferred;
+        }
+
+        if (strategy != lastStrategy) {
+            logger.info("Searching {} segments ({} MB of vectors) with strategy {}", stats.segmentCount(),
+                    stats.vectorBytes() / (1024 * 1024), strategy);
+            lastStrategy = strategy;
+        }
+        return strategy;
+    }
+
+    private Strategy cheaperStrategy(Strategy strategy, IndexStats stats, boolean graphReady,
+            boolean prefixReady) {
+        for (Strategy candidate : Strategy.values()) {
+            if (candidate.ordinal() <= strategy.ordinal()) {
+                continue;
+            }
+            boolean available = switch (candidate) {
+                case EXACT, SHARDED -> true;
+                case ROUTED -> canRoute(stats);
+                case PREFIX -> prefixReady;
+                case GRAPH -> graphReady;
+            };
+            if (available) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private boolean canRoute(IndexStats stats) {
+        return stats.fileCount() > 2 * Constants.ROUTED_SEARCH_FILES;
+    }
+
+    private boolean isOverTarget(Strategy strategy) {
+        Latency latency = latencies.get(strategy);
+        return latency != null && latency.samples >= MIN_LATENCY_SAMPLES
+                && latency.average > Constants.SEARCH_LATENCY_TARGET_MS;
+    }
+
+    /**
+     * Moving average of a strategy's search latencies
+     */
+    private static class Latency {
+        double average;
+        int samples;
+
+        void add(long millis) {
+            average = samples == 0 ? millis : average + LATENCY_SMOOTHING * (millis - average);
+            samples++;
+        }
+    }
+}
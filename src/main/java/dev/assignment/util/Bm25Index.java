@@ -0,0 +1,439 @@
+package dev.assignment.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+
+/**
+ * In-memory BM25 inverted index over the segments of a session, used next to
+ * vector search so that exact identifiers, codes and names are retrieved even
+ * when their embeddings are not close to the query's.
+ *
+ * Postings are kept per term as varint-encoded (document id delta, term
+ * frequency) pairs in a growable byte array. Removed documents are left as
+ * tombstones and skipped until they outnumber the live ones, at which point
+ * the index is rebuilt.
+ *
+ * Each document's term ids are also kept in order, so the reranker can score
+ * candidates with integer lookups instead of tokenizing their text per query.
+ */
+public class Bm25Index {
+
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    private static final int FORMAT_VERSION = 2;
+    private static final Pattern TOKEN_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}_]+");
+
+    private final Map<String, Integer> termIds = new HashMap<>();
+    private final List<String> terms = new ArrayList<>();
+    private final List<Postings> postings = new ArrayList<>();
+
+    /**
+     * Key of each document, null once removed
+     */
+    private final List<String> docKeys = new ArrayList<>();
+
+    /**
+     * Store entry of each document, null once removed
+     */
+    private final List<EmbeddingMatch<TextSegment>> docs = new ArrayList<>();
+
+    /**
+     * Term features of each document, null once removed
+     */
+    private final List<SegmentFeatures> docFeatures = new ArrayList<>();
+    private final Map<String, Integer> docIdsByKey = new HashMap<>();
+    private int[] docLengths = new int[64];
+    private int liveDocs = 0;
+    private long liveLength = 0;
+
+    /**
+     * Split text into lowercase terms
+     */
+    public static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        for (String token : TOKEN_SEPARATOR.split(text.toLowerCase())) {
+            if (!token.isEmpty()) {
+                tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Get the key identifying a segment across restarts: its file and ordinal,
+     * or its file and text hash for segments indexed without ordinals
+     */
+    public static String docKey(TextSegment segment) {
+        String fileName = segment.metadata().getString("fileName");
+        if (segment.metadata().containsKey(SegmentMerger.ORDINAL_KEY)) {
+            return fileName + "#" + segment.metadata().getInteger(SegmentMerger.ORDINAL_KEY);
+        }
+        return fileName + "#h" + Integer.toHexString(segment.text().hashCode());
+    }
+
+    /**
+     * Add a store entry to the index
+     */
+    public synchronized void add(EmbeddingMatch<TextSegment> entry) {
+        List<String> tokens = tokenize(entry.embedded().text());
+        int[] tokenIds = new int[tokens.size()];
+        for (int i = 0; i < tokenIds.length; i++) {
+            tokenIds[i] = termId(tokens.get(i));
+        }
+        addDocument(docKey(entry.embedded()), entry, tokenIds);
+    }
+
+    private void addDocument(String key, EmbeddingMatch<TextSegment> entry, int[] tokenIds) {
+        int docId = docKeys.size();
+
+        // Runs of equal ids in the sorted copy give each term's frequency
+        int[] sortedIds = tokenIds.clone();
+        Arrays.sort(sortedIds);
+        int[] uniqueIds = new int[sortedIds.length];
+        int uniqueCount = 0;
+        for (int start = 0, end; start < sortedIds.length; start = end) {
+            end = start + 1;
+            while (end < sortedIds.length && sortedIds[end] == sortedIds[start]) {
+                end++;
+            }
+            uniqueIds[uniqueCount++] = sortedIds[start];
+            postings.get(sortedIds[start]).add(docId, end - start);
+        }
+        SegmentFeatures features = new SegmentFeatures(tokenIds, Arrays.copyOf(uniqueIds, uniqueCount));
+
+        docKeys.add(key);
+        docs.add(entry);
+        docFeatures.add(features);
+        docIdsByKey.put(key, docId);
+        if (docId == docLengths.length) {
+            docLengths = Arrays.copyOf(docLengths, docLengths.length * 2);
+        }
+        docLengths[docId] = tokenIds.length;
+        liveDocs++;
+        liveLength += tokenIds.length;
+    }
+
+    /**
+     * Remove every document of a file
+     */
+    public synchronized void removeFile(String fileName) {
+        for (int docId = 0; docId < docs.size(); docId++) {
+            EmbeddingMatch<TextSegment> doc = docs.get(docId);
+            if (doc != null && fileName.equals(doc.embedded().metadata().getString("fileName"))) {
+                remove(docId);
+            }
+        }
+        if (docKeys.size() - liveDocs > liveDocs) {
+            compact();
+        }
+    }
+
+    private void remove(int docId) {
+        for (int termId : docFeatures.get(docId).uniqueTokenIds()) {
+            postings.get(termId).docFrequency--;
+        }
+        docIdsByKey.remove(docKeys.get(docId), docId);
+        docKeys.set(docId, null);
+        docs.set(docId, null);
+        docFeatures.set(docId, null);
+        liveDocs--;
+        liveLength -= docLengths[docId];
+    }
+
+    /**
+     * Rebuild the index from its live documents
+     */
+    private void compact() {
+        List<EmbeddingMatch<TextSegment>> live = new ArrayList<>();
+        for (EmbeddingMatch<TextSegment> doc : docs) {
+            if (doc != null) {
+                live.add(doc);
+            }
+        }
+        rebuild(live);
+    }
+
+    /**
+     * Replace the content of the index with the given store entries
+     */
+    public synchronized void rebuild(List<EmbeddingMatch<TextSegment>> entries) {
+        termIds.clear();
+        terms.clear();
+        postings.clear();
+        docKeys.clear();
+        docs.clear();
+        docFeatures.clear();
+        docIdsByKey.clear();
+        liveDocs = 0;
+        liveLength = 0;
+        for (EmbeddingMatch<TextSegment> entry : entries) {
+            add(entry);
+        }
+    }
+
+    /**
+     * Find the documents scoring highest for a query
+     *
+     * @return Store entries with their BM25 score, best first
+     */
+    public synchronized List<EmbeddingMatch<TextSegment>> search(String query, int maxResults) {
+        if (liveDocs == 0) {
+            return List.of();
+        }
+
+        double averageLength = (double) liveLength / liveDocs;
+        double[] scores = new double[docKeys.size()];
+        Set<Integer> queryTerms = new HashSet<>();
+        for (String token : tokenize(query)) {
+            Integer termId = termIds.get(token);
+            if (termId != null) {
+                queryTerms.add(termId);
+            }
+        }
+
+        for (int termId : queryTerms) {
+            Postings termPostings = postings.get(termId);
+            if (termPostings.docFrequency <= 0) {
+                continue;
+            }
+            double idf = Math.log(1 + (liveDocs - termPostings.docFrequency + 0.5)
+                    / (termPostings.docFrequency + 0.5));
+
+            int[] position = { 0 };
+            int docId = -1;
+            while (position[0] < termPostings.size) {
+                docId += readVarint(termPostings.data, position);
+                int frequency = readVarint(termPostings.data, position);
+                if (docs.get(docId) == null) {
+                    continue;
+                }
+                double norm = K1 * (1 - B + B * docLengths[docId] / averageLength);
+                scores[docId] += idf * frequency * (K1 + 1) / (frequency + norm);
+            }
+        }
+
+        PriorityQueue<Integer> top = new PriorityQueue<>((a, b) -> Double.compare(scores[a], scores[b]));
+        for (int docId = 0; docId < scores.length; docId++) {
+            if (scores[docId] > 0) {
+                top.add(docId);
+                if (top.size() > maxResults) {
+                    top.poll();
+                }
+            }
+        }
+
+        List<EmbeddingMatch<TextSegment>> results = new ArrayList<>();
+        while (!top.isEmpty()) {
+            int docId = top.poll();
+            EmbeddingMatch<TextSegment> doc = docs.get(docId);
+            results.add(0, new EmbeddingMatch<>(scores[docId], doc.embeddingId(), doc.embedding(), doc.embedded()));
+        }
+        return results;
+    }
+
+    public synchronized int size() {
+        return liveDocs;
+    }
+
+    /**
+     * Get the store entry of an indexed segment by its key
+     *
+     * @return The entry, or null if the segment is not in the index
+     */
+    public synchronized EmbeddingMatch<TextSegment> getEntry(String key) {
+        Integer docId = docIdsByKey.get(key);
+        return docId != null ? docs.get(docId) : null;
+    }
+
+    /**
+     * Get the term features of an indexed segment
+     *
+     * @return The features, or null if the segment is not in the index
+     */
+    public synchronized SegmentFeatures getFeatures(TextSegment segment) {
+        Integer docId = docIdsByKey.get(docKey(segment));
+        return docId != null ? docFeatures.get(docId) : null;
+    }
+
+    /**
+     * Map query tokens to term ids, -1 for terms not in the index
+     */
+    public synchronized int[] getTermIds(List<String> tokens) {
+        int[] ids = new int[tokens.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = termIds.getOrDefault(tokens.get(i), -1);
+        }
+        return ids;
+    }
+
+    private int termId(String term) {
+        Integer termId = termIds.get(term);
+        if (termId == null) {
+            termId = terms.size();
+            termIds.put(term, termId);
+            terms.add(term);
+            postings.add(new Postings());
+        }
+        return termId;
+    }
+
+    /**
+     * Write the index: its vocabulary and, per document, its key and term ids.
+     * Documents are resolved against the embedding store on load, and postings
+     * are rebuilt from the term ids.
+     */
+    public synchronized void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(terms.size());
+        for (String term : terms) {
+            out.writeUTF(term);
+        }
+
+        out.writeInt(liveDocs);
+        for (int docId = 0; docId < docKeys.size(); docId++) {
+            if (docKeys.get(docId) == null) {
+                continue;
+            }
+            int[] tokenIds = docFeatures.get(docId).tokenIds();
+            out.writeUTF(docKeys.get(docId));
+            writeVarint(out, tokenIds.length);
+            for (int tokenId : tokenIds) {
+                writeVarint(out, tokenId);
+            }
+        }
+    }
+
+    /**
+     * Replace the content of the index with one written by writeTo, resolving
+     * its documents against the entries of the embedding store
+     *
+     * @return False if the stored index does not match the store, in which case
+     *         the index must be rebuilt
+     */
+    public synchronized boolean readFrom(DataInputStream in, List<EmbeddingMatch<TextSegment>> storeEntries)
+            throws IOException {
+        rebuild(List.of());
+        if (in.readInt() != FORMAT_VERSION) {
+            return false;
+        }
+
+        int termCount = in.readInt();
+        for (int termId = 0; termId < termCount; termId++) {
+            termId(in.readUTF());
+        }
+
+        Map<String, EmbeddingMatch<TextSegment>> entriesByKey = new HashMap<>();
+        for (EmbeddingMatch<TextSegment> entry : storeEntries) {
+            entriesByKey.put(docKey(entry.embedded()), entry);
+        }
+
+        int docCount = in.readInt();
+        for (int i = 0; i < docCount; i++) {
+            String key = in.readUTF();
+            int[] tokenIds = new int[readVarint(in)];
+            for (int j = 0; j < tokenIds.length; j++) {
+                tokenIds[j] = readVarint(in);
+                if (tokenIds[j] >= termCount) {
+                    return false;
+                }
+            }
+
+            EmbeddingMatch<TextSegment> entry = entriesByKey.remove(key);
+            if (entry == null) {
+                return false;
+            }
+            addDocument(key, entry, tokenIds);
+        }
+
+        // Store entries the index does not know about
+        return entriesByKey.isEmpty();
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Term ids of a document in text order, and the sorted set of its distinct
+     * term ids for lookups with Arrays.binarySearch
+     */
+    public record SegmentFeatures(int[] tokenIds, int[] uniqueTokenIds) {
+
+        public static SegmentFeatures of(int[] tokenIds) {
+            return new SegmentFeatures(tokenIds, Arrays.stream(tokenIds).distinct().sorted().toArray());
+        }
+
+        public boolean contains(int termId) {
+            return Arrays.binarySearch(uniqueTokenIds, termId) >= 0;
+        }
+    }
+
+    /**
+     * Postings of one term
+     */
+    private static class Postings {
+        byte[] data = new byte[8];
+        int size = 0;
+        int lastDoc = -1;
+        int docFrequency = 0;
+
+        void add(int docId, int frequency) {
+            writeVarint(docId - lastDoc);
+            writeVarint(frequency);
+            lastDoc = docId;
+            docFrequency++;
+        }
+
+        private void writeVarint(int value) {
+            if (size + 5 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            while ((value & ~0x7F) != 0) {
+                data[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            data[size++] = (byte) value;
+        }
+    }
+
+    private static int readVarint(byte[] data, int[] position) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data[position[0]++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
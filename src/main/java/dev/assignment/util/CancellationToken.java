@@ -0,0 +1,68 @@
+package dev.assignment.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Cooperative cancellation signal for an in-flight request. Long-running
+ * steps either poll it or register a listener that aborts their work.
+ */
+public class CancellationToken {
+
+    private volatile boolean cancelled = false;
+    private final List<Runnable> listeners = new ArrayList<>();
+
+    /**
+     * Cancel the request, running every registered listener once
+     */
+    public void cancel() {
+        List<Runnable> toRun;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            toRun = new ArrayList<>(listeners);
+            listeners.clear();
+        }
+        for (Runnable listener : toRun) {
+            listener.run();
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Register a listener to run on cancellation. Runs it immediately if the
+     * token is already cancelled.
+     *
+     * @return Action that unregisters the listener
+     */
+    public Runnable onCancel(Runnable listener) {
+        synchronized (this) {
+            if (!cancelled) {
+                listeners.add(listener);
+                return () -> {
+                    synchronized (this) {
+                        listeners.remove(listener);
+                    }
+                };
+            }
+        }
+        listener.run();
+        return () -> {
+        };
+    }
+
+    /**
+     * Throw a CancellationException if the token has been cancelled
+     */
+    public void throwIfCancelled() {
+        if (cancelled) {
+            throw new CancellationException("Request cancelled");
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package dev.assignment.util;
 
+import java.util.List;
+import java.util.Map;
+
 /**
  * Application constants
  */
@@ -19,11 +22,74 @@ public class Constants {
             "gpt-5-nano"
     };
 
+    /**
+     * Context window of each available model, in tokens
+     */
+    public static final Map<String, Integer> MODEL_CONTEXT_WINDOWS = Map.of(
+            "gpt-4o-mini", 128_000,
+            "gpt-4o", 128_000,
+            "gpt-4.1", 1_047_576,
+            "gpt-4.1-mini", 1_047_576,
+            "gpt-4.1-nano", 1_047_576,
+            "gpt-5", 400_000,
+            "gpt-5-mini", 400_000,
+            "gpt-5-nano", 400_000);
+
+    /**
+     * Inexpensive model that condenses older conversation turns into the
+     * session's running summary
+     */
+    public static final String SUMMARY_MODEL = "gpt-4.1-nano";
+
     /**
      * Default model
      */
     public static final String DEFAULT_MODEL = "gpt-4o-mini";
 
+    /**
+     * OpenAI model used for document and query embeddings
+     */
+    public static final String EMBEDDING_MODEL = "text-embedding-3-small";
+
+    /**
+     * Dimension of the embedding model's vectors
+     */
+    public static final int EMBEDDING_DIMENSIONS = 1536;
+
+    /**
+     * Prefix lengths offered for two-stage vector search, where a first pass
+     * over truncated embeddings is re-scored with the full vectors. Zero leaves
+     * the choice to the search planner.
+     */
+    public static final List<Integer> PREFIX_SEARCH_DIMENSIONS = List.of(0, 512, 256);
+
+    /**
+     * Prefix length of the prefix index the search planner builds for large
+     * sessions left on automatic search
+     */
+    public static final int AUTO_PREFIX_DIMENSIONS = 256;
+
+    /**
+     * Segment counts from which the search planner splits the exact scan
+     * across threads, builds a prefix index, and builds a disk-resident graph
+     * index
+     */
+    public static final int SHARDED_SEARCH_MIN_SEGMENTS = 5_000;
+    public static final int PREFIX_SEARCH_MIN_SEGMENTS = 20_000;
+    public static final int DISK_INDEX_MIN_SEGMENTS = 50_000;
+
+    /**
+     * Number of files, closest by centroid, whose segments are scored by routed
+     * search. Used when a session has more than twice as many files.
+     */
+    public static final int ROUTED_SEARCH_FILES = 10;
+
+    /**
+     * Average vector search latency above which the search planner moves to a
+     * cheaper strategy
+     */
+    public static final long SEARCH_LATENCY_TARGET_MS = 50;
+
     /**
      * Maximum query length in characters
      */
@@ -39,6 +105,12 @@ public class Constants {
      */
     public static final long MAX_DOCUMENT_SIZE_BYTES = 50 * 1024 * 1024;
 
+    /**
+     * Appended to an answer the user stopped, in the chat, the database and the
+     * session history alike
+     */
+    public static final String RESPONSE_STOPPED_MARKER = "\n\n[Response stopped]";
+
     private Constants() {
         // Prevent instantiation
     }
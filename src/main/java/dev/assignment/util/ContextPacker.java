@@ -0,0 +1,202 @@
+package dev.assignment.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.data.segment.TextSegment;
+
+/**
+ * Assembles the chat prompt within a token budget derived from the model's
+ * context window. The system message and the question are always sent; recent
+ * history is kept newest first up to a share of the budget, and retrieved
+ * segments fill the rest in ranking order, the last one truncated if it only
+ * partly fits.
+ */
+public class ContextPacker {
+
+    private static final Logger logger = LogManager.getLogger(ContextPacker.class);
+
+    /**
+     * Context window assumed for models missing from the model table
+     */
+    private static final int DEFAULT_CONTEXT_WINDOW = 128_000;
+
+    /**
+     * Upper bound on the prompt size whatever the model's window, since every
+     * prompt token adds latency and cost
+     */
+    private static final int MAX_PROMPT_TOKENS = 12_000;
+
+    /**
+     * Tokens left free in the context window for the answer
+     */
+    private static final int RESERVED_ANSWER_TOKENS = 4_096;
+
+    /**
+     * Largest share of the budget that chat history may take
+     */
+    private static final double MAX_HISTORY_SHARE = 0.25;
+
+    /**
+     * Smallest remainder worth filling with a truncated segment
+     */
+    private static final int MIN_TRUNCATED_SEGMENT_TOKENS = 48;
+
+    private static final String CONTEXT_HEADER = "Relevant context:\n\n";
+    private static final String SEGMENT_SEPARATOR = "\n\n";
+    private static final String QUESTION_PREFIX = "\nUser question: ";
+
+    private final String modelName;
+    private final int budget;
+
+    public ContextPacker(String modelName) {
+        this.modelName = modelName;
+        int contextWindow = Constants.MODEL_CONTEXT_WINDOWS.getOrDefault(modelName, DEFAULT_CONTEXT_WINDOW);
+        this.budget = Math.min(contextWindow - RESERVED_ANSWER_TOKENS, MAX_PROMPT_TOKENS);
+    }
+
+    /**
+     * Get the prompt token budget
+     */
+    public int getBudget() {
+        return budget;
+    }
+
+    /**
+     * Get the most tokens that chat history may take in a prompt
+     */
+    public int getHistoryBudget() {
+        return (int) (budget * MAX_HISTORY_SHARE);
+    }
+
+    /**
+     * Pack the prompt for a question
+     *
+     * @param history  Session history before the question, system message first
+     * @param question The user's question
+     * @param segments Retrieved segments, best first
+     */
+    public PackedPrompt pack(List<ChatMessage> history, String question, List<TextSegment> segments) {
+        ChatMessage systemMessage = !history.isEmpty() && history.get(0) instanceof SystemMessage
+                ? history.get(0)
+                : null;
+        int systemTokens = systemMessage != null ? TokenCounter.count(systemMessage, modelName) : 0;
+        int questionTokens = TokenCounter.count(UserMessage.from(CONTEXT_HEADER + QUESTION_PREFIX + question),
+                modelName);
+        int remaining = budget - systemTokens - questionTokens;
+
+        // History, newest first, up to its share of the budget
+        List<ChatMessage> keptHistory = new ArrayList<>();
+        int historyTokens = 0;
+        int historyLimit = (int) (Math.max(0, remaining) * MAX_HISTORY_SHARE);
+        for (int i = history.size() - 1; i >= (systemMessage != null ? 1 : 0); i--) {
+            int messageTokens = TokenCounter.count(history.get(i), modelName);
+            if (historyTokens + messageTokens > historyLimit) {
+                break;
+            }
+            keptHistory.add(history.get(i));
+            historyTokens += messageTokens;
+        }
+        Collections.reverse(keptHistory);
+        remaining -= historyTokens;
+
+        // Segments in ranking order, truncating the one that only partly fits
+        List<TextSegment> packedSegments = new ArrayList<>();
+        int contextTokens = 0;
+        int separatorTokens = TokenCounter.count(SEGMENT_SEPARATOR, modelName);
+        int dropped = 0;
+        for (TextSegment segment : segments) {
+            int segmentTokens = TokenCounter.count(segment, modelName) + separatorTokens;
+            int available = remaining - contextTokens;
+            if (segmentTokens <= available) {
+                packedSegments.add(segment);
+                contextTokens += segmentTokens;
+            } else if (available - separatorTokens >= MIN_TRUNCATED_SEGMENT_TOKENS) {
+                TextSegment truncated = truncate(segment, available - separatorTokens);
+                packedSegments.add(truncated);
+                contextTokens += TokenCounter.count(truncated, modelName) + separatorTokens;
+            } else {
+                dropped++;
+            }
+        }
+
+        StringBuilder content = new StringBuilder();
+        if (!packedSegments.isEmpty()) {
+            content.append(CONTEXT_HEADER);
+            for (TextSegment segment : packedSegments) {
+                content.append(segment.text()).append(SEGMENT_SEPARATOR);
+            }
+            content.append(QUESTION_PREFIX).append(question);
+        } else {
+            content.append(question);
+        }
+
+        List<ChatMessage> messages = new ArrayList<>();
+        if (systemMessage != null) {
+            messages.add(systemMessage);
+        }
+        messages.addAll(keptHistory);
+        messages.add(UserMessage.from(content.toString()));
+
+        TokenUsage usage = new TokenUsage(budget, systemTokens, historyTokens, contextTokens, questionTokens,
+                history.size() - (systemMessage != null ? 1 : 0) - keptHistory.size(), dropped);
+        if (usage.droppedSegments() > 0 || usage.droppedHistoryMessages() > 0) {
+            logger.debug("Dropped {} segments and {} history messages to fit {} tokens", dropped,
+                    usage.droppedHistoryMessages(), budget);
+        }
+        return new PackedPrompt(messages, packedSegments, usage);
+    }
+
+    /**
+     * Cut a segment down to at most the given number of tokens, at a word
+     * boundary where possible
+     */
+    private TextSegment truncate(TextSegment segment, int maxTokens) {
+        String text = segment.text();
+        int totalTokens = Math.max(1, TokenCounter.count(segment, modelName));
+        String truncated = text.substring(0, (int) Math.min(text.length(), (long) text.length() * maxTokens
+                / totalTokens));
+        while (!truncated.isEmpty() && TokenCounter.count(truncated + " ...", modelName) > maxTokens) {
+            truncated = truncated.substring(0, truncated.length() * 9 / 10);
+        }
+
+        int lastSpace = truncated.lastIndexOf(' ');
+        if (lastSpace > truncated.length() / 2) {
+            truncated = truncated.substring(0, lastSpace);
+        }
+        truncated += " ...";
+
+        return TextSegment.from(truncated, TokenCounter.storeCount(segment.metadata().copy(),
+                TokenCounter.count(truncated, modelName), modelName));
+    }
+
+    /**
+     * Estimated token usage of a packed prompt, by part
+     */
+    public record TokenUsage(
+            int budget,
+            int systemTokens,
+            int historyTokens,
+            int contextTokens,
+            int questionTokens,
+            int droppedHistoryMessages,
+            int droppedSegments) {
+
+        public int totalTokens() {
+            return systemTokens + historyTokens + contextTokens + questionTokens;
+        }
+    }
+
+    /**
+     * Messages of a packed prompt together with the segments that made it in
+     */
+    public record PackedPrompt(List<ChatMessage> messages, List<TextSegment> segments, TokenUsage usage) {
+    }
+}
@@ -0,0 +1,659 @@
+package dev.assignment.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.Function;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.RelevanceScore;
+
+/**
+ * Graph index over the segments of a large session, kept in a memory-mapped
+ * file in the style of DiskANN. Each node record holds the full vector and the
+ * adjacency list of a segment, so expanding a node costs one or two page reads;
+ * only product-quantized codes of the vectors stay on the heap, and they guide
+ * the beam search towards the nodes worth reading. The nodes read are then
+ * ranked by their exact similarity. Besides the codes, the heap holds only the
+ * id and segment of each node; the vectors of the results are read from the
+ * node records too.
+ *
+ * The graph is built with Vamana: each node is linked to the nodes found by a
+ * greedy search for it, pruned so that the kept neighbours point in different
+ * directions, which keeps search paths short.
+ */
+public class DiskGraphIndex {
+
+    private static final int MAGIC = 0x56414d41;
+    private static final int FORMAT_VERSION = 2;
+    private static final int HEADER_BYTES = 40;
+
+    /**
+     * Maximum number of neighbours per node
+     */
+    private static final int MAX_DEGREE = 32;
+
+    /**
+     * Candidate list size of the greedy searches while building
+     */
+    private static final int BUILD_LIST_SIZE = 64;
+
+    /**
+     * Pruning slack: a candidate is dropped only if a kept neighbour is this
+     * much closer to it than the node is
+     */
+    private static final float PRUNE_ALPHA = 1.2f;
+
+    /**
+     * Number of nodes read per step of the beam search
+     */
+    private static final int BEAM_WIDTH = 4;
+
+    /**
+     * Dimensions per product quantization subspace and centroids per subspace
+     */
+    private static final int SUBSPACE_DIMENSIONS = 16;
+    private static final int CENTROIDS = 256;
+    private static final int TRAINING_SAMPLE_SIZE = 10_000;
+    private static final int KMEANS_ITERATIONS = 10;
+
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    private static final ValueLayout.OfFloat FLOAT = ValueLayout.JAVA_FLOAT_UNALIGNED
+            .withOrder(ByteOrder.BIG_ENDIAN);
+
+    private final MemorySegment nodes;
+    private final int count;
+    private final int dimensions;
+    private final int medoid;
+    private final int subspaces;
+    private final int centroids;
+    private final float[][] codebooks;
+    private final byte[] codes;
+    private final String[] ids;
+    private final TextSegment[] segments;
+
+    private DiskGraphIndex(MemorySegment nodes, int count, int dimensions, int medoid, int subspaces,
+            int centroids, float[][] codebooks, byte[] codes, String[] ids, TextSegment[] segments) {
+        this.nodes = nodes;
+        this.count = count;
+        this.dimensions = dimensions;
+        this.medoid = medoid;
+        this.subspaces = subspaces;
+        this.centroids = centroids;
+        this.codebooks = codebooks;
+        this.codes = codes;
+        this.ids = ids;
+        this.segments = segments;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Open an index file, resolving its nodes against the entries of the
+     * embedding store by segment key, so the store need not be listed. The
+     * node records are mapped, not read.
+     *
+     * @param storeSize    Number of entries in the store
+     * @param storeEntries Finds the store entry of a segment key, or null
+     * @return The index, or null if the file does not match the store, in
+     *         which case the index must be rebuilt
+     */
+    public static DiskGraphIndex open(File file, int storeSize,
+            Function<String, EmbeddingMatch<TextSegment>> storeEntries) throws IOException {
+        int count;
+        int dimensions;
+        int medoid;
+        int subspaces;
+        int centroids;
+        long fingerprint;
+        float[][] codebooks;
+        byte[] codes;
+        List<EmbeddingMatch<TextSegment>> entries = new ArrayList<>();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+            count = in.readInt();
+            dimensions = in.readInt();
+            medoid = in.readInt();
+            subspaces = in.readInt();
+            centroids = in.readInt();
+            if (count != storeSize || in.readInt() != MAX_DEGREE) {
+                return null;
+            }
+            fingerprint = in.readLong();
+
+            in.skipNBytes((long) count * nodeBytes(dimensions));
+
+            int subspaceDimensions = dimensions / subspaces;
+            codebooks = new float[subspaces][centroids * subspaceDimensions];
+            for (float[] codebook : codebooks) {
+                for (int i = 0; i < codebook.length; i++) {
+                    codebook[i] = in.readFloat();
+                }
+            }
+            codes = new byte[count * subspaces];
+            in.readFully(codes);
+
+            Set<String> keys = new HashSet<>();
+            for (int node = 0; node < count; node++) {
+                String key = in.readUTF();
+                EmbeddingMatch<TextSegment> entry = storeEntries.apply(key);
+                if (entry == null || !keys.add(key)) {
+                    return null;
+                }
+                entries.add(entry);
+            }
+        }
+
+        // A file re-indexed into as many segments keeps its keys, so the
+        // vectors themselves must match
+        if (fingerprint(entries) != fingerprint) {
+            return null;
+        }
+
+        String[] ids = new String[count];
+        TextSegment[] segments = new TextSegment[count];
+        for (int node = 0; node < count; node++) {
+            ids[node] = entries.get(node).embeddingId();
+            segments[node] = entries.get(node).embedded();
+        }
+
+        // Mapped through an automatic arena so that a search still running
+        // when the index is replaced keeps its mapping alive
+        MemorySegment nodes;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            nodes = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES, (long) count * nodeBytes(dimensions),
+                    Arena.ofAuto());
+        }
+        return new DiskGraphIndex(nodes, count, dimensions, medoid, subspaces, centroids, codebooks, codes, ids,
+                segments);
+    }
+
+    /**
+     * Find the entries closest to a query with a beam search guided by the
+     * quantized vectors, ranking the nodes read by exact similarity
+     *
+     * @param listSize Candidate list size, at least maxResults; larger lists
+     *                 read more nodes and find closer matches
+     * @return Store entries with their relevance score, best first
+     */
+    public List<EmbeddingMatch<TextSegment>> search(Embedding queryEmbedding, int maxResults, int listSize,
+            double minScore) {
+        float[] query = queryEmbedding.vector();
+        float[] table = distanceTable(query);
+
+        CandidateList candidates = new CandidateList(Math.max(listSize, maxResults));
+        Set<Integer> seen = new HashSet<>();
+        Map<Integer, Float> similarities = new HashMap<>();
+        candidates.insert(medoid, approximateDistance(table, medoid));
+        seen.add(medoid);
+
+        int[] beam = new int[BEAM_WIDTH];
+        while (true) {
+            int beamSize = candidates.takeUnexpanded(beam);
+            if (beamSize == 0) {
+                break;
+            }
+
+            // Fault in the whole beam before reading any of it
+            for (int i = 0; i < beamSize; i++) {
+                node(beam[i]).load();
+            }
+
+            for (int i = 0; i < beamSize; i++) {
+                MemorySegment node = node(beam[i]);
+                similarities.put(beam[i], dot(query, node));
+
+                long neighbourOffset = (long) dimensions * Float.BYTES;
+                int degree = node.get(INT, neighbourOffset);
+                for (int j = 0; j < degree; j++) {
+                    int neighbour = node.get(INT, neighbourOffset + (long) (j + 1) * Integer.BYTES);
+                    if (seen.add(neighbour)) {
+                        candidates.insert(neighbour, approximateDistance(table, neighbour));
+                    }
+                }
+            }
+        }
+
+        List<Integer> read = new ArrayList<>(similarities.keySet());
+        read.sort((a, b) -> Float.compare(similarities.get(b), similarities.get(a)));
+
+        List<EmbeddingMatch<TextSegment>> results = new ArrayList<>();
+        for (int node : read) {
+            double relevance = RelevanceScore.fromCosineSimilarity(similarities.get(node));
+            if (relevance < minScore || results.size() == maxResults) {
+                break;
+            }
+            results.add(new EmbeddingMatch<>(relevance, ids[node], vector(node), segments[node]));
+        }
+        return results;
+    }
+
+    /**
+     * Read a node's vector from its record
+     */
+    private Embedding vector(int node) {
+        return new Embedding(node(node).asSlice(0, (long) dimensions * Float.BYTES).toArray(FLOAT));
+    }
+
+    private MemorySegment node(int node) {
+        long nodeBytes = nodeBytes(dimensions);
+        return nodes.asSlice(node * nodeBytes, nodeBytes);
+    }
+
+    private float dot(float[] query, MemorySegment node) {
+        float sum = 0;
+        for (int i = 0; i < dimensions; i++) {
+            sum += query[i] * node.get(FLOAT, (long) i * Float.BYTES);
+        }
+        return sum;
+    }
+
+    /**
+     * Dot products of each query subvector with each centroid of its subspace
+     */
+    private float[] distanceTable(float[] query) {
+        int subspaceDimensions = dimensions / subspaces;
+        float[] table = new float[subspaces * centroids];
+        for (int m = 0; m < subspaces; m++) {
+            for (int c = 0; c < centroids; c++) {
+                float sum = 0;
+                for (int d = 0; d < subspaceDimensions; d++) {
+                    sum += query[m * subspaceDimensions + d] * codebooks[m][c * subspaceDimensions + d];
+                }
+                table[m * centroids + c] = sum;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Negated approximate dot product of the query with a node's quantized
+     * vector, so that smaller is closer
+     */
+    private float approximateDistance(float[] table, int node) {
+        float sum = 0;
+        int offset = node * subspaces;
+        for (int m = 0; m < subspaces; m++) {
+            sum += table[m * centroids + (codes[offset + m] & 0xFF)];
+        }
+        return -sum;
+    }
+
+    /**
+     * Hash of the keys and vectors of the entries in node order
+     */
+    private static long fingerprint(List<EmbeddingMatch<TextSegment>> entries) {
+        long hash = 1125899906842597L;
+        for (EmbeddingMatch<TextSegment> entry : entries) {
+            hash = 31 * hash + Bm25Index.docKey(entry.embedded()).hashCode();
+            for (float value : entry.embedding().vector()) {
+                hash = 31 * hash + Float.floatToIntBits(value);
+            }
+        }
+        return hash;
+    }
+
+    private static long nodeBytes(int dimensions) {
+        return (long) dimensions * Float.BYTES + (1 + MAX_DEGREE) * Integer.BYTES;
+    }
+
+    /**
+     * Build the index of the given store entries and write it to a file
+     */
+    public static void build(File file, List<EmbeddingMatch<TextSegment>> storeEntries) throws IOException {
+        int count = storeEntries.size();
+        int dimensions = storeEntries.get(0).embedding().vector().length;
+        float[][] vectors = new float[count][];
+        for (int i = 0; i < count; i++) {
+            vectors[i] = storeEntries.get(i).embedding().vector();
+        }
+
+        Random random = new Random(count);
+        int subspaces = Math.max(1, dimensions / SUBSPACE_DIMENSIONS);
+        float[][] codebooks = trainCodebooks(vectors, subspaces, random);
+        int centroids = codebooks[0].length / (dimensions / subspaces);
+        byte[] codes = encode(vectors, codebooks, subspaces, centroids);
+
+        int medoid = findMedoid(vectors);
+        int[][] graph = buildGraph(vectors, medoid, random);
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(count);
+            out.writeInt(dimensions);
+            out.writeInt(medoid);
+            out.writeInt(subspaces);
+            out.writeInt(centroids);
+            out.writeInt(MAX_DEGREE);
+            out.writeLong(fingerprint(storeEntries));
+
+            for (int node = 0; node < count; node++) {
+                for (float value : vectors[node]) {
+                    out.writeFloat(value);
+                }
+                out.writeInt(graph[node].length);
+                for (int j = 0; j < MAX_DEGREE; j++) {
+                    out.writeInt(j < graph[node].length ? graph[node][j] : -1);
+                }
+            }
+
+            for (float[] codebook : codebooks) {
+                for (float value : codebook) {
+                    out.writeFloat(value);
+                }
+            }
+            out.write(codes);
+            for (EmbeddingMatch<TextSegment> entry : storeEntries) {
+                out.writeUTF(Bm25Index.docKey(entry.embedded()));
+            }
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Train a k-means codebook per subspace on a sample of the vectors
+     */
+    private static float[][] trainCodebooks(float[][] vectors, int subspaces, Random random) {
+        int dimensions = vectors[0].length;
+        int subspaceDimensions = dimensions / subspaces;
+
+        List<float[]> sample = new ArrayList<>(Arrays.asList(vectors));
+        Collections.shuffle(sample, random);
+        sample = sample.subList(0, Math.min(sample.size(), TRAINING_SAMPLE_SIZE));
+        int centroids = Math.min(CENTROIDS, sample.size());
+
+        float[][] codebooks = new float[subspaces][centroids * subspaceDimensions];
+        int[] assignment = new int[sample.size()];
+        for (int m = 0; m < subspaces; m++) {
+            int start = m * subspaceDimensions;
+            float[] codebook = codebooks[m];
+            for (int c = 0; c < centroids; c++) {
+                System.arraycopy(sample.get(c), start, codebook, c * subspaceDimensions, subspaceDimensions);
+            }
+
+            for (int iteration = 0; iteration < KMEANS_ITERATIONS; iteration++) {
+                for (int i = 0; i < sample.size(); i++) {
+                    assignment[i] = nearestCentroid(sample.get(i), start, codebook, centroids, subspaceDimensions);
+                }
+
+                float[] sums = new float[codebook.length];
+                int[] sizes = new int[centroids];
+                for (int i = 0; i < sample.size(); i++) {
+                    sizes[assignment[i]]++;
+                    for (int d = 0; d < subspaceDimensions; d++) {
+                        sums[assignment[i] * subspaceDimensions + d] += sample.get(i)[start + d];
+                    }
+                }
+                for (int c = 0; c < centroids; c++) {
+                    // Empty clusters keep their centroid
+                    if (sizes[c] > 0) {
+                        for (int d = 0; d < subspaceDimensions; d++) {
+                            codebook[c * subspaceDimensions + d] = sums[c * subspaceDimensions + d] / sizes[c];
+                        }
+                    }
+                }
+            }
+        }
+        return codebooks;
+    }
+
+    private static byte[] encode(float[][] vectors, float[][] codebooks, int subspaces, int centroids) {
+        int subspaceDimensions = vectors[0].length / subspaces;
+        byte[] codes = new byte[vectors.length * subspaces];
+        for (int i = 0; i < vectors.length; i++) {
+            for (int m = 0; m < subspaces; m++) {
+                codes[i * subspaces + m] = (byte) nearestCentroid(vectors[i], m * subspaceDimensions, codebooks[m],
+                        centroids, subspaceDimensions);
+            }
+        }
+        return codes;
+    }
+
+    private static int nearestCentroid(float[] vector, int start, float[] codebook, int centroids,
+            int subspaceDimensions) {
+        int nearest = 0;
+        float nearestDistance = Float.MAX_VALUE;
+        for (int c = 0; c < centroids; c++) {
+            float distance = 0;
+            for (int d = 0; d < subspaceDimensions; d++) {
+                float difference = vector[start + d] - codebook[c * subspaceDimensions + d];
+                distance += difference * difference;
+            }
+            if (distance < nearestDistance) {
+                nearestDistance = distance;
+                nearest = c;
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * Find the vector closest to the mean, where every search starts
+     */
+    private static int findMedoid(float[][] vectors) {
+        float[] mean = new float[vectors[0].length];
+        for (float[] vector : vectors) {
+            for (int d = 0; d < mean.length; d++) {
+                mean[d] += vector[d] / vectors.length;
+            }
+        }
+
+        int medoid = 0;
+        float best = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < vectors.length; i++) {
+            float similarity = dot(mean, vectors[i]);
+            if (similarity > best) {
+                best = similarity;
+                medoid = i;
+            }
+        }
+        return medoid;
+    }
+
+    /**
+     * Build the Vamana graph: starting from random neighbours, link each node
+     * to the pruned result of a greedy search for it, adding back-links and
+     * re-pruning neighbours that exceed the degree bound
+     */
+    private static int[][] buildGraph(float[][] vectors, int medoid, Random random) {
+        int count = vectors.length;
+        int[][] graph = new int[count][];
+        for (int node = 0; node < count; node++) {
+            int degree = Math.min(MAX_DEGREE, count - 1);
+            Set<Integer> neighbours = new HashSet<>();
+            while (neighbours.size() < degree) {
+                int neighbour = random.nextInt(count);
+                if (neighbour != node) {
+                    neighbours.add(neighbour);
+                }
+            }
+            graph[node] = neighbours.stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        List<Integer> order = new ArrayList<>();
+        for (int node = 0; node < count; node++) {
+            order.add(node);
+        }
+        Collections.shuffle(order, random);
+
+        int[] visitedStamp = new int[count];
+        int stamp = 0;
+        for (int node : order) {
+            stamp++;
+            Set<Integer> candidates = new HashSet<>(greedySearch(vectors, graph, medoid, vectors[node],
+                    visitedStamp, stamp));
+            for (int neighbour : graph[node]) {
+                candidates.add(neighbour);
+            }
+            candidates.remove(node);
+            graph[node] = prune(vectors, node, candidates);
+
+            for (int neighbour : graph[node]) {
+                int[] links = graph[neighbour];
+                if (Arrays.stream(links).anyMatch(link -> link == node)) {
+                    continue;
+                }
+                if (links.length < MAX_DEGREE) {
+                    int[] extended = Arrays.copyOf(links, links.length + 1);
+                    extended[links.length] = node;
+                    graph[neighbour] = extended;
+                } else {
+                    Set<Integer> linkCandidates = new HashSet<>();
+                    for (int link : links) {
+                        linkCandidates.add(link);
+                    }
+                    linkCandidates.add(node);
+                    graph[neighbour] = prune(vectors, neighbour, linkCandidates);
+                }
+            }
+        }
+        return graph;
+    }
+
+    /**
+     * Greedy search over the in-memory graph while building
+     *
+     * @return Every node expanded by the search
+     */
+    private static List<Integer> greedySearch(float[][] vectors, int[][] graph, int start, float[] target,
+            int[] visitedStamp, int stamp) {
+        CandidateList candidates = new CandidateList(BUILD_LIST_SIZE);
+        candidates.insert(start, 1 - dot(target, vectors[start]));
+        visitedStamp[start] = stamp;
+
+        List<Integer> expanded = new ArrayList<>();
+        int[] next = new int[1];
+        while (candidates.takeUnexpanded(next) > 0) {
+            expanded.add(next[0]);
+            for (int neighbour : graph[next[0]]) {
+                if (visitedStamp[neighbour] != stamp) {
+                    visitedStamp[neighbour] = stamp;
+                    candidates.insert(neighbour, 1 - dot(target, vectors[neighbour]));
+                }
+            }
+        }
+        return expanded;
+    }
+
+    /**
+     * Pick at most MAX_DEGREE neighbours for a node, closest first, skipping
+     * candidates much closer to an already picked neighbour than to the node
+     */
+    private static int[] prune(float[][] vectors, int node, Set<Integer> candidates) {
+        Map<Integer, Float> distanceToNode = new HashMap<>();
+        for (int candidate : candidates) {
+            distanceToNode.put(candidate, 1 - dot(vectors[node], vectors[candidate]));
+        }
+        List<Integer> sorted = new ArrayList<>(candidates);
+        sorted.sort((a, b) -> Float.compare(distanceToNode.get(a), distanceToNode.get(b)));
+
+        List<Integer> picked = new ArrayList<>();
+        for (int candidate : sorted) {
+            if (picked.size() == MAX_DEGREE) {
+                break;
+            }
+            boolean covered = false;
+            for (int neighbour : picked) {
+                float distance = 1 - dot(vectors[neighbour], vectors[candidate]);
+                if (PRUNE_ALPHA * distance <= distanceToNode.get(candidate)) {
+                    covered = true;
+                    break;
+                }
+            }
+            if (!covered) {
+                picked.add(candidate);
+            }
+        }
+        return picked.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static float dot(float[] a, float[] b) {
+        float sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    /**
+     * Bounded list of search candidates sorted by distance, each marked once
+     * expanded
+     */
+    private static class CandidateList {
+        private final int[] nodes;
+        private final float[] distances;
+        private final boolean[] expanded;
+        private int size = 0;
+
+        CandidateList(int capacity) {
+            nodes = new int[capacity];
+            distances = new float[capacity];
+            expanded = new boolean[capacity];
+        }
+
+        void insert(int node, float distance) {
+            if (size == nodes.length && distance >= distances[size - 1]) {
+                return;
+            }
+            int position = size < nodes.length ? size : size - 1;
+            while (position > 0 && distances[position - 1] > distance) {
+                nodes[position] = nodes[position - 1];
+                distances[position] = distances[position - 1];
+                expanded[position] = expanded[position - 1];
+                position--;
+            }
+            nodes[position] = node;
+            distances[position] = distance;
+            expanded[position] = false;
+            size = Math.min(size + 1, nodes.length);
+        }
+
+        /**
+         * Mark the closest unexpanded candidates expanded, at most as many as
+         * fit in the given array
+         *
+         * @return The number of candidates taken
+         */
+        int takeUnexpanded(int[] taken) {
+            int count = 0;
+            for (int i = 0; i < size && count < taken.length; i++) {
+                if (!expanded[i]) {
+                    expanded[i] = true;
+                    taken[count++] = nodes[i];
+                }
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package dev.assignment.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.CosineSimilarity;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.RelevanceScore;
+
+/**
+ * Coarse routing of vector search by file. Every file keeps the sum of its
+ * segment vectors, whose direction is the file's centroid, and the store
+ * entries of its segments. A query ranks the files by centroid similarity and
+ * scores only the segments of the closest ones, which suits sessions of many
+ * long documents on distinct topics. The per-file entries also split the
+ * exact scan into shards that run in parallel.
+ */
+public class FileCentroidIndex {
+
+    private final Map<String, FileEntries> files = new HashMap<>();
+    private int segmentCount = 0;
+
+    public synchronized int getFileCount() {
+        return files.size();
+    }
+
+    public synchronized int getSegmentCount() {
+        return segmentCount;
+    }
+
+    /**
+     * Add a store entry to its file's centroid
+     */
+    public synchronized void add(EmbeddingMatch<TextSegment> entry) {
+        String fileName = entry.embedded().metadata().getString("fileName");
+        float[] vector = entry.embedding().vector();
+        FileEntries file = files.computeIfAbsent(fileName, k -> new FileEntries(new float[vector.length]));
+        for (int i = 0; i < Math.min(vector.length, file.sum.length); i++) {
+            file.sum[i] += vector[i];
+        }
+        file.entries.add(entry);
+        segmentCount++;
+    }
+
+    /**
+     * Remove a file and its centroid
+     */
+    public synchronized void removeFile(String fileName) {
+        FileEntries file = files.remove(fileName);
+        if (file != null) {
+            segmentCount -= file.entries.size();
+        }
+    }
+
+    /**
+     * Replace the content of the index with the given store entries
+     */
+    public synchronized void rebuild(List<EmbeddingMatch<TextSegment>> entries) {
+        files.clear();
+        segmentCount = 0;
+        for (EmbeddingMatch<TextSegment> entry : entries) {
+            add(entry);
+        }
+    }
+
+    /**
+     * Find the entries closest to a query among the segments of the files
+     * whose centroids are closest to it
+     *
+     * @param maxFiles Number of files whose segments are scored
+     * @return Store entries with their relevance score, best first
+     */
+    public synchronized List<EmbeddingMatch<TextSegment>> search(Embedding queryEmbedding, int maxFiles,
+            int maxResults, double minScore) {
+        float[] query = queryEmbedding.vector();
+
+        // The sum has the centroid's direction, so its cosine ranks the files
+        PriorityQueue<FileScore> topFiles = new PriorityQueue<>((a, b) -> Double.compare(a.score(), b.score()));
+        for (FileEntries file : files.values()) {
+            topFiles.add(new FileScore(file, CosineSimilarity.between(queryEmbedding, new Embedding(file.sum))));
+            if (topFiles.size() > maxFiles) {
+                topFiles.poll();
+            }
+        }
+
+        List<EmbeddingMatch<TextSegment>> entries = new ArrayList<>();
+        for (FileScore fileScore : topFiles) {
+            entries.addAll(fileScore.file().entries);
+        }
+        return scan(query, entries, maxResults, minScore);
+    }
+
+    /**
+     * Find the entries closest to a query among all segments, scanning shards
+     * of the files in parallel
+     *
+     * @return Store entries with their relevance score, best first
+     */
+    public List<EmbeddingMatch<TextSegment>> searchSharded(Embedding queryEmbedding, int maxResults,
+            double minScore, ExecutorService executor, int shards) throws InterruptedException {
+        List<List<EmbeddingMatch<TextSegment>>> shardEntries = new ArrayList<>();
+        for (int i = 0; i < shards; i++) {
+            shardEntries.add(new ArrayList<>());
+        }
+        synchronized (this) {
+            int file = 0;
+            for (FileEntries fileEntries : files.values()) {
+                shardEntries.get(file++ % shards).addAll(fileEntries.entries);
+            }
+        }
+
+        List<Future<List<EmbeddingMatch<TextSegment>>>> shardSearches = new ArrayList<>();
+        for (List<EmbeddingMatch<TextSegment>> entries : shardEntries) {
+            shardSearches.add(executor.submit(() -> scan(queryEmbedding.vector(), entries, maxResults, minScore)));
+        }
+
+        List<EmbeddingMatch<TextSegment>> merged = new ArrayList<>();
+        try {
+            for (Future<List<EmbeddingMatch<TextSegment>>> shardSearch : shardSearches) {
+                merged.addAll(shardSearch.get());
+            }
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Sharded search failed", e.getCause());
+        } finally {
+            for (Future<List<EmbeddingMatch<TextSegment>>> shardSearch : shardSearches) {
+                shardSearch.cancel(true);
+            }
+        }
+        merged.sort((a, b) -> Double.compare(b.score(), a.score()));
+        return merged.subList(0, Math.min(merged.size(), maxResults));
+    }
+
+    /**
+     * Score entries against a query, keeping the best
+     */
+    private static List<EmbeddingMatch<TextSegment>> scan(float[] query, List<EmbeddingMatch<TextSegment>> entries,
+            int maxResults, double minScore) {
+        PriorityQueue<EmbeddingMatch<TextSegment>> top = new PriorityQueue<>(
+                (a, b) -> Double.compare(a.score(), b.score()));
+        for (EmbeddingMatch<TextSegment> entry : entries) {
+            double relevance = RelevanceScore.fromCosineSimilarity(dot(query, entry.embedding().vector()));
+            if (relevance < minScore) {
+                continue;
+            }
+            top.add(new EmbeddingMatch<>(relevance, entry.embeddingId(), entry.embedding(), entry.embedded()));
+            if (top.size() > maxResults) {
+                top.poll();
+            }
+        }
+
+        List<EmbeddingMatch<TextSegment>> results = new ArrayList<>(top);
+        results.sort((a, b) -> Double.compare(b.score(), a.score()));
+        return results;
+    }
+
+    /**
+     * Dot product of two vectors, which equals their cosine similarity as the
+     * embedding model returns unit-length vectors
+     */
+    private static double dot(float[] a, float[] b) {
+        int length = Math.min(a.length, b.length);
+        double sum = 0;
+        for (int i = 0; i < length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    /**
+     * Vector sum and store entries of one file's segments
+     */
+    private static class FileEntries {
+        final float[] sum;
+        final List<EmbeddingMatch<TextSegment>> entries = new ArrayList<>();
+
+        FileEntries(float[] sum) {
+            this.sum = sum;
+        }
+    }
+
+    private record FileScore(FileEntries file, double score) {
+    }
+}
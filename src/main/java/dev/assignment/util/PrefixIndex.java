@@ -0,0 +1,170 @@
+package dev.assignment.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.CosineSimilarity;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.RelevanceScore;
+
+/**
+ * Two-stage vector search over the segments of a session. The embedding model
+ * is trained so that a prefix of each vector, re-normalized, is itself a usable
+ * embedding, so a first pass scans only the leading dimensions, packed into one
+ * contiguous array, and the shortlist it finds is re-scored with the full
+ * vectors. With zero dimensions the index is disabled and keeps nothing.
+ */
+public class PrefixIndex {
+
+    private int dimensions;
+    private float[] prefixes = new float[0];
+
+    /**
+     * Store entry of each row, null once removed
+     */
+    private final List<EmbeddingMatch<TextSegment>> entries = new ArrayList<>();
+    private int liveEntries = 0;
+
+    public PrefixIndex(int dimensions) {
+        this.dimensions = dimensions;
+    }
+
+    public synchronized int getDimensions() {
+        return dimensions;
+    }
+
+    public synchronized boolean isEnabled() {
+        return dimensions > 0;
+    }
+
+    public synchronized int size() {
+        return liveEntries;
+    }
+
+    /**
+     * Change the prefix length, rebuilding the index from the given store
+     * entries, or dropping it if dimensions is zero
+     */
+    public synchronized void setDimensions(int dimensions, List<EmbeddingMatch<TextSegment>> storeEntries) {
+        this.dimensions = dimensions;
+        rebuild(storeEntries);
+    }
+
+    /**
+     * Add a store entry to the index
+     */
+    public synchronized void add(EmbeddingMatch<TextSegment> entry) {
+        if (dimensions == 0) {
+            return;
+        }
+        int row = entries.size();
+        if ((row + 1) * dimensions > prefixes.length) {
+            prefixes = Arrays.copyOf(prefixes, Math.max(64 * dimensions, prefixes.length * 2));
+        }
+        writePrefix(entry.embedding().vector(), prefixes, row * dimensions, dimensions);
+        entries.add(entry);
+        liveEntries++;
+    }
+
+    /**
+     * Remove every entry of a file
+     */
+    public synchronized void removeFile(String fileName) {
+        for (int row = 0; row < entries.size(); row++) {
+            EmbeddingMatch<TextSegment> entry = entries.get(row);
+            if (entry != null && fileName.equals(entry.embedded().metadata().getString("fileName"))) {
+                entries.set(row, null);
+                liveEntries--;
+            }
+        }
+        if (entries.size() - liveEntries > liveEntries) {
+            List<EmbeddingMatch<TextSegment>> live = new ArrayList<>();
+            for (EmbeddingMatch<TextSegment> entry : entries) {
+                if (entry != null) {
+                    live.add(entry);
+                }
+            }
+            rebuild(live);
+        }
+    }
+
+    /**
+     * Replace the content of the index with the given store entries
+     */
+    public synchronized void rebuild(List<EmbeddingMatch<TextSegment>> storeEntries) {
+        entries.clear();
+        liveEntries = 0;
+        prefixes = new float[dimensions * storeEntries.size()];
+        for (EmbeddingMatch<TextSegment> entry : storeEntries) {
+            add(entry);
+        }
+    }
+
+    /**
+     * Find the entries closest to a query: the shortlist closest by prefix,
+     * re-scored and cut down by their full vectors
+     *
+     * @param shortlistSize Number of entries re-scored with full vectors
+     * @return Store entries with their relevance score, best first
+     */
+    public synchronized List<EmbeddingMatch<TextSegment>> search(Embedding queryEmbedding, int shortlistSize,
+            int maxResults, double minScore) {
+        if (liveEntries == 0) {
+            return List.of();
+        }
+
+        float[] query = new float[dimensions];
+        writePrefix(queryEmbedding.vector(), query, 0, dimensions);
+
+        int rows = entries.size();
+        float[] scores = new float[rows];
+        PriorityQueue<Integer> shortlist = new PriorityQueue<>((a, b) -> Float.compare(scores[a], scores[b]));
+        for (int row = 0; row < rows; row++) {
+            if (entries.get(row) == null) {
+                continue;
+            }
+            int offset = row * dimensions;
+            float score = 0;
+            for (int i = 0; i < dimensions; i++) {
+                score += query[i] * prefixes[offset + i];
+            }
+            scores[row] = score;
+            shortlist.add(row);
+            if (shortlist.size() > shortlistSize) {
+                shortlist.poll();
+            }
+        }
+
+        List<EmbeddingMatch<TextSegment>> results = new ArrayList<>();
+        for (int row : shortlist) {
+            EmbeddingMatch<TextSegment> entry = entries.get(row);
+            double relevance = RelevanceScore.fromCosineSimilarity(
+                    CosineSimilarity.between(queryEmbedding, entry.embedding()));
+            if (relevance >= minScore) {
+                results.add(new EmbeddingMatch<>(relevance, entry.embeddingId(), entry.embedding(),
+                        entry.embedded()));
+            }
+        }
+        results.sort((a, b) -> Double.compare(b.score(), a.score()));
+        return results.subList(0, Math.min(results.size(), maxResults));
+    }
+
+    /**
+     * Write the re-normalized prefix of a vector into an array
+     */
+    private static void writePrefix(float[] vector, float[] target, int offset, int dimensions) {
+        int length = Math.min(dimensions, vector.length);
+        double norm = 0;
+        for (int i = 0; i < length; i++) {
+            norm += vector[i] * vector[i];
+        }
+        float scale = norm > 0 ? (float) (1 / Math.sqrt(norm)) : 0;
+        for (int i = 0; i < length; i++) {
+            target[offset + i] = vector[i] * scale;
+        }
+    }
+}
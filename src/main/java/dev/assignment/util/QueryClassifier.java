@@ -0,0 +1,123 @@
+package dev.assignment.util;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Local classifier deciding whether a message needs retrieval. Acknowledgements
+ * and greetings are answered from the history alone, and requests to rework the
+ * previous answer ("make it shorter", "explain your last answer") reuse the
+ * context retrieved for it. Anything carrying new subject matter is retrieved
+ * for as usual, so the rules lean towards retrieval when in doubt.
+ */
+public class QueryClassifier {
+
+    /**
+     * How a message is answered
+     */
+    public enum Intent {
+        /** New question, retrieve context for it */
+        RETRIEVE,
+        /** Rework of the previous answer, reuse its context */
+        FOLLOW_UP,
+        /** Acknowledgement or greeting, answer without context */
+        CONVERSATIONAL
+    }
+
+    private static final Set<String> CONVERSATIONAL_WORDS = Set.of(
+            "thanks", "thank", "thx", "ty", "you", "so", "much", "very", "ok", "okay", "k", "cool", "great",
+            "nice", "perfect", "awesome", "good", "got", "it", "hi", "hello", "hey", "bye", "goodbye", "cheers",
+            "yes", "yeah", "yep", "no", "nope", "sure", "alright", "understood", "that", "helps", "helped",
+            "makes", "sense", "wow", "lol", "thats", "all", "for", "now");
+
+    /**
+     * Phrases asking to rework or explain the previous answer
+     */
+    private static final List<String> FOLLOW_UP_PHRASES = List.of(
+            "your last answer", "your answer", "your previous answer", "your response", "you said",
+            "you just said", "you mentioned", "the above", "that answer", "make it", "say that", "say it",
+            "in simpler terms", "in other words", "bullet points", "more detail", "more details", "tldr",
+            "tl dr", "once more", "again");
+
+    /**
+     * Verbs that rework existing text rather than ask for new information
+     */
+    private static final Set<String> REWORK_VERBS = Set.of(
+            "shorter", "shorten", "longer", "summarize", "summarise", "summary", "rephrase", "reword",
+            "simplify", "simpler", "translate", "elaborate", "expand", "clarify", "explain", "continue", "repeat",
+            "rewrite", "condense", "format", "list");
+
+    private static final Set<String> REFERENCES = Set.of("it", "that", "this", "those", "these", "them", "above");
+
+    private static final Set<String> FUNCTION_WORDS = Set.of(
+            "a", "an", "the", "and", "or", "but", "of", "to", "in", "on", "for", "with", "as", "at", "by", "be",
+            "is", "are", "was", "were", "can", "could", "would", "will", "please", "pls", "me", "my", "i", "you",
+            "your", "we", "us", "it", "its", "that", "this", "those", "these", "them", "what", "do", "does", "did",
+            "more", "less", "bit", "little", "again", "just", "so", "now", "make", "say", "said", "into", "up",
+            "about", "answer", "response", "last", "previous", "mean", "meant", "terms", "other", "words",
+            "points", "bullet", "detail", "details", "simple", "plain", "english", "once", "some", "way", "tldr",
+            "tl", "dr");
+
+    /**
+     * Words beyond the vocabulary above that a message may carry and still be
+     * a follow-up; more than this means it brings new subject matter
+     */
+    private static final int MAX_CONTENT_WORDS = 2;
+
+    /**
+     * Score from which a message counts as a follow-up
+     */
+    private static final int FOLLOW_UP_THRESHOLD = 2;
+
+    private QueryClassifier() {
+        // Prevent instantiation
+    }
+
+    /**
+     * Classify a user message
+     */
+    public static Intent classify(String message) {
+        List<String> words = Bm25Index.tokenize(message);
+        if (words.isEmpty()) {
+            return Intent.RETRIEVE;
+        }
+
+        if (words.size() <= 6 && CONVERSATIONAL_WORDS.containsAll(words)) {
+            return Intent.CONVERSATIONAL;
+        }
+
+        int contentWords = 0;
+        boolean reworks = false;
+        boolean references = false;
+        for (String word : words) {
+            if (REWORK_VERBS.contains(word)) {
+                reworks = true;
+            } else if (REFERENCES.contains(word)) {
+                references = true;
+            } else if (!FUNCTION_WORDS.contains(word) && !CONVERSATIONAL_WORDS.contains(word)) {
+                contentWords++;
+            }
+        }
+        if (contentWords > MAX_CONTENT_WORDS) {
+            return Intent.RETRIEVE;
+        }
+
+        String text = " " + String.join(" ", words) + " ";
+        int score = 0;
+        for (String phrase : FOLLOW_UP_PHRASES) {
+            if (text.contains(" " + phrase + " ")) {
+                score += 2;
+                break;
+            }
+        }
+        if (reworks) {
+            score += REWORK_VERBS.contains(words.get(0)) ? 2 : 1;
+        }
+        if (references) {
+            score += 1;
+        }
+        score -= contentWords;
+
+        return score >= FOLLOW_UP_THRESHOLD ? Intent.FOLLOW_UP : Intent.RETRIEVE;
+    }
+}
@@ -0,0 +1,130 @@
+package dev.assignment.util;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.segment.TextSegment;
+
+/**
+ * Merges retrieved segments that are adjacent or overlapping in the same file
+ * into one span, so the overlap between neighbouring chunks is sent once and
+ * the context reads as continuous text. Segments indexed before offsets were
+ * recorded are passed through unchanged.
+ */
+public class SegmentMerger {
+
+    /**
+     * Metadata keys of a segment's position in its file's normalized text
+     */
+    public static final String ORDINAL_KEY = "ordinal";
+    public static final String START_OFFSET_KEY = "startOffset";
+    public static final String END_OFFSET_KEY = "endOffset";
+
+    /**
+     * Largest gap, in characters, between two segments still merged as
+     * adjacent (the whitespace the splitter dropped between them)
+     */
+    private static final int MAX_ADJACENT_GAP = 2;
+
+    private SegmentMerger() {
+        // Prevent instantiation
+    }
+
+    /**
+     * Merge adjacent and overlapping segments of the same file. Each merged
+     * span takes the rank of its best segment.
+     *
+     * @param segments Retrieved segments, best first
+     * @return Segments and merged spans, best first
+     */
+    public static List<TextSegment> merge(List<TextSegment> segments) {
+        // Rank of each segment, and the segments with offsets grouped by file
+        Map<TextSegment, Integer> ranks = new LinkedHashMap<>();
+        Map<String, List<TextSegment>> byFile = new LinkedHashMap<>();
+        for (TextSegment segment : segments) {
+            ranks.putIfAbsent(segment, ranks.size());
+            if (hasOffsets(segment)) {
+                byFile.computeIfAbsent(segment.metadata().getString("fileName"), k -> new ArrayList<>()).add(segment);
+            }
+        }
+
+        List<RankedSegment> result = new ArrayList<>();
+        for (TextSegment segment : segments) {
+            if (!hasOffsets(segment)) {
+                result.add(new RankedSegment(segment, ranks.get(segment)));
+            }
+        }
+
+        for (List<TextSegment> fileSegments : byFile.values()) {
+            fileSegments.sort(Comparator.comparingInt(s -> s.metadata().getInteger(START_OFFSET_KEY)));
+
+            TextSegment current = fileSegments.get(0);
+            int rank = ranks.get(current);
+            for (int i = 1; i < fileSegments.size(); i++) {
+                TextSegment next = fileSegments.get(i);
+                int currentEnd = current.metadata().getInteger(END_OFFSET_KEY);
+                int nextStart = next.metadata().getInteger(START_OFFSET_KEY);
+
+                if (nextStart - currentEnd <= MAX_ADJACENT_GAP) {
+                    current = join(current, next);
+                    rank = Math.min(rank, ranks.get(next));
+                } else {
+                    result.add(new RankedSegment(current, rank));
+                    current = next;
+                    rank = ranks.get(next);
+                }
+            }
+            result.add(new RankedSegment(current, rank));
+        }
+
+        result.sort(Comparator.comparingInt(RankedSegment::rank));
+        List<TextSegment> merged = new ArrayList<>();
+        for (RankedSegment rankedSegment : result) {
+            merged.add(rankedSegment.segment());
+        }
+        return merged;
+    }
+
+    /**
+     * Join two segments of the same file, the second starting at or after the
+     * first, dropping the text they share
+     */
+    private static TextSegment join(TextSegment first, TextSegment second) {
+        int firstStart = first.metadata().getInteger(START_OFFSET_KEY);
+        int firstEnd = first.metadata().getInteger(END_OFFSET_KEY);
+        int secondStart = second.metadata().getInteger(START_OFFSET_KEY);
+        int secondEnd = second.metadata().getInteger(END_OFFSET_KEY);
+
+        if (secondEnd <= firstEnd) {
+            return first;
+        }
+
+        String text;
+        int overlap = firstEnd - secondStart;
+        if (overlap > 0) {
+            text = first.text() + second.text().substring(Math.min(overlap, second.text().length()));
+        } else {
+            text = first.text() + "\n" + second.text();
+        }
+
+        Metadata metadata = new Metadata();
+        metadata.put("fileName", first.metadata().getString("fileName"));
+        metadata.put(ORDINAL_KEY, first.metadata().getInteger(ORDINAL_KEY));
+        metadata.put(START_OFFSET_KEY, firstStart);
+        metadata.put(END_OFFSET_KEY, secondEnd);
+        return TextSegment.from(text, metadata);
+    }
+
+    private static boolean hasOffsets(TextSegment segment) {
+        Metadata metadata = segment.metadata();
+        return metadata != null && metadata.containsKey("fileName") && metadata.containsKey(ORDINAL_KEY)
+                && metadata.containsKey(START_OFFSET_KEY) && metadata.containsKey(END_OFFSET_KEY);
+    }
+
+    private record RankedSegment(TextSegment segment, int rank) {
+    }
+}
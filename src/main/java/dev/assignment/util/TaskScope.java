@@ -0,0 +1,132 @@
+package dev.assignment.util;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Scope for subtasks forked from one request, in the spirit of
+ * StructuredTaskScope (still a preview API): subtasks run concurrently on the
+ * given executor, each join has a deadline, and the first failure, timeout or
+ * cancellation of the request cancels every sibling and wakes a pending join.
+ * Closing the scope cancels whatever is still running, so no subtask outlives
+ * it unless it was forked to completion.
+ */
+public class TaskScope implements AutoCloseable {
+
+    private final ExecutorService executor;
+    private final CancellationToken cancellationToken;
+    private final List<Future<?>> subtasks = new ArrayList<>();
+    private final CompletableFuture<Void> shutdown = new CompletableFuture<>();
+    private final Runnable unregister;
+
+    public TaskScope(ExecutorService executor, CancellationToken cancellationToken) {
+        this.executor = executor;
+        this.cancellationToken = cancellationToken;
+        this.unregister = cancellationToken.onCancel(this::cancelAll);
+    }
+
+    /**
+     * Start a subtask in the scope
+     */
+    public synchronized <T> Future<T> fork(Callable<T> task) {
+        return submit(task, true);
+    }
+
+    /**
+     * Start a subtask that the scope does not cancel, for a write the caller
+     * has to account for whether or not the request goes ahead. Its failure
+     * still cancels the other subtasks.
+     */
+    public synchronized <T> Future<T> forkToCompletion(Callable<T> task) {
+        return submit(task, false);
+    }
+
+    private <T> Future<T> submit(Callable<T> task, boolean cancellable) {
+        cancellationToken.throwIfCancelled();
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Future<?> thread = executor.submit(() -> {
+            try {
+                result.complete(task.call());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+                fail(e);
+            }
+        });
+        if (cancellable) {
+            subtasks.add(result);
+            subtasks.add(thread);
+        }
+        return result;
+    }
+
+    /**
+     * Wait for a subtask's result. If it or a sibling fails, or it misses the
+     * deadline, every other subtask is cancelled and the failure is rethrown.
+     *
+     * @param subtask A subtask forked by this scope
+     * @param stage Name of the stage, used in the timeout message
+     * @throws CancellationException if the request was cancelled
+     */
+    public <T> T join(Future<T> subtask, Duration deadline, String stage) {
+        if (!(subtask instanceof CompletableFuture<T> result)) {
+            throw new IllegalArgumentException("Not a subtask of this scope");
+        }
+        try {
+            CompletableFuture.anyOf(result, shutdown).handle((value, failure) -> null)
+                    .get(deadline.toMillis(), TimeUnit.MILLISECONDS);
+            if (!result.isDone() || (result.isCancelled() && shutdown.isDone())) {
+                // A sibling failed first, stopping this one; rethrow its failure
+                shutdown.get();
+            }
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancelAll();
+            throw new CancellationException("Request interrupted");
+        } catch (TimeoutException e) {
+            cancelAll();
+            throw new RuntimeException(stage + " did not finish within " + deadline.toSeconds() + " s");
+        } catch (CancellationException e) {
+            cancelAll();
+            cancellationToken.throwIfCancelled();
+            throw e;
+        } catch (ExecutionException e) {
+            cancelAll();
+            cancellationToken.throwIfCancelled();
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Shut the scope down on the first failure of a subtask
+     */
+    private void fail(Throwable failure) {
+        if (shutdown.completeExceptionally(failure)) {
+            cancelAll();
+        }
+    }
+
+    private synchronized void cancelAll() {
+        for (Future<?> subtask : subtasks) {
+            subtask.cancel(true);
+        }
+    }
+
+    @Override
+    public void close() {
+        unregister.run();
+        cancelAll();
+    }
+}
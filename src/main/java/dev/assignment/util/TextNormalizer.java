@@ -0,0 +1,370 @@
+package dev.assignment.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Cleans extracted document text before it is chunked. Fed block by block,
+ * it removes running headers and footers repeated across pages, page number
+ * lines, hyphenation breaks and long whitespace runs. Compounds broken at
+ * their own hyphen keep it.
+ *
+ * Only extracted PDF text is reflowed. Pages are recognised by the form feed
+ * the extractor writes after every PDF page, and headers, footers and page
+ * numbers are only looked for in the first and last lines of each page. Plain
+ * text and markdown keep their layout, with only their line endings
+ * normalized, since indentation carries meaning in code blocks and tables.
+ */
+public class TextNormalizer {
+
+    /**
+     * Marks the end of a page in extracted text
+     */
+    public static final char PAGE_BREAK = '\f';
+
+    /**
+     * Number of pages buffered before anything is emitted, so the first
+     * pages' headers are known by the time they are cleaned
+     */
+    private static final int LEARNING_PAGES = 6;
+
+    /**
+     * Minimum number of pages a margin line must appear on to be boilerplate
+     */
+    private static final int MIN_REPEAT_PAGES = 3;
+
+    /**
+     * Number of lines at the top and bottom of a page checked for boilerplate
+     */
+    private static final int MARGIN_LINES = 2;
+
+    /**
+     * Longest line considered as a running header or footer
+     */
+    private static final int MAX_MARGIN_LINE_LENGTH = 100;
+
+    /**
+     * Size at which a page without a page break is flushed in whole lines
+     */
+    private static final int MAX_PENDING_CHARS = 64 * 1024;
+
+    private static final Pattern PAGE_NUMBER = Pattern.compile(
+            "(?i)^(page\\s*)?(\\d+|(?=[mdclxvi])m{0,3}(c[md]|d?c{0,3})(x[cl]|l?x{0,3})(i[xv]|v?i{0,3}))"
+                    + "(\\s*(of|/)\\s*\\d+)?$");
+    private static final Pattern INLINE_WHITESPACE = Pattern.compile("[ \\t\\u00A0\\u2000-\\u200B]+");
+    private static final Pattern DIGITS = Pattern.compile("\\d+");
+    private static final Pattern WORD = Pattern.compile("\\p{L}+(?:-\\p{L}+)*");
+
+    /**
+     * First halves of compounds that keep their hyphen across a line break
+     * unless the document spells the joined word elsewhere
+     */
+    private static final Set<String> COMPOUND_PREFIXES = Set.of(
+            "self", "well", "cross", "half", "non", "built", "user", "state", "high", "low", "long", "short",
+            "full", "part", "world", "time", "case", "third", "open");
+
+    private final boolean paged;
+    private final StringBuilder pending = new StringBuilder();
+    private final List<Page> learningPages = new ArrayList<>();
+    private final Map<String, Integer> marginLineCounts = new HashMap<>();
+    private final Set<String> boilerplate = new HashSet<>();
+
+    /**
+     * Lowercased words and hyphenated compounds of the pages seen so far,
+     * which tell a hyphenation break from a compound split at its hyphen
+     */
+    private final Set<String> vocabulary = new HashSet<>();
+    private boolean learned = false;
+    private boolean pendingBlankLine = false;
+
+    /**
+     * Whether the top of the current page has already been emitted by an
+     * early flush of a very long page
+     */
+    private boolean pageStartFlushed = false;
+
+    /**
+     * Whether the last block ended in a carriage return, which may be the
+     * first half of a CRLF
+     */
+    private boolean pendingCarriageReturn = false;
+
+    /**
+     * @param paged Whether the text is extracted PDF text with a page break
+     *              after every page; other text is passed through with only
+     *              its line endings normalized
+     */
+    public TextNormalizer(boolean paged) {
+        this.paged = paged;
+    }
+
+    /**
+     * Feed the next block of extracted text, passing any text that is ready to
+     * the consumer
+     */
+    public void feed(String block, Consumer<String> consumer) {
+        if (!paged) {
+            String normalized = normalizeLineEndings(block);
+            if (!normalized.isEmpty()) {
+                consumer.accept(normalized);
+            }
+            return;
+        }
+
+        int start = 0;
+        for (int i = 0; i < block.length(); i++) {
+            if (block.charAt(i) == PAGE_BREAK) {
+                pending.append(block, start, i);
+                acceptPage(new Page(splitLines(pending.toString()), !pageStartFlushed, true), consumer);
+                pending.setLength(0);
+                pageStartFlushed = false;
+                start = i + 1;
+            }
+        }
+        pending.append(block, start, block.length());
+
+        if (pending.length() > MAX_PENDING_CHARS) {
+            int lastNewline = pending.lastIndexOf("\n");
+            if (lastNewline > 0) {
+                String completeLines = pending.substring(0, lastNewline);
+                pending.delete(0, lastNewline + 1);
+                flushLearningPages(consumer);
+                List<String> lines = splitLines(completeLines);
+                learnVocabulary(lines);
+                consumer.accept(clean(new Page(lines, !pageStartFlushed, false)));
+                pageStartFlushed = true;
+            }
+        }
+    }
+
+    /**
+     * Flush everything still buffered at the end of the document
+     */
+    public void finish(Consumer<String> consumer) {
+        if (!paged) {
+            if (pendingCarriageReturn) {
+                pendingCarriageReturn = false;
+                consumer.accept("\n");
+            }
+            return;
+        }
+
+        if (pending.length() > 0) {
+            acceptPage(new Page(splitLines(pending.toString()), !pageStartFlushed, true), consumer);
+            pending.setLength(0);
+        }
+        flushLearningPages(consumer);
+    }
+
+    /**
+     * Replace CRLF and CR line endings with LF, carrying a trailing CR over to
+     * the next block
+     */
+    private String normalizeLineEndings(String block) {
+        if (block.isEmpty()) {
+            return block;
+        }
+
+        StringBuilder out = new StringBuilder(block.length() + 1);
+        int i = 0;
+        if (pendingCarriageReturn) {
+            pendingCarriageReturn = false;
+            out.append('\n');
+            if (block.charAt(0) == '\n') {
+                i = 1;
+            }
+        }
+        for (; i < block.length(); i++) {
+            char c = block.charAt(i);
+            if (c != '\r') {
+                out.append(c);
+            } else if (i + 1 == block.length()) {
+                pendingCarriageReturn = true;
+            } else {
+                out.append('\n');
+                if (block.charAt(i + 1) == '\n') {
+                    i++;
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private void acceptPage(Page page, Consumer<String> consumer) {
+        countMarginLines(page.lines());
+        learnVocabulary(page.lines());
+
+        if (!learned) {
+            learningPages.add(page);
+            if (learningPages.size() >= LEARNING_PAGES) {
+                flushLearningPages(consumer);
+            }
+            return;
+        }
+
+        consumer.accept(clean(page));
+    }
+
+    private void flushLearningPages(Consumer<String> consumer) {
+        learned = true;
+        for (Page page : learningPages) {
+            consumer.accept(clean(page));
+        }
+        learningPages.clear();
+    }
+
+    /**
+     * Count the normalised top and bottom lines of a page, marking those seen
+     * on enough pages as boilerplate
+     */
+    private void countMarginLines(List<String> lines) {
+        List<String> nonEmpty = new ArrayList<>();
+        for (String line : lines) {
+            if (!line.isEmpty()) {
+                nonEmpty.add(line);
+            }
+        }
+
+        Set<String> pageKeys = new HashSet<>();
+        for (int i = 0; i < nonEmpty.size(); i++) {
+            if (i < MARGIN_LINES || i >= nonEmpty.size() - MARGIN_LINES) {
+                String line = nonEmpty.get(i);
+                if (line.length() <= MAX_MARGIN_LINE_LENGTH) {
+                    pageKeys.add(marginKey(line));
+                }
+            }
+        }
+
+        for (String key : pageKeys) {
+            int count = marginLineCounts.merge(key, 1, Integer::sum);
+            if (count >= MIN_REPEAT_PAGES) {
+                boilerplate.add(key);
+            }
+        }
+    }
+
+    /**
+     * Clean the lines of one page or part of a page and join them back
+     * together. Page numbers and boilerplate are only dropped from the margin
+     * lines the part contains.
+     */
+    private String clean(Page page) {
+        List<String> lines = page.lines();
+        int nonEmptyCount = 0;
+        for (String line : lines) {
+            if (!line.isEmpty()) {
+                nonEmptyCount++;
+            }
+        }
+
+        StringBuilder out = new StringBuilder();
+        int nonEmptyIndex = -1;
+        for (String line : lines) {
+            if (line.isEmpty()) {
+                pendingBlankLine = out.length() > 0 || pendingBlankLine;
+                continue;
+            }
+            nonEmptyIndex++;
+            boolean margin = (page.hasTop() && nonEmptyIndex < MARGIN_LINES)
+                    || (page.hasBottom() && nonEmptyIndex >= nonEmptyCount - MARGIN_LINES);
+            if (margin && (PAGE_NUMBER.matcher(line).matches() || boilerplate.contains(marginKey(line)))) {
+                continue;
+            }
+
+            int length = out.length();
+            if (length > 1 && out.charAt(length - 1) == '-' && Character.isLetter(out.charAt(length - 2))
+                    && Character.isLowerCase(line.charAt(0)) && !pendingBlankLine) {
+                if (isHyphenationBreak(out, line)) {
+                    out.setLength(length - 1);
+                }
+            } else if (length > 0) {
+                out.append(pendingBlankLine ? "\n\n" : "\n");
+            } else if (pendingBlankLine) {
+                out.append("\n");
+            }
+            out.append(line);
+            pendingBlankLine = false;
+        }
+
+        if (out.length() > 0) {
+            out.append('\n');
+            pendingBlankLine = true;
+        }
+        return out.toString();
+    }
+
+    private void learnVocabulary(List<String> lines) {
+        for (String line : lines) {
+            Matcher matcher = WORD.matcher(line);
+            while (matcher.find()) {
+                vocabulary.add(matcher.group().toLowerCase());
+            }
+        }
+    }
+
+    /**
+     * Decide whether a line ending in "letters-" followed by a lowercase line
+     * is a word hyphenated by the layout, to be rejoined without the hyphen,
+     * or a compound such as "self-contained" broken at its own hyphen
+     */
+    private boolean isHyphenationBreak(StringBuilder out, String nextLine) {
+        int prefixStart = out.length() - 1;
+        while (prefixStart > 0 && Character.isLetter(out.charAt(prefixStart - 1))) {
+            prefixStart--;
+        }
+        String prefix = out.substring(prefixStart, out.length() - 1).toLowerCase();
+
+        int suffixEnd = 0;
+        while (suffixEnd < nextLine.length() && Character.isLetter(nextLine.charAt(suffixEnd))) {
+            suffixEnd++;
+        }
+        String suffix = nextLine.substring(0, suffixEnd).toLowerCase();
+
+        if (vocabulary.contains(prefix + suffix)) {
+            return true;
+        }
+        return !vocabulary.contains(prefix + "-" + suffix) && !COMPOUND_PREFIXES.contains(prefix);
+    }
+
+    /**
+     * Split text into trimmed lines with inline whitespace runs collapsed
+     */
+    private static List<String> splitLines(String text) {
+        List<String> lines = new ArrayList<>();
+        for (String line : text.split("\\r?\\n|\\r", -1)) {
+            lines.add(INLINE_WHITESPACE.matcher(line).replaceAll(" ").trim());
+        }
+        return lines;
+    }
+
+    private static String marginKey(String line) {
+        return DIGITS.matcher(line.toLowerCase()).replaceAll("#");
+    }
+
+    /**
+     * Lines of a page, or of part of a very long page, and whether the part
+     * includes the top and the bottom of the page
+     */
+    private record Page(List<String> lines, boolean hasTop, boolean hasBottom) {
+    }
+
+    /**
+     * Check if a chunk carries too little text to be worth embedding
+     */
+    public static boolean isNearEmpty(String text, int minAlphanumeric) {
+        int count = 0;
+        for (int i = 0; i < text.length() && count < minAlphanumeric; i++) {
+            if (Character.isLetterOrDigit(text.charAt(i))) {
+                count++;
+            }
+        }
+        return count < minAlphanumeric;
+    }
+}
@@ -0,0 +1,117 @@
+package dev.assignment.util;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.TokenCountEstimator;
+import dev.langchain4j.model.openai.OpenAiTokenCountEstimator;
+
+/**
+ * Counts tokens locally with the BPE tables of OpenAI models (cl100k/o200k,
+ * bundled with jtokkit), so chunk sizes and prompts can be measured in tokens
+ * without any API call
+ */
+public class TokenCounter {
+
+    private static final Logger logger = LogManager.getLogger(TokenCounter.class);
+
+    /**
+     * Metadata key under which a segment's token count is stored at index time
+     */
+    public static final String TOKEN_COUNT_KEY = "tokenCount";
+
+    /**
+     * Metadata key of the model whose tokenizer produced the stored count
+     */
+    public static final String TOKEN_MODEL_KEY = "tokenModel";
+
+    /**
+     * Text whose token ids tell the encodings apart
+     */
+    private static final String ENCODING_PROBE = "Tokenizer encoding probe";
+
+    /**
+     * Model whose encoding is used for model names jtokkit does not know
+     */
+    private static final String FALLBACK_MODEL = "gpt-4o";
+
+    private static final Map<String, OpenAiTokenCountEstimator> estimators = new ConcurrentHashMap<>();
+    private static final Map<String, List<Integer>> encodings = new ConcurrentHashMap<>();
+
+    private TokenCounter() {
+        // Prevent instantiation
+    }
+
+    /**
+     * Get the token count estimator for a model
+     */
+    public static TokenCountEstimator forModel(String modelName) {
+        return estimators.computeIfAbsent(modelName, TokenCounter::createEstimator);
+    }
+
+    private static OpenAiTokenCountEstimator createEstimator(String modelName) {
+        try {
+            return new OpenAiTokenCountEstimator(modelName);
+        } catch (RuntimeException e) {
+            logger.debug("No tokenizer for model {}, using the {} encoding", modelName, FALLBACK_MODEL);
+            return new OpenAiTokenCountEstimator(FALLBACK_MODEL);
+        }
+    }
+
+    /**
+     * Count the tokens of a text for a model
+     */
+    public static int count(String text, String modelName) {
+        return forModel(modelName).estimateTokenCountInText(text);
+    }
+
+    /**
+     * Count the tokens of a chat message, including its per-message overhead
+     */
+    public static int count(ChatMessage message, String modelName) {
+        return forModel(modelName).estimateTokenCountInMessage(message);
+    }
+
+    /**
+     * Get the token count of a segment, using the count stored at index time if
+     * it was made with the same encoding as the model's
+     */
+    public static int count(TextSegment segment, String modelName) {
+        Metadata metadata = segment.metadata();
+        if (metadata != null && metadata.containsKey(TOKEN_COUNT_KEY) && metadata.containsKey(TOKEN_MODEL_KEY)
+                && sameEncoding(metadata.getString(TOKEN_MODEL_KEY), modelName)) {
+            return metadata.getInteger(TOKEN_COUNT_KEY);
+        }
+        return count(segment.text(), modelName);
+    }
+
+    /**
+     * Store a segment's token count, and the model it was counted for, in its
+     * metadata
+     *
+     * @return The metadata
+     */
+    public static Metadata storeCount(Metadata metadata, int tokenCount, String modelName) {
+        return metadata.put(TOKEN_COUNT_KEY, tokenCount).put(TOKEN_MODEL_KEY, modelName);
+    }
+
+    /**
+     * Whether two models tokenize alike, such as the embedding model (cl100k)
+     * and older chat models, but not the o200k chat models
+     */
+    static boolean sameEncoding(String modelName, String otherModelName) {
+        return modelName.equals(otherModelName) || encodingOf(modelName).equals(encodingOf(otherModelName));
+    }
+
+    private static List<Integer> encodingOf(String modelName) {
+        return encodings.computeIfAbsent(modelName,
+                name -> estimators.computeIfAbsent(name, TokenCounter::createEstimator).encode(ENCODING_PROBE));
+    }
+}
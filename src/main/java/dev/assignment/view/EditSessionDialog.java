@@ -2,10 +2,12 @@ package dev.assignment.view;
 
 import dev.assignment.model.Session;
 import dev.assignment.service.DatabaseService;
+import dev.assignment.service.EmbeddingCacheService;
 import dev.assignment.util.Constants;
 import javafx.geometry.Insets;
 import javafx.scene.control.*;
 import javafx.scene.layout.VBox;
+import javafx.util.StringConverter;
 
 /**
  * Dialog for editing an existing session.
@@ -14,6 +16,8 @@ public class EditSessionDialog {
     private final Alert dialog;
     private final TextField nameField;
     private final ComboBox<String> modelComboBox;
+    private final ComboBox<Integer> searchComboBox;
+    private final CheckBox answerReuseCheckBox;
     private final Session session;
 
     /**
@@ -37,13 +41,40 @@ public class EditSessionDialog {
         modelComboBox.setValue(session.getModel());
         modelComboBox.setPrefWidth(300);
 
+        Label searchLabel = new Label("Vector Search:");
+        searchComboBox = new ComboBox<>();
+        searchComboBox.getItems().addAll(Constants.PREFIX_SEARCH_DIMENSIONS);
+        searchComboBox.setConverter(new StringConverter<>() {
+            @Override
+            public String toString(Integer dimensions) {
+                if (dimensions == null) {
+                    return "";
+                }
+                return dimensions == 0 ? "Automatic"
+                        : "Two-stage (" + dimensions + "-dimension first pass)";
+            }
+
+            @Override
+            public Integer fromString(String string) {
+                return null;
+            }
+        });
+        searchComboBox.setValue(EmbeddingCacheService.loadPrefixDimensions(session.getId()));
+        searchComboBox.setPrefWidth(300);
+
+        answerReuseCheckBox = new CheckBox("Reuse answers to repeated questions");
+        answerReuseCheckBox.setSelected(session.isAnswerReuse());
+
         VBox content = new VBox(10);
         content.setPadding(new Insets(10));
         content.getChildren().addAll(
                 sessionNameLabel,
                 nameField,
                 modelLabel,
-                modelComboBox);
+                modelComboBox,
+                searchLabel,
+                searchComboBox,
+                answerReuseCheckBox);
 
         dialog.getDialogPane().setContent(content);
 
@@ -78,6 +109,9 @@ public class EditSessionDialog {
 
         if (!newName.isEmpty()) {
             DatabaseService.getInstance().updateSession(session.getId(), newName, newModel);
+            EmbeddingCacheService.savePrefixDimensions(session.getId(), searchComboBox.getValue());
+            DatabaseService.getInstance().updateSessionAnswerReuse(session.getId(),
+                    answerReuseCheckBox.isSelected());
             return true;
         }
 
@@ -0,0 +1,51 @@
+package dev.assignment.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import dev.assignment.model.CachedAnswer;
+
+class DatabaseServiceTest {
+
+    private static final String MODEL = "gpt-4o-mini";
+
+    @TempDir
+    Path tempDir;
+
+    @BeforeEach
+    void setUp() {
+        DatabaseService.setDatabasePath(tempDir.resolve("test.db").toString());
+    }
+
+    @AfterEach
+    void tearDown() {
+        DatabaseService.setDatabasePath(null);
+    }
+
+    private static CachedAnswer answer(String response) {
+        return new CachedAnswer(new float[] {1, 0}, response, List.of("a.txt"));
+    }
+
+    @Test
+    void answerCacheKeepsTheLatestAnswersOfEachSession() {
+        DatabaseService databaseService = DatabaseService.getInstance();
+        int limit = DatabaseService.MAX_CACHED_ANSWERS_PER_SESSION;
+
+        databaseService.saveCachedAnswer("other", MODEL, "keys", answer("other session"));
+        for (int i = 0; i < limit + 5; i++) {
+            databaseService.saveCachedAnswer("session", MODEL, i < 5 ? "old" : "keys", answer("answer " + i));
+        }
+
+        assertEquals(0, databaseService.getCachedAnswers("session", MODEL, "old").size());
+        List<CachedAnswer> kept = databaseService.getCachedAnswers("session", MODEL, "keys");
+        assertEquals(limit, kept.size());
+        assertEquals(1, databaseService.getCachedAnswers("other", MODEL, "keys").size());
+    }
+}
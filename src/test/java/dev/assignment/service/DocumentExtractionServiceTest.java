@@ -0,0 +1,75 @@
+package dev.assignment.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import dev.assignment.util.TextNormalizer;
+
+class DocumentExtractionServiceTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void textFileIsStreamedInBoundedBlocks() throws IOException {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; content.length() < 200_000; i++) {
+            content.append("Line ").append(i).append(" of a long text file\n");
+        }
+        File file = tempDir.resolve("long.txt").toFile();
+        Files.writeString(file.toPath(), content, StandardCharsets.UTF_8);
+
+        List<String> blocks = new ArrayList<>();
+        DocumentExtractionService.extractLocally(file, blocks::add);
+
+        assertTrue(blocks.size() > 1);
+        for (String block : blocks) {
+            assertTrue(block.length() <= 64 * 1024);
+        }
+        assertEquals(content.toString(), String.join("", blocks));
+    }
+
+    @Test
+    void pdfPagesAreDeliveredInOrder() throws IOException {
+        int pageCount = 37;
+        File file = tempDir.resolve("pages.pdf").toFile();
+        try (PDDocument document = new PDDocument()) {
+            for (int i = 1; i <= pageCount; i++) {
+                PDPage page = new PDPage();
+                document.addPage(page);
+                try (PDPageContentStream stream = new PDPageContentStream(document, page)) {
+                    stream.beginText();
+                    stream.setFont(PDType1Font.HELVETICA, 12);
+                    stream.newLineAtOffset(72, 700);
+                    stream.showText("Page number " + i);
+                    stream.endText();
+                }
+            }
+            document.save(file);
+        }
+
+        StringBuilder text = new StringBuilder();
+        DocumentExtractionService.extractLocally(file, text::append);
+
+        String[] pages = text.toString().split(String.valueOf(TextNormalizer.PAGE_BREAK));
+        assertEquals(pageCount, pages.length);
+        for (int i = 0; i < pageCount; i++) {
+            assertEquals("Page number " + (i + 1), pages[i].trim());
+        }
+    }
+}
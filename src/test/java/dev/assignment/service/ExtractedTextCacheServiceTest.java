@@ -0,0 +1,103 @@
+package dev.assignment.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ExtractedTextCacheServiceTest {
+
+    @TempDir
+    Path tempDir;
+
+    private File cacheDir;
+
+    @BeforeEach
+    void setUp() {
+        cacheDir = tempDir.resolve("cache").toFile();
+        ExtractedTextCacheService.setCacheDir(cacheDir);
+    }
+
+    @AfterEach
+    void tearDown() {
+        ExtractedTextCacheService.setCacheDir(new File("extracted_text_cache"));
+    }
+
+    private File writeFile(String name, String content) throws IOException {
+        Path path = tempDir.resolve(name);
+        Files.writeString(path, content);
+        return path.toFile();
+    }
+
+    @Test
+    void contentHashDependsOnContentOnly() throws IOException {
+        File a = writeFile("a.txt", "same content");
+        File b = writeFile("b.txt", "same content");
+        File c = writeFile("c.txt", "other content");
+
+        assertEquals(ExtractedTextCacheService.getContentHash(a), ExtractedTextCacheService.getContentHash(b));
+        assertNotEquals(ExtractedTextCacheService.getContentHash(a), ExtractedTextCacheService.getContentHash(c));
+        assertEquals(64, ExtractedTextCacheService.getContentHash(a).length());
+    }
+
+    @Test
+    void extractedTextRoundTripsThroughSidecar() throws IOException {
+        String content = "Some text\nwith two lines and unicode: éè中\n".repeat(5000);
+        File file = writeFile("doc.txt", content);
+
+        assertEquals(content, ExtractedTextCacheService.readText(file));
+        String hash = ExtractedTextCacheService.getContentHash(file);
+        assertTrue(new File(cacheDir, hash + ".v2.txt.gz").exists());
+        assertTrue(new File(cacheDir, hash + ".v2.meta").exists());
+
+        // Served from the sidecar from now on
+        assertEquals(content, ExtractedTextCacheService.readText(file));
+        assertEquals(content.length(), ExtractedTextCacheService.getCharacterCount(file));
+    }
+
+    @Test
+    void corruptSidecarIsReplaced() throws IOException {
+        String content = "Text that survives a corrupt sidecar";
+        File file = writeFile("doc.txt", content);
+        String hash = ExtractedTextCacheService.getContentHash(file);
+        cacheDir.mkdirs();
+        Files.writeString(new File(cacheDir, hash + ".v2.txt.gz").toPath(), "not gzip");
+
+        assertEquals(content, ExtractedTextCacheService.readText(file));
+        assertEquals(content, ExtractedTextCacheService.readText(file));
+    }
+
+    @Test
+    void sweepRemovesUnreferencedAndOutdatedEntries() throws IOException {
+        File live = writeFile("live.txt", "live");
+        File dead = writeFile("dead.txt", "dead");
+        ExtractedTextCacheService.readText(live);
+        ExtractedTextCacheService.readText(dead);
+        String liveHash = ExtractedTextCacheService.getContentHash(live);
+        String deadHash = ExtractedTextCacheService.getContentHash(dead);
+        Files.writeString(new File(cacheDir, liveHash + ".v1.txt.gz").toPath(), "old version");
+
+        // Entries modified after the cutoff are kept whatever their hash
+        assertEquals(0, ExtractedTextCacheService.sweep(Set.of(liveHash), 0));
+
+        int deleted = ExtractedTextCacheService.sweep(Set.of(liveHash), Long.MAX_VALUE);
+
+        assertEquals(3, deleted);
+        assertTrue(new File(cacheDir, liveHash + ".v2.txt.gz").exists());
+        assertTrue(new File(cacheDir, liveHash + ".v2.meta").exists());
+        assertFalse(new File(cacheDir, liveHash + ".v1.txt.gz").exists());
+        assertFalse(new File(cacheDir, deadHash + ".v2.txt.gz").exists());
+        assertFalse(new File(cacheDir, deadHash + ".v2.meta").exists());
+    }
+}
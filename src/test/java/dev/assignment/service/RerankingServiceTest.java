@@ -0,0 +1,56 @@
+package dev.assignment.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import dev.assignment.util.Bm25Index;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+
+class RerankingServiceTest {
+
+    private static final EmbeddingMatch<TextSegment> BEST = match("best", 0.95, 1, 0, 0);
+    private static final EmbeddingMatch<TextSegment> NEAR_COPY = match("near-copy", 0.94, 0.999f, 0.045f, 0);
+    private static final EmbeddingMatch<TextSegment> DISTINCT = match("distinct", 0.80, 0, 1, 0);
+
+    // With an empty lexical index only the embedding scores rank the results
+    private final RerankingService rerankingService = new RerankingService(new Bm25Index());
+
+    private static EmbeddingMatch<TextSegment> match(String id, double score, float... vector) {
+        return new EmbeddingMatch<>(score, id, Embedding.from(vector), TextSegment.from("segment " + id));
+    }
+
+    private static List<String> ids(List<EmbeddingMatch<TextSegment>> matches) {
+        return matches.stream().map(EmbeddingMatch::embeddingId).toList();
+    }
+
+    @Test
+    void nearCopyGivesWayToDistinctCandidate() {
+        List<EmbeddingMatch<TextSegment>> selected = rerankingService.rerankDiverse("query",
+                List.of(NEAR_COPY, DISTINCT, BEST), 2, 0.7);
+
+        assertEquals(List.of("best", "distinct"), ids(selected));
+    }
+
+    @Test
+    void lambdaOneKeepsTheRerankOrder() {
+        List<EmbeddingMatch<TextSegment>> results = List.of(NEAR_COPY, DISTINCT, BEST);
+
+        List<EmbeddingMatch<TextSegment>> selected = rerankingService.rerankDiverse("query", results, 2, 1.0);
+
+        assertEquals(ids(rerankingService.rerank("query", results)).subList(0, 2), ids(selected));
+        assertEquals(List.of("best", "near-copy"), ids(selected));
+    }
+
+    @Test
+    void fewCandidatesAreAllReturnedInScoreOrder() {
+        List<EmbeddingMatch<TextSegment>> selected = rerankingService.rerankDiverse("query",
+                List.of(DISTINCT, NEAR_COPY, BEST), 5, 0.7);
+
+        assertEquals(List.of("best", "near-copy", "distinct"), ids(selected));
+    }
+}
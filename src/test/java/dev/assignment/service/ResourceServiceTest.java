@@ -0,0 +1,121 @@
+package dev.assignment.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import dev.assignment.model.ResourceEntry;
+
+class ResourceServiceTest {
+
+    private static final String SESSION_ID = "session";
+
+    @TempDir
+    Path tempDir;
+
+    private Path databaseFile;
+    private Path sessionDir;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        databaseFile = tempDir.resolve("test.db");
+        DatabaseService.setDatabasePath(databaseFile.toString());
+        ExtractedTextCacheService.setCacheDir(tempDir.resolve("cache").toFile());
+        ResourceService.setStorageDir(tempDir.resolve("storage").toString());
+        sessionDir = Files.createDirectories(tempDir.resolve("storage").resolve(SESSION_ID));
+    }
+
+    @AfterEach
+    void tearDown() {
+        DatabaseService.setDatabasePath(null);
+        ExtractedTextCacheService.setCacheDir(new File("extracted_text_cache"));
+        ResourceService.setStorageDir(null);
+    }
+
+    private File writeFile(String name, String content) throws IOException {
+        return Files.writeString(sessionDir.resolve(name), content).toFile();
+    }
+
+    @Test
+    void firstUseBuildsTheCatalogFromTheStorageDirectory() throws IOException {
+        writeFile("a.txt", "alpha");
+        writeFile("b.md", "beta");
+
+        ResourceService resources = new ResourceService(SESSION_ID);
+
+        assertEquals(2, resources.getResourceCount());
+        ResourceEntry entry = resources.getCatalogEntry("a.txt");
+        assertEquals(5, entry.size());
+        assertEquals(ResourceEntry.IndexState.PENDING, entry.indexState());
+    }
+
+    @Test
+    void reconciliationPicksUpOutsideChanges() throws IOException {
+        writeFile("kept.txt", "unchanged");
+        writeFile("changed.txt", "old");
+        File removed = writeFile("removed.txt", "gone soon");
+        ResourceService resources = new ResourceService(SESSION_ID);
+        DatabaseService.getInstance().updateResourceIndexState(SESSION_ID, "kept.txt",
+                ResourceEntry.IndexState.INDEXED, "hash", 9, 1);
+
+        writeFile("changed.txt", "new and longer");
+        assertTrue(removed.delete());
+        writeFile("added.txt", "fresh");
+        resources.reconcileCatalog();
+
+        assertEquals(3, resources.getResourceCount());
+        assertNull(resources.getCatalogEntry("removed.txt"));
+        assertEquals(ResourceEntry.IndexState.INDEXED, resources.getCatalogEntry("kept.txt").indexState());
+        assertEquals(14, resources.getCatalogEntry("changed.txt").size());
+        assertEquals(ResourceEntry.IndexState.PENDING, resources.getCatalogEntry("changed.txt").indexState());
+        assertEquals(ResourceEntry.IndexState.PENDING, resources.getCatalogEntry("added.txt").indexState());
+    }
+
+    @Test
+    void catalogIsPersistedAcrossInstances() throws IOException {
+        writeFile("a.txt", "alpha");
+        new ResourceService(SESSION_ID);
+        DatabaseService.getInstance().updateResourceIndexState(SESSION_ID, "a.txt",
+                ResourceEntry.IndexState.INDEXED, "hash", 5, 1);
+
+        // A new instance reads the catalog back from the database
+        DatabaseService.setDatabasePath(databaseFile.toString());
+
+        ResourceEntry entry = DatabaseService.getInstance().getResourceCatalog(SESSION_ID).get("a.txt");
+        assertEquals(ResourceEntry.IndexState.INDEXED, entry.indexState());
+        assertEquals("hash", entry.contentHash());
+        assertEquals(1, entry.segmentCount());
+    }
+
+    @Test
+    void failedCatalogReadIsNotCached() throws SQLException {
+        DatabaseService databaseService = DatabaseService.getInstance();
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + databaseFile);
+                Statement stmt = connection.createStatement()) {
+            stmt.execute("ALTER TABLE resources RENAME TO resources_away");
+
+            assertThrows(RuntimeException.class, () -> databaseService.getResourceCatalog(SESSION_ID));
+
+            stmt.execute("ALTER TABLE resources_away RENAME TO resources");
+            stmt.execute("INSERT INTO resources (session_id, file_name, size, last_modified, index_state) " +
+                    "VALUES ('" + SESSION_ID + "', 'a.txt', 5, 0, 'INDEXED')");
+        }
+
+        assertEquals(1, databaseService.getResourceCatalog(SESSION_ID).size());
+    }
+}
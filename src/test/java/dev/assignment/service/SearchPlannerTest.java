@@ -0,0 +1,98 @@
+package dev.assignment.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import dev.assignment.service.SearchPlanner.IndexStats;
+import dev.assignment.service.SearchPlanner.Strategy;
+
+class SearchPlannerTest {
+
+    /**
+     * Large enough to shard, too few files to route
+     */
+    private static final IndexStats SHARDED_SIZE = new IndexStats(10_000, 5, 1536);
+
+    private static final long SLOW = 500;
+    private static final long FAST = 5;
+
+    /**
+     * Run a search as the planner chooses, taking the given time
+     */
+    private static Strategy search(SearchPlanner planner, boolean prefixReady, long millis) {
+        Strategy strategy = planner.choose(SHARDED_SIZE, false, prefixReady, false);
+        planner.recordLatency(strategy, millis);
+        return strategy;
+    }
+
+    @Test
+    void sizeSetsTheStartingStrategy() {
+        SearchPlanner planner = new SearchPlanner();
+
+        assertEquals(Strategy.EXACT, planner.choose(new IndexStats(100, 2, 1536), false, false, false));
+        assertEquals(Strategy.SHARDED, planner.choose(SHARDED_SIZE, false, false, false));
+        assertEquals(Strategy.ROUTED, planner.choose(new IndexStats(10_000, 50, 1536), false, false, false));
+        assertEquals(Strategy.PREFIX, planner.choose(new IndexStats(30_000, 5, 1536), false, true, false));
+        assertEquals(Strategy.GRAPH, planner.choose(new IndexStats(60_000, 5, 1536), true, true, false));
+    }
+
+    @Test
+    void oneSlowSearchDoesNotStepDown() {
+        SearchPlanner planner = new SearchPlanner();
+
+        search(planner, false, SLOW);
+
+        assertFalse(planner.wantsPrefix(SHARDED_SIZE));
+        assertEquals(Strategy.SHARDED, planner.choose(SHARDED_SIZE, false, true, false));
+    }
+
+    @Test
+    void steadilySlowStrategyStepsDown() {
+        SearchPlanner planner = new SearchPlanner();
+
+        for (int i = 0; i < 3; i++) {
+            search(planner, false, SLOW);
+        }
+
+        assertTrue(planner.wantsPrefix(SHARDED_SIZE));
+        assertEquals(Strategy.PREFIX, planner.choose(SHARDED_SIZE, false, true, false));
+    }
+
+    @Test
+    void steppedDownStrategyIsResampledAndRecovers() {
+        SearchPlanner planner = new SearchPlanner();
+        for (int i = 0; i < 3; i++) {
+            search(planner, false, SLOW);
+        }
+
+        // The prefix index serves until the sharded scan is timed again
+        int prefixSearches = 0;
+        while (search(planner, true, FAST) == Strategy.PREFIX) {
+            prefixSearches++;
+            assertTrue(prefixSearches < 100);
+        }
+        assertTrue(planner.wantsPrefix(SHARDED_SIZE));
+
+        // The old verdict stands until the probe has enough samples
+        search(planner, true, FAST);
+        assertTrue(planner.wantsPrefix(SHARDED_SIZE));
+        search(planner, true, FAST);
+
+        assertFalse(planner.wantsPrefix(SHARDED_SIZE));
+        assertEquals(Strategy.SHARDED, planner.choose(SHARDED_SIZE, false, true, false));
+    }
+
+    @Test
+    void forcedPrefixIsNotResampled() {
+        SearchPlanner planner = new SearchPlanner();
+
+        for (int i = 0; i < 200; i++) {
+            Strategy strategy = planner.choose(SHARDED_SIZE, false, true, true);
+            planner.recordLatency(strategy, SLOW);
+            assertEquals(Strategy.PREFIX, strategy);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package dev.assignment.util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+
+class Bm25IndexTest {
+
+    private static EmbeddingMatch<TextSegment> entry(String fileName, int ordinal, String text) {
+        TextSegment segment = TextSegment.from(text, new Metadata()
+                .put("fileName", fileName)
+                .put(SegmentMerger.ORDINAL_KEY, ordinal));
+        return new EmbeddingMatch<>(1.0, fileName + ordinal, new Embedding(new float[] { 1, 0 }), segment);
+    }
+
+    private static List<EmbeddingMatch<TextSegment>> corpus() {
+        return List.of(
+                entry("a.txt", 0, "The invoice number is INV-2041 and it is overdue"),
+                entry("a.txt", 1, "Payment terms are thirty days from the invoice date"),
+                entry("b.txt", 0, "The cat sat on the mat"),
+                entry("b.txt", 1, "Dogs and cats are common pets"));
+    }
+
+    private static Bm25Index index(List<EmbeddingMatch<TextSegment>> entries) {
+        Bm25Index index = new Bm25Index();
+        for (EmbeddingMatch<TextSegment> entry : entries) {
+            index.add(entry);
+        }
+        return index;
+    }
+
+    @Test
+    void tokenizeSplitsOnNonWordCharacters() {
+        assertEquals(List.of("inv", "2041", "is_due", "café"), Bm25Index.tokenize("INV-2041, is_due: Café!"));
+    }
+
+    @Test
+    void exactIdentifiersRankFirst() {
+        Bm25Index index = index(corpus());
+
+        List<EmbeddingMatch<TextSegment>> results = index.search("INV-2041", 10);
+
+        assertEquals(1, results.size());
+        assertEquals("a.txt#0", Bm25Index.docKey(results.get(0).embedded()));
+        assertTrue(results.get(0).score() > 0);
+    }
+
+    @Test
+    void rarerTermsWeighMore() {
+        Bm25Index index = index(corpus());
+
+        List<EmbeddingMatch<TextSegment>> results = index.search("invoice overdue", 10);
+
+        assertEquals(2, results.size());
+        assertEquals("a.txt#0", Bm25Index.docKey(results.get(0).embedded()));
+        assertTrue(results.get(0).score() > results.get(1).score());
+    }
+
+    @Test
+    void removedFilesAreNotFound() {
+        Bm25Index index = index(corpus());
+
+        index.removeFile("a.txt");
+
+        assertEquals(2, index.size());
+        assertTrue(index.search("invoice", 10).isEmpty());
+        assertEquals(1, index.search("cat", 10).size());
+        assertNull(index.getFeatures(corpus().get(0).embedded()));
+        assertNull(index.getEntry("a.txt#0"));
+        assertEquals("b.txt1", index.getEntry("b.txt#1").embeddingId());
+    }
+
+    @Test
+    void indexStaysCorrectAfterCompaction() {
+        Bm25Index index = index(corpus());
+
+        index.removeFile("a.txt");
+        index.removeFile("b.txt");
+        index.add(entry("c.txt", 0, "A fresh invoice arrived"));
+
+        assertEquals(1, index.size());
+        List<EmbeddingMatch<TextSegment>> results = index.search("invoice", 10);
+        assertEquals(1, results.size());
+        assertEquals("c.txt#0", Bm25Index.docKey(results.get(0).embedded()));
+    }
+
+    @Test
+    void featuresHoldTermIdsInTextOrder() {
+        Bm25Index index = index(corpus());
+        TextSegment segment = corpus().get(2).embedded();
+
+        Bm25Index.SegmentFeatures features = index.getFeatures(segment);
+
+        assertNotNull(features);
+        assertArrayEquals(index.getTermIds(Bm25Index.tokenize(segment.text())), features.tokenIds());
+        int catId = index.getTermIds(List.of("cat"))[0];
+        assertTrue(features.contains(catId));
+        assertFalse(features.contains(index.getTermIds(List.of("dogs"))[0]));
+        assertEquals(-1, index.getTermIds(List.of("unknown"))[0]);
+    }
+
+    @Test
+    void varintPostingsRoundTrip() throws IOException {
+        // Enough distinct terms and documents for multi-byte varints
+        List<EmbeddingMatch<TextSegment>> entries = new ArrayList<>();
+        for (int doc = 0; doc < 300; doc++) {
+            StringBuilder text = new StringBuilder("common");
+            for (int term = 0; term < 80; term++) {
+                text.append(" t").append(doc * 80 + term);
+            }
+            entries.add(entry("big.txt", doc, text.toString()));
+        }
+        Bm25Index original = index(entries);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        original.writeTo(new DataOutputStream(bytes));
+        Bm25Index restored = new Bm25Index();
+        boolean matches = restored.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())),
+                entries);
+
+        assertTrue(matches);
+        assertEquals(original.size(), restored.size());
+        for (String query : List.of("t23999", "t80 t81 common", "t12345", "common")) {
+            List<EmbeddingMatch<TextSegment>> expected = original.search(query, 5);
+            List<EmbeddingMatch<TextSegment>> actual = restored.search(query, 5);
+            assertEquals(expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i).embeddingId(), actual.get(i).embeddingId());
+                assertEquals(expected.get(i).score(), actual.get(i).score(), 1e-9);
+            }
+        }
+        assertArrayEquals(original.getFeatures(entries.get(299).embedded()).tokenIds(),
+                restored.getFeatures(entries.get(299).embedded()).tokenIds());
+    }
+
+    @Test
+    void readFromRejectsIndexOfOtherStore() throws IOException {
+        Bm25Index original = index(corpus());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        original.writeTo(new DataOutputStream(bytes));
+
+        List<EmbeddingMatch<TextSegment>> moreEntries = new ArrayList<>(corpus());
+        moreEntries.add(entry("new.txt", 0, "Not in the stored index"));
+
+        assertFalse(new Bm25Index().readFrom(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), moreEntries));
+        assertFalse(new Bm25Index().readFrom(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), corpus().subList(0, 2)));
+    }
+}
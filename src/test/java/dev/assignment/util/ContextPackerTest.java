@@ -0,0 +1,110 @@
+package dev.assignment.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.data.segment.TextSegment;
+
+class ContextPackerTest {
+
+    private static final String MODEL = "gpt-4o-mini";
+
+    private static TextSegment segment(String fileName, int words) {
+        return TextSegment.from(("word" + fileName + " ").repeat(words).trim(),
+                new Metadata().put("fileName", fileName));
+    }
+
+    private static List<ChatMessage> history(int turns, int wordsPerMessage) {
+        List<ChatMessage> history = new ArrayList<>();
+        history.add(SystemMessage.from("You are a helpful assistant."));
+        for (int i = 0; i < turns; i++) {
+            history.add(UserMessage.from(("question" + i + " ").repeat(wordsPerMessage)));
+            history.add(AiMessage.from(("answer" + i + " ").repeat(wordsPerMessage)));
+        }
+        return history;
+    }
+
+    @Test
+    void budgetIsCappedAndHistoryShareIsAQuarter() {
+        ContextPacker packer = new ContextPacker(MODEL);
+
+        assertEquals(12_000, packer.getBudget());
+        assertEquals(3_000, packer.getHistoryBudget());
+    }
+
+    @Test
+    void smallPromptIsPackedWhole() {
+        ContextPacker packer = new ContextPacker(MODEL);
+        List<TextSegment> segments = List.of(segment("a", 50), segment("b", 50));
+
+        ContextPacker.PackedPrompt prompt = packer.pack(history(2, 10), "What is it?", segments);
+
+        assertEquals(6, prompt.messages().size());
+        assertInstanceOf(SystemMessage.class, prompt.messages().get(0));
+        String question = ((UserMessage) prompt.messages().get(5)).singleText();
+        assertTrue(question.startsWith("Relevant context:"));
+        assertTrue(question.endsWith("User question: What is it?"));
+        assertEquals(segments, prompt.segments());
+        assertEquals(0, prompt.usage().droppedSegments());
+        assertEquals(0, prompt.usage().droppedHistoryMessages());
+    }
+
+    @Test
+    void promptWithoutContextIsTheBareQuestion() {
+        ContextPacker.PackedPrompt prompt = new ContextPacker(MODEL).pack(history(0, 0), "Hello", List.of());
+
+        assertEquals("Hello", ((UserMessage) prompt.messages().get(1)).singleText());
+    }
+
+    @Test
+    void promptStaysWithinBudget() {
+        ContextPacker packer = new ContextPacker(MODEL);
+        List<TextSegment> segments = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            segments.add(segment("f" + i, 600));
+        }
+
+        ContextPacker.PackedPrompt prompt = packer.pack(history(30, 200), "Summarize everything", segments);
+
+        assertTrue(prompt.usage().totalTokens() <= packer.getBudget());
+        assertTrue(prompt.usage().historyTokens() <= packer.getHistoryBudget());
+        assertTrue(prompt.usage().droppedSegments() > 0);
+        assertTrue(prompt.usage().droppedHistoryMessages() > 0);
+
+        // Segments keep their ranking order, and the newest history is kept
+        for (int i = 0; i < prompt.segments().size(); i++) {
+            assertEquals("f" + i, prompt.segments().get(i).metadata().getString("fileName"));
+        }
+        ChatMessage newest = prompt.messages().get(prompt.messages().size() - 2);
+        assertTrue(((AiMessage) newest).text().startsWith("answer29"));
+    }
+
+    @Test
+    void lastSegmentIsTruncatedToFit() {
+        ContextPacker packer = new ContextPacker(MODEL);
+        List<TextSegment> segments = List.of(segment("a", 5000), segment("b", 20000));
+
+        ContextPacker.PackedPrompt prompt = packer.pack(history(0, 0), "Question", segments);
+
+        assertEquals(2, prompt.segments().size());
+        TextSegment truncated = prompt.segments().get(1);
+        assertTrue(truncated.text().endsWith(" ..."));
+        assertEquals("b", truncated.metadata().getString("fileName"));
+        assertEquals(TokenCounter.count(truncated.text(), MODEL),
+                truncated.metadata().getInteger(TokenCounter.TOKEN_COUNT_KEY));
+        assertFalse(truncated.text().length() >= segments.get(1).text().length());
+        assertTrue(prompt.usage().totalTokens() <= packer.getBudget());
+    }
+}
@@ -0,0 +1,136 @@
+package dev.assignment.util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+
+class DiskGraphIndexTest {
+
+    private static final int DIMENSIONS = 64;
+    private static final int FILES = 8;
+    private static final double SPREAD = 0.6;
+
+    @TempDir
+    File tempDir;
+
+    private static float[][] topics(Random random) {
+        return VectorFixtures.topics(40, DIMENSIONS, random);
+    }
+
+    /**
+     * Segments on a few topics, as embeddings of real text are
+     */
+    private static List<EmbeddingMatch<TextSegment>> entries(int count, long seed) {
+        Random random = new Random(seed);
+        float[][] topics = topics(random);
+        return VectorFixtures.entries(count, FILES, i -> VectorFixtures.nearTopic(topics, SPREAD, random));
+    }
+
+    /**
+     * Open an index file against the given store entries
+     */
+    private static DiskGraphIndex open(File file, List<EmbeddingMatch<TextSegment>> entries) throws IOException {
+        Map<String, EmbeddingMatch<TextSegment>> entriesByKey = new HashMap<>();
+        for (EmbeddingMatch<TextSegment> entry : entries) {
+            entriesByKey.put(Bm25Index.docKey(entry.embedded()), entry);
+        }
+        return DiskGraphIndex.open(file, entries.size(), entriesByKey::get);
+    }
+
+    @Test
+    void searchRecallsMostOfTheExactTopResults() throws IOException {
+        List<EmbeddingMatch<TextSegment>> entries = entries(2000, 1);
+        File file = new File(tempDir, "graph.index");
+        DiskGraphIndex.build(file, entries);
+
+        DiskGraphIndex index = open(file, entries);
+
+        assertNotNull(index);
+        assertEquals(2000, index.size());
+        // Queries on the same topics as the segments
+        Random random = new Random(1);
+        float[][] topics = topics(random);
+        int found = 0;
+        int queries = 20;
+        for (int q = 0; q < queries; q++) {
+            Embedding query = new Embedding(VectorFixtures.nearTopic(topics, SPREAD, random));
+            Set<String> expected = new HashSet<>(VectorFixtures.exactTop(entries, query, 10));
+            List<EmbeddingMatch<TextSegment>> results = index.search(query, 10, 100, 0);
+
+            assertEquals(10, results.size());
+            for (int i = 1; i < results.size(); i++) {
+                assertTrue(results.get(i - 1).score() >= results.get(i).score());
+            }
+            for (EmbeddingMatch<TextSegment> result : results) {
+                if (expected.contains(result.embeddingId())) {
+                    found++;
+                }
+            }
+        }
+        assertTrue(found >= queries * 10 * 0.9, "recall@10 was " + found / (queries * 10.0));
+    }
+
+    @Test
+    void storedVectorsAreFoundFirst() throws IOException {
+        List<EmbeddingMatch<TextSegment>> entries = entries(1000, 3);
+        File file = new File(tempDir, "graph.index");
+        DiskGraphIndex.build(file, entries);
+        DiskGraphIndex index = open(file, entries);
+
+        for (int i = 0; i < 1000; i += 97) {
+            EmbeddingMatch<TextSegment> target = entries.get(i);
+            List<EmbeddingMatch<TextSegment>> results = index.search(target.embedding(), 1, 40, 0);
+            assertEquals(target.embeddingId(), results.get(0).embeddingId());
+            assertEquals(target.embedded(), results.get(0).embedded());
+            // Read back from the node record
+            assertArrayEquals(target.embedding().vector(), results.get(0).embedding().vector());
+        }
+    }
+
+    @Test
+    void openRejectsIndexOfOtherSegments() throws IOException {
+        List<EmbeddingMatch<TextSegment>> entries = entries(300, 4);
+        File file = new File(tempDir, "graph.index");
+        DiskGraphIndex.build(file, entries);
+
+        assertNull(open(file, entries.subList(0, 299)));
+
+        List<EmbeddingMatch<TextSegment>> renamed = new ArrayList<>(entries);
+        renamed.set(5, VectorFixtures.entry(1000, FILES, entries.get(5).embedding().vector()));
+        assertNull(open(file, renamed));
+    }
+
+    @Test
+    void openRejectsIndexOfReindexedVectors() throws IOException {
+        List<EmbeddingMatch<TextSegment>> entries = entries(300, 5);
+        File file = new File(tempDir, "graph.index");
+        DiskGraphIndex.build(file, entries);
+
+        // Same keys and count, as when a file is re-indexed into as many segments
+        List<EmbeddingMatch<TextSegment>> reindexed = new ArrayList<>(entries);
+        float[] newVector = VectorFixtures.randomUnitVector(DIMENSIONS, new Random(6));
+        reindexed.set(7, VectorFixtures.entry(7, FILES, newVector));
+
+        assertNull(open(file, reindexed));
+        assertNotNull(open(file, entries));
+    }
+}
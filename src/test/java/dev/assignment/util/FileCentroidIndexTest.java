@@ -0,0 +1,127 @@
+package dev.assignment.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.Test;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+
+class FileCentroidIndexTest {
+
+    private static final int DIMENSIONS = 32;
+
+    private static float[] nearTopic(float[] topic, Random random) {
+        return VectorFixtures.nearTopic(topic, 0.3, random);
+    }
+
+    /**
+     * Segments of files that each cover one topic
+     */
+    private static List<EmbeddingMatch<TextSegment>> entries(float[][] topics, int segmentsPerFile, Random random) {
+        return VectorFixtures.entries(topics.length * segmentsPerFile, topics.length,
+                i -> nearTopic(topics[i % topics.length], random));
+    }
+
+    private static float[][] topics(int count, Random random) {
+        return VectorFixtures.topics(count, DIMENSIONS, random);
+    }
+
+    @Test
+    void countsFollowAddsAndRemovals() {
+        Random random = new Random(1);
+        FileCentroidIndex index = new FileCentroidIndex();
+        index.rebuild(entries(topics(5, random), 10, random));
+
+        assertEquals(5, index.getFileCount());
+        assertEquals(50, index.getSegmentCount());
+
+        index.removeFile("file2.txt");
+        index.removeFile("missing.txt");
+
+        assertEquals(4, index.getFileCount());
+        assertEquals(40, index.getSegmentCount());
+    }
+
+    @Test
+    void routedSearchScoresOnlyTheClosestFiles() {
+        Random random = new Random(2);
+        float[][] topics = topics(10, random);
+        List<EmbeddingMatch<TextSegment>> entries = entries(topics, 20, random);
+        FileCentroidIndex index = new FileCentroidIndex();
+        index.rebuild(entries);
+
+        Embedding query = new Embedding(nearTopic(topics[3], random));
+        List<EmbeddingMatch<TextSegment>> results = index.search(query, 1, 5, 0);
+
+        assertEquals(5, results.size());
+        for (EmbeddingMatch<TextSegment> result : results) {
+            assertEquals("file3.txt", result.embedded().metadata().getString("fileName"));
+        }
+        assertEquals(VectorFixtures.exactTop(entries, query, 5), VectorFixtures.ids(results));
+    }
+
+    @Test
+    void routingToEveryFileMatchesExactSearch() {
+        Random random = new Random(3);
+        List<EmbeddingMatch<TextSegment>> entries = entries(topics(6, random), 15, random);
+        FileCentroidIndex index = new FileCentroidIndex();
+        index.rebuild(entries);
+
+        Embedding query = new Embedding(VectorFixtures.randomUnitVector(DIMENSIONS, random));
+
+        assertEquals(VectorFixtures.exactTop(entries, query, 10), VectorFixtures.ids(index.search(query, 6, 10, 0)));
+    }
+
+    @Test
+    void shardedSearchMatchesExactSearch() throws InterruptedException {
+        Random random = new Random(4);
+        List<EmbeddingMatch<TextSegment>> entries = entries(topics(7, random), 30, random);
+        FileCentroidIndex index = new FileCentroidIndex();
+        index.rebuild(entries);
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int q = 0; q < 5; q++) {
+                Embedding query = new Embedding(VectorFixtures.randomUnitVector(DIMENSIONS, random));
+                List<EmbeddingMatch<TextSegment>> results = index.searchSharded(query, 10, 0, executor, 3);
+
+                assertEquals(VectorFixtures.exactTop(entries, query, 10), VectorFixtures.ids(results));
+                for (int i = 1; i < results.size(); i++) {
+                    assertTrue(results.get(i - 1).score() >= results.get(i).score());
+                }
+            }
+        }
+    }
+
+    @Test
+    void removedFilesAndLowScoresAreNotFound() throws InterruptedException {
+        Random random = new Random(5);
+        float[][] topics = topics(4, random);
+        List<EmbeddingMatch<TextSegment>> entries = entries(topics, 10, random);
+        FileCentroidIndex index = new FileCentroidIndex();
+        index.rebuild(entries);
+
+        index.removeFile("file0.txt");
+        Embedding query = new Embedding(nearTopic(topics[0], random));
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (EmbeddingMatch<TextSegment> result : index.searchSharded(query, 40, 0, executor, 2)) {
+                assertNotEquals("file0.txt", result.embedded().metadata().getString("fileName"));
+            }
+            for (EmbeddingMatch<TextSegment> result : index.searchSharded(query, 40, 0.6, executor, 2)) {
+                assertTrue(result.score() >= 0.6);
+            }
+        }
+        for (EmbeddingMatch<TextSegment> result : index.search(query, 4, 40, 0)) {
+            assertNotEquals("file0.txt", result.embedded().metadata().getString("fileName"));
+        }
+    }
+}
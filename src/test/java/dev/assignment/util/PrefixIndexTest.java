@@ -0,0 +1,95 @@
+package dev.assignment.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.CosineSimilarity;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.RelevanceScore;
+
+class PrefixIndexTest {
+
+    private static final int DIMENSIONS = 64;
+
+    private static List<EmbeddingMatch<TextSegment>> entries(int count, long seed) {
+        Random random = new Random(seed);
+        return VectorFixtures.entries(count, 4, i -> VectorFixtures.randomUnitVector(DIMENSIONS, random));
+    }
+
+    @Test
+    void disabledIndexKeepsNothing() {
+        PrefixIndex index = new PrefixIndex(0);
+        index.rebuild(entries(10, 1));
+
+        assertFalse(index.isEnabled());
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    void fullShortlistMatchesExactSearch() {
+        List<EmbeddingMatch<TextSegment>> entries = entries(200, 2);
+        PrefixIndex index = new PrefixIndex(16);
+        index.rebuild(entries);
+        Embedding query = new Embedding(VectorFixtures.randomUnitVector(DIMENSIONS, new Random(3)));
+
+        List<EmbeddingMatch<TextSegment>> results = index.search(query, entries.size(), 5, 0);
+
+        assertEquals(VectorFixtures.exactTop(entries, query, 5), VectorFixtures.ids(results));
+        assertEquals(RelevanceScore.fromCosineSimilarity(CosineSimilarity.between(query,
+                results.get(0).embedding())), results.get(0).score(), 1e-6);
+    }
+
+    @Test
+    void shortlistRecallsNearDuplicatesOfTheQuery() {
+        List<EmbeddingMatch<TextSegment>> entries = entries(1000, 4);
+        PrefixIndex index = new PrefixIndex(32);
+        index.rebuild(entries);
+
+        for (int i = 0; i < 20; i++) {
+            EmbeddingMatch<TextSegment> target = entries.get(i * 37);
+            List<EmbeddingMatch<TextSegment>> results = index.search(target.embedding(), 50, 1, 0);
+            assertEquals(target.embeddingId(), results.get(0).embeddingId());
+        }
+    }
+
+    @Test
+    void removedFilesAreNotFound() {
+        List<EmbeddingMatch<TextSegment>> entries = entries(40, 5);
+        PrefixIndex index = new PrefixIndex(16);
+        index.rebuild(entries);
+
+        index.removeFile("file0.txt");
+        index.removeFile("file1.txt");
+        index.removeFile("file2.txt");
+
+        assertEquals(10, index.size());
+        for (EmbeddingMatch<TextSegment> result : index.search(entries.get(0).embedding(), 40, 40, 0)) {
+            assertEquals("file3.txt", result.embedded().metadata().getString("fileName"));
+        }
+    }
+
+    @Test
+    void minScoreAndDimensionChangeAreHonoured() {
+        List<EmbeddingMatch<TextSegment>> entries = entries(50, 6);
+        PrefixIndex index = new PrefixIndex(8);
+        index.rebuild(entries);
+
+        for (EmbeddingMatch<TextSegment> result : index.search(entries.get(0).embedding(), 50, 50, 0.6)) {
+            assertTrue(result.score() >= 0.6);
+        }
+
+        index.setDimensions(32, entries);
+        assertEquals(32, index.getDimensions());
+        assertEquals(50, index.size());
+        index.setDimensions(0, entries);
+        assertEquals(0, index.size());
+    }
+}
@@ -0,0 +1,47 @@
+package dev.assignment.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+import dev.assignment.util.QueryClassifier.Intent;
+
+class QueryClassifierTest {
+
+    private static void assertIntent(Intent expected, String... messages) {
+        for (String message : messages) {
+            assertEquals(expected, QueryClassifier.classify(message), message);
+        }
+    }
+
+    @Test
+    void acknowledgementsAndGreetingsAreConversational() {
+        assertIntent(Intent.CONVERSATIONAL, "Thanks!", "ok got it", "Thank you so much", "hi", "That helps, cheers");
+    }
+
+    @Test
+    void reworkOfThePreviousAnswerIsAFollowUp() {
+        assertIntent(Intent.FOLLOW_UP, "Make it shorter", "Explain your last answer", "Can you summarize that?",
+                "Rephrase it in simpler terms", "Put that in bullet points", "tl;dr", "tldr please");
+    }
+
+    @Test
+    void newSubjectMatterIsRetrieved() {
+        assertIntent(Intent.RETRIEVE, "What is the invoice number of INV-2041?",
+                "Explain photosynthesis",
+                "Summarize the quarterly revenue report for Europe",
+                "Thanks, but what does clause 7 say about termination?",
+                "Who signed the lease agreement?");
+    }
+
+    @Test
+    void emptyMessageIsRetrieved() {
+        assertIntent(Intent.RETRIEVE, "", "?!");
+    }
+
+    @Test
+    void phrasesMatchWholeWordsOnly() {
+        // "again" inside "against" is not the follow-up phrase
+        assertIntent(Intent.RETRIEVE, "Is it against the rules?");
+    }
+}
@@ -0,0 +1,83 @@
+package dev.assignment.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.segment.TextSegment;
+
+class SegmentMergerTest {
+
+    private static final String TEXT = "The quick brown fox jumps over the lazy dog. It was not amused at all.";
+
+    /**
+     * A segment of TEXT from start to end, as indexed from the given file
+     */
+    private static TextSegment span(String fileName, int ordinal, int start, int end) {
+        return TextSegment.from(TEXT.substring(start, end), new Metadata()
+                .put("fileName", fileName)
+                .put(SegmentMerger.ORDINAL_KEY, ordinal)
+                .put(SegmentMerger.START_OFFSET_KEY, start)
+                .put(SegmentMerger.END_OFFSET_KEY, end));
+    }
+
+    @Test
+    void overlappingSegmentsAreJoinedOnce() {
+        TextSegment first = span("doc.txt", 0, 0, 30);
+        TextSegment second = span("doc.txt", 1, 20, 50);
+
+        List<TextSegment> merged = SegmentMerger.merge(List.of(second, first));
+
+        assertEquals(1, merged.size());
+        assertEquals(TEXT.substring(0, 50), merged.get(0).text());
+        assertEquals(0, merged.get(0).metadata().getInteger(SegmentMerger.START_OFFSET_KEY));
+        assertEquals(50, merged.get(0).metadata().getInteger(SegmentMerger.END_OFFSET_KEY));
+        assertEquals(0, merged.get(0).metadata().getInteger(SegmentMerger.ORDINAL_KEY));
+    }
+
+    @Test
+    void adjacentSegmentsAreJoinedWithANewline() {
+        List<TextSegment> merged = SegmentMerger.merge(List.of(span("doc.txt", 0, 0, 44), span("doc.txt", 1, 45, 70)));
+
+        assertEquals(1, merged.size());
+        assertEquals(TEXT.substring(0, 44) + "\n" + TEXT.substring(45, 70), merged.get(0).text());
+    }
+
+    @Test
+    void containedSegmentIsDropped() {
+        List<TextSegment> merged = SegmentMerger.merge(List.of(span("doc.txt", 0, 0, 60), span("doc.txt", 1, 10, 30)));
+
+        assertEquals(1, merged.size());
+        assertEquals(TEXT.substring(0, 60), merged.get(0).text());
+    }
+
+    @Test
+    void distantSegmentsAndOtherFilesStayApartInRankOrder() {
+        TextSegment a1 = span("a.txt", 0, 0, 10);
+        TextSegment b = span("b.txt", 0, 0, 10);
+        TextSegment a2 = span("a.txt", 3, 40, 60);
+        TextSegment plain = TextSegment.from("No offsets recorded");
+
+        List<TextSegment> merged = SegmentMerger.merge(List.of(b, a2, plain, a1));
+
+        assertEquals(List.of(b, a2, plain, a1), merged);
+        assertSame(plain, merged.get(2));
+    }
+
+    @Test
+    void mergedSpanTakesRankOfItsBestSegment() {
+        TextSegment other = span("b.txt", 0, 0, 10);
+        TextSegment first = span("a.txt", 0, 0, 30);
+        TextSegment second = span("a.txt", 1, 25, 50);
+
+        List<TextSegment> merged = SegmentMerger.merge(List.of(second, other, first));
+
+        assertEquals(2, merged.size());
+        assertEquals(TEXT.substring(0, 50), merged.get(0).text());
+        assertSame(other, merged.get(1));
+    }
+}
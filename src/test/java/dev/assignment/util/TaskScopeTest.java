@@ -0,0 +1,126 @@
+package dev.assignment.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class TaskScopeTest {
+
+    private static final Duration LONG_DEADLINE = Duration.ofSeconds(30);
+
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * A subtask that runs until it is interrupted, then counts down the latch
+     */
+    private static Void blockUntilInterrupted(CountDownLatch interrupted) {
+        try {
+            Thread.sleep(Long.MAX_VALUE);
+        } catch (InterruptedException e) {
+            interrupted.countDown();
+        }
+        return null;
+    }
+
+    @Test
+    void firstFailureCancelsSiblingsAndWakesThePendingJoin() throws InterruptedException {
+        CountDownLatch interrupted = new CountDownLatch(1);
+        long start = System.nanoTime();
+
+        try (TaskScope scope = new TaskScope(executor, new CancellationToken())) {
+            Future<Void> slow = scope.fork(() -> blockUntilInterrupted(interrupted));
+            scope.fork(() -> {
+                throw new IllegalStateException("write failed");
+            });
+
+            IllegalStateException e = assertThrows(IllegalStateException.class,
+                    () -> scope.join(slow, LONG_DEADLINE, "Slow stage"));
+            assertEquals("write failed", e.getMessage());
+        }
+
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        assertTrue(Duration.ofNanos(System.nanoTime() - start).compareTo(LONG_DEADLINE) < 0);
+    }
+
+    @Test
+    void failureOfASubtaskForkedToCompletionCancelsSiblings() throws InterruptedException {
+        CountDownLatch interrupted = new CountDownLatch(1);
+
+        try (TaskScope scope = new TaskScope(executor, new CancellationToken())) {
+            Future<Void> slow = scope.fork(() -> blockUntilInterrupted(interrupted));
+            scope.forkToCompletion(() -> {
+                throw new IllegalStateException("write failed");
+            });
+
+            assertThrows(IllegalStateException.class, () -> scope.join(slow, LONG_DEADLINE, "Slow stage"));
+        }
+
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void missedDeadlineCancelsSiblings() throws InterruptedException {
+        CountDownLatch interrupted = new CountDownLatch(2);
+
+        try (TaskScope scope = new TaskScope(executor, new CancellationToken())) {
+            Future<Void> slow = scope.fork(() -> blockUntilInterrupted(interrupted));
+            scope.fork(() -> blockUntilInterrupted(interrupted));
+
+            RuntimeException e = assertThrows(RuntimeException.class,
+                    () -> scope.join(slow, Duration.ofMillis(50), "Slow stage"));
+            assertTrue(e.getMessage().startsWith("Slow stage did not finish"));
+        }
+
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void cancellingTheRequestWakesThePendingJoin() {
+        CancellationToken cancellationToken = new CancellationToken();
+
+        try (TaskScope scope = new TaskScope(executor, cancellationToken)) {
+            Future<Void> slow = scope.fork(() -> blockUntilInterrupted(new CountDownLatch(1)));
+            executor.submit(() -> {
+                Thread.sleep(50);
+                cancellationToken.cancel();
+                return null;
+            });
+
+            assertThrows(CancellationException.class, () -> scope.join(slow, LONG_DEADLINE, "Slow stage"));
+        }
+    }
+
+    @Test
+    void subtaskForkedToCompletionOutlivesCancellation() throws Exception {
+        CancellationToken cancellationToken = new CancellationToken();
+        CountDownLatch release = new CountDownLatch(1);
+        Future<String> write;
+
+        try (TaskScope scope = new TaskScope(executor, cancellationToken)) {
+            write = scope.forkToCompletion(() -> {
+                release.await();
+                return "saved";
+            });
+            cancellationToken.cancel();
+        }
+
+        release.countDown();
+        assertEquals("saved", write.get(5, TimeUnit.SECONDS));
+    }
+}
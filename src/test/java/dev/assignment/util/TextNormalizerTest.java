@@ -0,0 +1,118 @@
+package dev.assignment.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class TextNormalizerTest {
+
+    private static String normalize(boolean paged, List<String> blocks) {
+        TextNormalizer normalizer = new TextNormalizer(paged);
+        StringBuilder out = new StringBuilder();
+        for (String block : blocks) {
+            normalizer.feed(block, out::append);
+        }
+        normalizer.finish(out::append);
+        return out.toString();
+    }
+
+    private static String page(int number, String body) {
+        return "ACME Annual Report 2021\n" + body + "\nPage " + number + " of 10\n" + TextNormalizer.PAGE_BREAK;
+    }
+
+    @Test
+    void plainTextKeepsItsLayout() {
+        String text = "# Title\n\n    indented code\n\tkey:  value\n| a  | b |\n42\nI\n";
+
+        assertEquals(text, normalize(false, List.of(text)));
+    }
+
+    @Test
+    void plainTextLineEndingsAreNormalizedAcrossBlocks() {
+        String result = normalize(false, List.of("first\r", "\nsecond\r\nthird\rfourth\r"));
+
+        assertEquals("first\nsecond\nthird\nfourth\n", result);
+    }
+
+    @Test
+    void runningHeadersFootersAndPageNumbersAreRemoved() {
+        StringBuilder pdf = new StringBuilder();
+        for (int i = 1; i <= 8; i++) {
+            pdf.append(page(i, "Opening of page " + i + ".\nMiddle " + (i * 7) + " apples.\nClosing words."));
+        }
+
+        String result = normalize(true, List.of(pdf.toString()));
+
+        assertFalse(result.contains("ACME"));
+        assertFalse(result.contains("of 10"));
+        for (int i = 1; i <= 8; i++) {
+            assertTrue(result.contains("Middle " + (i * 7) + " apples."));
+        }
+    }
+
+    @Test
+    void bodyLinesResemblingPageNumbersAreKept() {
+        StringBuilder pdf = new StringBuilder();
+        for (int i = 1; i <= 8; i++) {
+            pdf.append(page(i, "Intro line one\nIntro line two\n42\nI\ncivil\n2019 12 34\nOutro one\nOutro two"));
+        }
+        // A body line shaped like a repeated margin line
+        pdf.append(page(9, "Intro\nmore\n2021 1 2\nACME Annual Report 2022\nend\nend"));
+
+        String result = normalize(true, List.of(pdf.toString()));
+
+        assertTrue(result.contains("\n42\n"));
+        assertTrue(result.contains("\nI\n"));
+        assertTrue(result.contains("\ncivil\n"));
+        assertTrue(result.contains("\n2019 12 34\n"));
+        assertTrue(result.contains("\nACME Annual Report 2022\n"));
+    }
+
+    @Test
+    void standalonePageNumbersAreRemovedFromMarginsOnly() {
+        String pdf = "12\nFirst paragraph\n7\nLast paragraph\nxi\n" + TextNormalizer.PAGE_BREAK;
+
+        assertEquals("First paragraph\n7\nLast paragraph\n", normalize(true, List.of(pdf)));
+    }
+
+    @Test
+    void pdfTextIsReflowed() {
+        String pdf = "The  quick\tbrown fox jum-\nped over\n\n\nthe dog\n" + TextNormalizer.PAGE_BREAK;
+
+        assertEquals("The quick brown fox jumped over\n\nthe dog\n", normalize(true, List.of(pdf)));
+    }
+
+    @Test
+    void compoundsBrokenAtTheirHyphenKeepIt() {
+        String pdf = "A self-\ncontained and well-\nknown tool.\nIts data-\ndriven design is data-driven;\n"
+                + "the non-\nexistent part is nonexistent.\n" + TextNormalizer.PAGE_BREAK;
+
+        assertEquals("A self-contained and well-known tool.\nIts data-driven design is data-driven;\n"
+                + "the nonexistent part is nonexistent.\n", normalize(true, List.of(pdf)));
+    }
+
+    @Test
+    void pagesSplitAcrossBlocksAreJoined() {
+        String pdf = page(1, "Alpha beta") + page(2, "Gamma delta") + page(3, "Epsilon");
+        String whole = normalize(true, List.of(pdf));
+
+        for (int size = 1; size < 20; size += 3) {
+            List<String> blocks = new ArrayList<>();
+            for (int i = 0; i < pdf.length(); i += size) {
+                blocks.add(pdf.substring(i, Math.min(pdf.length(), i + size)));
+            }
+            assertEquals(whole, normalize(true, blocks));
+        }
+    }
+
+    @Test
+    void nearEmptyTextIsDetected() {
+        assertTrue(TextNormalizer.isNearEmpty("  - - 1 .", 5));
+        assertFalse(TextNormalizer.isNearEmpty("Hello world", 5));
+    }
+}
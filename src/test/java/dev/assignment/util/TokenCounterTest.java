@@ -0,0 +1,65 @@
+package dev.assignment.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.data.segment.TextSegment;
+
+class TokenCounterTest {
+
+    @Test
+    void countsTokensOfKnownModel() {
+        assertEquals(2, TokenCounter.count("Hello world", "gpt-4o-mini"));
+        assertTrue(TokenCounter.count("word ".repeat(100), "gpt-4o-mini") >= 100);
+    }
+
+    @Test
+    void unknownModelUsesFallbackEncoding() {
+        assertEquals(TokenCounter.count("Some text to count", "gpt-4o"),
+                TokenCounter.count("Some text to count", "not-a-real-model"));
+    }
+
+    @Test
+    void estimatorsAreReused() {
+        assertSame(TokenCounter.forModel("gpt-4o-mini"), TokenCounter.forModel("gpt-4o-mini"));
+    }
+
+    @Test
+    void messageCountIncludesOverhead() {
+        String text = "How long is this question?";
+        assertTrue(TokenCounter.count(UserMessage.from(text), "gpt-4o-mini")
+                > TokenCounter.count(text, "gpt-4o-mini"));
+    }
+
+    @Test
+    void segmentCountStoredAtIndexTimeIsUsedForTheSameEncoding() {
+        TextSegment stored = TextSegment.from("Hello world",
+                TokenCounter.storeCount(new Metadata(), 42, "text-embedding-3-small"));
+        TextSegment plain = TextSegment.from("Hello world");
+
+        // text-embedding-3-small and gpt-4 share cl100k; gpt-4o-mini uses o200k
+        assertEquals(42, TokenCounter.count(stored, "gpt-4"));
+        assertEquals(2, TokenCounter.count(stored, "gpt-4o-mini"));
+        assertEquals(2, TokenCounter.count(plain, "gpt-4o-mini"));
+    }
+
+    @Test
+    void segmentCountWithoutItsModelIsRecounted() {
+        TextSegment legacy = TextSegment.from("Hello world", new Metadata().put(TokenCounter.TOKEN_COUNT_KEY, 42));
+
+        assertEquals(2, TokenCounter.count(legacy, "gpt-4o-mini"));
+    }
+
+    @Test
+    void encodingsAreToldApart() {
+        assertTrue(TokenCounter.sameEncoding("text-embedding-3-small", "gpt-4"));
+        assertTrue(TokenCounter.sameEncoding("gpt-4o", "gpt-4o-mini"));
+        assertFalse(TokenCounter.sameEncoding("text-embedding-3-small", "gpt-4o-mini"));
+    }
+}
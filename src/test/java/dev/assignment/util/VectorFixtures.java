@@ -0,0 +1,113 @@
+package dev.assignment.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntFunction;
+
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.CosineSimilarity;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+
+/**
+ * Vectors and store entries shared by the vector index tests
+ */
+final class VectorFixtures {
+
+    private VectorFixtures() {
+        // Prevent instantiation
+    }
+
+    /**
+     * Scale a vector to unit length, in place
+     */
+    static float[] unit(float[] vector) {
+        double norm = 0;
+        for (float value : vector) {
+            norm += value * value;
+        }
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] /= (float) Math.sqrt(norm);
+        }
+        return vector;
+    }
+
+    static float[] randomUnitVector(int dimensions, Random random) {
+        float[] vector = new float[dimensions];
+        for (int i = 0; i < dimensions; i++) {
+            vector[i] = (float) random.nextGaussian();
+        }
+        return unit(vector);
+    }
+
+    static float[][] topics(int count, int dimensions, Random random) {
+        float[][] topics = new float[count][];
+        for (int i = 0; i < count; i++) {
+            topics[i] = randomUnitVector(dimensions, random);
+        }
+        return topics;
+    }
+
+    /**
+     * A unit vector near the given topic, as embeddings of text on one topic
+     * are
+     *
+     * @param spread Length of the random offset from the topic
+     */
+    static float[] nearTopic(float[] topic, double spread, Random random) {
+        float[] noise = randomUnitVector(topic.length, random);
+        float[] vector = new float[topic.length];
+        for (int i = 0; i < topic.length; i++) {
+            vector[i] = topic[i] + (float) spread * noise[i];
+        }
+        return unit(vector);
+    }
+
+    /**
+     * A unit vector near a random one of the topics
+     */
+    static float[] nearTopic(float[][] topics, double spread, Random random) {
+        return nearTopic(topics[random.nextInt(topics.length)], spread, random);
+    }
+
+    /**
+     * Entry i of a store: segment i of file (i mod files), with ordinal i
+     */
+    static EmbeddingMatch<TextSegment> entry(int i, int files, float[] vector) {
+        TextSegment segment = TextSegment.from("segment " + i, new Metadata()
+                .put("fileName", "file" + (i % files) + ".txt")
+                .put(SegmentMerger.ORDINAL_KEY, i));
+        return new EmbeddingMatch<>(0.0, "id" + i, new Embedding(vector), segment);
+    }
+
+    /**
+     * Entries of a store spread round-robin over the given number of files
+     */
+    static List<EmbeddingMatch<TextSegment>> entries(int count, int files, IntFunction<float[]> vectors) {
+        List<EmbeddingMatch<TextSegment>> entries = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            entries.add(entry(i, files, vectors.apply(i)));
+        }
+        return entries;
+    }
+
+    /**
+     * Ids of the k entries most similar to the query, by exact search
+     */
+    static List<String> exactTop(List<EmbeddingMatch<TextSegment>> entries, Embedding query, int k) {
+        List<EmbeddingMatch<TextSegment>> sorted = new ArrayList<>(entries);
+        sorted.sort((a, b) -> Double.compare(CosineSimilarity.between(query, b.embedding()),
+                CosineSimilarity.between(query, a.embedding())));
+        return ids(sorted.subList(0, k));
+    }
+
+    static List<String> ids(List<EmbeddingMatch<TextSegment>> matches) {
+        List<String> ids = new ArrayList<>();
+        for (EmbeddingMatch<TextSegment> match : matches) {
+            ids.add(match.embeddingId());
+        }
+        return ids;
+    }
+}